@@ -0,0 +1,131 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sessions for the benchmarks, stored in an InMemorySessionStore so that every benchmark runs in process against the
+ * same store the manager would use without a cluster.
+ */
+public final class BenchmarkSessions {
+
+    /**
+     * The shapes of attribute values the benchmarks are parameterized with
+     */
+    public static final String SCALAR = "scalar";
+    public static final String OBJECT = "object";
+    public static final String LIST = "list";
+    public static final String MIXED = "mixed";
+
+    static final String KEY_PREFIX = "benchmark::session::";
+
+    static final int MAX_INACTIVE_INTERVAL = 1800;
+
+    private BenchmarkSessions() {
+    }
+
+    /**
+     * @param store
+     * @return A started session manager over the store
+     * @throws Exception
+     */
+    static CouchbaseSessionManager startedManager(SessionStore store) throws Exception {
+        CouchbaseSessionManager manager = new CouchbaseSessionManager(KEY_PREFIX, store, new ObjectMapper(),
+                MAX_INACTIVE_INTERVAL);
+        manager.start();
+        return manager;
+    }
+
+    /**
+     * Store a session document directly, as another node would have written it
+     *
+     * @param manager
+     * @param store
+     * @param attributes
+     * @return The id of the new session
+     * @throws IOException
+     */
+    static String store(CouchbaseSessionManager manager, SessionStore store, Map<String, Object> attributes)
+            throws IOException {
+        String id = UUID.randomUUID().toString().replace("-", "");
+        long now = System.currentTimeMillis();
+        SessionSerializer.Stamp stamp = new SessionSerializer.Stamp(now, now, MAX_INACTIVE_INTERVAL, now, 1);
+        byte[] content = SessionSerializer.write(manager.getCodec(), null, stamp, id, attributes);
+        store.insert(SessionDocument.create(KEY_PREFIX + id, MAX_INACTIVE_INTERVAL, content)).toBlocking().single();
+        return id;
+    }
+
+    /**
+     * Create a session through the manager, as if a request had created it and set the attributes
+     *
+     * @param manager
+     * @param id The cluster id of the session
+     * @param attributes
+     */
+    public static void create(CouchbaseSessionManager manager, String id, Map<String, Object> attributes) {
+        long now = System.currentTimeMillis();
+        CouchbaseHttpSession session = manager.new CouchbaseHttpSession(id, now, now,
+                manager.getMaxInactiveInterval());
+        //As the provider does for a resource allowed to write the session
+        session.setWrite(true);
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            session.setAttribute(attribute.getKey(), attribute.getValue());
+        }
+        manager.addSession(session);
+    }
+
+    /**
+     * Remove a session through the manager, as jetty does when a session is invalidated
+     *
+     * @param manager
+     * @param id The cluster id of the session
+     * @return false if the session did not exist
+     */
+    public static boolean remove(CouchbaseSessionManager manager, String id) {
+        return manager.removeSession(id);
+    }
+
+    /**
+     * @param count The number of attributes
+     * @param shape The shape of their values, one of SCALAR, OBJECT, LIST or MIXED (all four in turn)
+     * @return Session attributes with values of the given shape, named a0, a1...
+     */
+    public static Map<String, Object> attributes(int count, String shape) {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = "a" + i;
+            int kind = SCALAR.equals(shape) ? i % 2 : OBJECT.equals(shape) ? 2 : LIST.equals(shape) ? 3 : i % 4;
+            switch (kind) {
+                case 0:
+                    attributes.put(name, UUID.randomUUID().toString());
+                    break;
+                case 1:
+                    attributes.put(name, (long) i * 7919);
+                    break;
+                case 2:
+                    Map<String, Object> profile = new LinkedHashMap<>();
+                    profile.put("firstName", "Jane");
+                    profile.put("lastName", "Doe");
+                    profile.put("email", "jane.doe@example.com");
+                    profile.put("locale", "en_US");
+                    profile.put("admin", false);
+                    attributes.put(name, profile);
+                    break;
+                default:
+                    List<Object> recent = new ArrayList<>();
+                    for (int j = 0; j < 8; j++) {
+                        recent.add(UUID.randomUUID().toString());
+                    }
+                    attributes.put(name, recent);
+                    break;
+            }
+        }
+        return attributes;
+    }
+}
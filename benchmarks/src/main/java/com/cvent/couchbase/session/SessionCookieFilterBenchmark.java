@@ -0,0 +1,110 @@
+package com.cvent.couchbase.session;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole requests through an embedded jetty with the CouchbaseSessionManager, over a LocalConnector so no sockets are
+ * involved, with and without HttpSessionCookieFilter in front of the servlet. A request either carries the cookie of
+ * an existing session or has a new session created, which is when the filter has a cookie to copy.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionCookieFilterBenchmark {
+
+    @Param({"false", "true"})
+    private boolean filter;
+
+    @Param({"existing", "new"})
+    private String session;
+
+    @Param({"32"})
+    private int attributes;
+
+    private Server server;
+
+    private LocalConnector connector;
+
+    private String request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        InMemorySessionStore store = new InMemorySessionStore();
+        CouchbaseSessionManager manager = BenchmarkSessions.startedManager(store);
+        String id = BenchmarkSessions.store(manager, store,
+                BenchmarkSessions.attributes(attributes, BenchmarkSessions.MIXED));
+
+        server = new Server();
+        connector = new LocalConnector(server);
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setSessionHandler(new SessionHandler(manager));
+        context.addServlet(new ServletHolder(new SessionServlet()), "/*");
+        if (filter) {
+            context.addFilter(new FilterHolder(new HttpSessionCookieFilter()), "/*",
+                    EnumSet.of(DispatcherType.REQUEST));
+        }
+        server.setHandler(context);
+        server.start();
+
+        request = "GET / HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + ("existing".equals(session) ? "Cookie: JSESSIONID=" + id + "\r\n" : "")
+                + "\r\n";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Benchmark
+    public String request() throws Exception {
+        return connector.getResponses(request);
+    }
+
+    /**
+     * Reads one attribute of the session, creating the session when the request has none
+     */
+    private static final class SessionServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            HttpSession httpSession = req.getSession(true);
+            Object value = httpSession.getAttribute("a0");
+            resp.setStatus(value != null ? HttpServletResponse.SC_OK : HttpServletResponse.SC_NO_CONTENT);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The request lifecycle of CouchbaseSessionManager against an InMemorySessionStore, so that only the cost of the
+ * manager itself is measured: loading a session, a request that only reads it, a request that changes it, the write
+ * of a changed session and renewing the id of a session.
+ *
+ * This lives in the package of the library to reach the protected manager methods jetty calls.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionManagerBenchmark {
+
+    @Param({"4", "32", "128"})
+    private int attributes;
+
+    @Param({BenchmarkSessions.SCALAR, BenchmarkSessions.OBJECT, BenchmarkSessions.MIXED})
+    private String shape;
+
+    private CouchbaseSessionManager manager;
+
+    private String id;
+
+    private CouchbaseHttpSession writable;
+
+    private String[] renewIds;
+
+    private int renewed;
+
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        InMemorySessionStore store = new InMemorySessionStore();
+        manager = BenchmarkSessions.startedManager(store);
+        id = BenchmarkSessions.store(manager, store, BenchmarkSessions.attributes(attributes, shape));
+
+        writable = (CouchbaseHttpSession) manager.getSession(
+                BenchmarkSessions.store(manager, store, BenchmarkSessions.attributes(attributes, shape)));
+        writable.setWrite(true);
+
+        renewIds = new String[] {BenchmarkSessions.store(manager, store,
+                BenchmarkSessions.attributes(attributes, shape)), "renewed" + id};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        manager.stop();
+    }
+
+    /**
+     * Load a session, as jetty does when a request carries a session cookie
+     *
+     * @return
+     */
+    @Benchmark
+    public Object getSession() {
+        return manager.getSession(id);
+    }
+
+    /**
+     * A request that reads one attribute of its session
+     *
+     * @return
+     */
+    @Benchmark
+    public Object readRequest() {
+        CouchbaseHttpSession session = (CouchbaseHttpSession) manager.getSession(id);
+        manager.access(session, false);
+        Object value = session.getAttribute("a0");
+        manager.complete(session);
+        return value;
+    }
+
+    /**
+     * A request that changes one attribute of its session, which is written when the request completes
+     *
+     * @return
+     */
+    @Benchmark
+    public Object writeRequest() {
+        CouchbaseHttpSession session = (CouchbaseHttpSession) manager.getSession(id);
+        manager.access(session, false);
+        session.setWrite(true);
+        session.setAttribute("a0", ++counter);
+        manager.complete(session);
+        return session;
+    }
+
+    /**
+     * Only the write of a session with one changed attribute
+     *
+     * @return
+     */
+    @Benchmark
+    public Object updateSession() {
+        writable.setAttribute("a0", ++counter);
+        manager.updateSession(writable);
+        return writable;
+    }
+
+    /**
+     * Move a session to a new id, back and forth between two ids
+     *
+     * @return
+     */
+    @Benchmark
+    public Object renewSessionId() {
+        String from = renewIds[renewed & 1];
+        String to = renewIds[++renewed & 1];
+        manager.renewSessionId(from, from, to, to);
+        return to;
+    }
+}
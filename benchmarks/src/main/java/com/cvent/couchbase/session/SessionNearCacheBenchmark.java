@@ -0,0 +1,83 @@
+package com.cvent.couchbase.session;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SessionNearCache under concurrent requests for many sessions, mostly reads with a write now and then, to measure
+ * how much the requests wait on each other for its locks. Run it with -t to compare thread counts, and with a maxWeight
+ * below 2MB for a cache of a single segment.
+ *
+ * This lives in the package of the library to reach the package-private cache methods the manager calls.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class SessionNearCacheBenchmark {
+
+    @Param({"1048576", "67108864"})
+    private long maxWeight;
+
+    @Param({"10000"})
+    private int sessions;
+
+    private SessionNearCache cache;
+
+    private String[] ids;
+
+    private byte[] content;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cache = new SessionNearCache(maxWeight, 1, TimeUnit.HOURS);
+        content = new byte[64];
+        ids = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            ids[i] = "session" + i;
+            cache.update(ids[i], content, i, 1, 0);
+        }
+    }
+
+    /**
+     * A read served from the cache
+     *
+     * @return
+     */
+    @Benchmark
+    public Object get() {
+        return cache.get(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+
+    /**
+     * A request that reads its session, writing it one time in ten
+     *
+     * @return
+     */
+    @Benchmark
+    public Object mixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String id = ids[random.nextInt(ids.length)];
+        if (random.nextInt(10) == 0) {
+            cache.update(id, content, 0, 2, 0);
+            return id;
+        }
+        return cache.get(id);
+    }
+}
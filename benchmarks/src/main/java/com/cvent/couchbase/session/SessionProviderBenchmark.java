@@ -0,0 +1,113 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import com.sun.jersey.api.model.Parameter;
+import com.sun.jersey.spi.inject.Injectable;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-request cost of injecting a session with CouchbaseHttpSessionProvider, compared with a request that gets
+ * its session from the manager directly. Both complete the request, so the difference is what the provider adds on
+ * top of loading the session.
+ *
+ * The request is a proxy that only answers getSession, which is all the provider asks of it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionProviderBenchmark {
+
+    @Param({"4", "32", "128"})
+    private int attributes;
+
+    @Param({BenchmarkSessions.SCALAR, BenchmarkSessions.MIXED})
+    private String shape;
+
+    @Param({"false", "true"})
+    private boolean lazyAttributes;
+
+    private CouchbaseSessionManager manager;
+
+    private String id;
+
+    private Injectable<?> injectable;
+
+    /**
+     * The session of the request being benchmarked
+     */
+    private CouchbaseHttpSession current;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        InMemorySessionStore store = new InMemorySessionStore();
+        manager = BenchmarkSessions.startedManager(store);
+        manager.setLazyAttributes(lazyAttributes);
+        id = BenchmarkSessions.store(manager, store, BenchmarkSessions.attributes(attributes, shape));
+
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+                    if ("getSession".equals(method.getName())) {
+                        return current;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        ThreadLocal<HttpServletRequest> requests = ThreadLocal.withInitial(() -> request);
+
+        Method resource = getClass().getDeclaredMethod("resource", CouchbaseHttpSession.class);
+        CouchbaseSession annotation = (CouchbaseSession) resource.getParameterAnnotations()[0][0];
+        Parameter parameter = new Parameter(resource.getParameterAnnotations()[0], annotation,
+                Parameter.Source.UNKNOWN, null, CouchbaseHttpSession.class, CouchbaseHttpSession.class);
+        injectable = new CouchbaseHttpSessionProvider(requests).getInjectable(null, annotation, parameter);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        manager.stop();
+    }
+
+    /**
+     * The resource method whose parameter is injected
+     *
+     * @param session
+     */
+    private static void resource(@CouchbaseSession(attributes = "a0") CouchbaseHttpSession session) {
+        // nop
+    }
+
+    @Benchmark
+    public Object direct() {
+        current = (CouchbaseHttpSession) manager.getSession(id);
+        manager.access(current, false);
+        Object value = current.getAttribute("a0");
+        manager.complete(current);
+        return value;
+    }
+
+    @Benchmark
+    public Object provider() {
+        current = (CouchbaseHttpSession) manager.getSession(id);
+        manager.access(current, false);
+        Object value = ((CouchbaseHttpSession) injectable.getValue()).getAttribute("a0");
+        manager.complete(current);
+        return value;
+    }
+}
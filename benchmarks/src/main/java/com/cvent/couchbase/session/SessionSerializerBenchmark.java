@@ -0,0 +1,89 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.benchmarks.SessionCodecBenchmark;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares reading and writing a session document through jackson databind (the whole document as a map, then copied
+ * into the session) with the streaming SessionSerializer. Run with -prof gc to compare the allocation per operation.
+ *
+ * This lives in the package of the library to reach the package-private serializer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionSerializerBenchmark {
+
+    @Param({"json", "smile"})
+    private String format;
+
+    @Param({"4", "32"})
+    private int attributes;
+
+    @Param({BenchmarkSessions.SCALAR, BenchmarkSessions.OBJECT, BenchmarkSessions.LIST, BenchmarkSessions.MIXED})
+    private String shape;
+
+    private SessionCodec codec;
+
+    private Map<String, Object> document;
+
+    private SessionSerializer.Stamp stamp;
+
+    private byte[] content;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        codec = "smile".equals(format) ? SessionCodec.smile() : SessionCodec.json(new ObjectMapper());
+        document = SessionCodecBenchmark.sessionDocument(BenchmarkSessions.attributes(attributes, shape));
+        long now = System.currentTimeMillis();
+        stamp = new SessionSerializer.Stamp(now, now, 1800, now, 1);
+        content = codec.encode(document);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> databindRead() throws IOException {
+        Map<?, ?> decoded = codec.decode(content, Map.class);
+        Map<String, Object> session = new HashMap<>();
+        session.putAll((Map<String, Object>) decoded.get(SessionSerializer.ATTRIBUTES));
+        return session;
+    }
+
+    @Benchmark
+    public Map<String, Object> streamingRead() throws IOException {
+        Map<String, Object> session = new HashMap<>();
+        SessionSerializer.read(codec, content, session::put);
+        return session;
+    }
+
+    @Benchmark
+    public byte[] databindWrite() throws IOException {
+        return codec.encode(document);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public byte[] streamingWrite() throws IOException {
+        return SessionSerializer.write(codec, null, stamp, "id",
+                (Map<String, Object>) document.get(SessionSerializer.ATTRIBUTES));
+    }
+}
@@ -0,0 +1,115 @@
+package com.cvent.couchbase.session.benchmarks;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares reading and writing a typed session attribute with jackson databind (through an ObjectReader and
+ * ObjectWriter built once, as the session codec does) against the SessionAttributeCodec generated for it by the
+ * annotation processor. Run with -prof gc to compare the allocation per operation as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GeneratedCodecBenchmark {
+
+    @Param({"json", "smile"})
+    private String format;
+
+    private ObjectMapper mapper;
+
+    private ObjectReader reader;
+
+    private ObjectWriter writer;
+
+    private UserProfile profile;
+
+    private byte[] content;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mapper = "smile".equals(format) ? new ObjectMapper(new SmileFactory()) : new ObjectMapper();
+        reader = mapper.reader(UserProfile.class);
+        writer = mapper.writer();
+        profile = userProfile();
+        content = mapper.writeValueAsBytes(profile);
+    }
+
+    @Benchmark
+    public int databindWrite() throws IOException {
+        out.reset();
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            writer.writeValue(generator, profile);
+        }
+        return out.size();
+    }
+
+    @Benchmark
+    public int generatedWrite() throws IOException {
+        out.reset();
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            UserProfileSessionCodec.INSTANCE.write(profile, generator);
+        }
+        return out.size();
+    }
+
+    @Benchmark
+    public UserProfile databindRead() throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(content)) {
+            return reader.readValue(parser);
+        }
+    }
+
+    @Benchmark
+    public UserProfile generatedRead() throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(content)) {
+            parser.nextToken();
+            return UserProfileSessionCodec.INSTANCE.read(parser);
+        }
+    }
+
+    private static UserProfile userProfile() {
+        UserProfile profile = new UserProfile();
+        profile.firstName = "Jane";
+        profile.lastName = "Doe";
+        profile.email = "jane.doe@example.com";
+        profile.locale = "en_US";
+        profile.userId = 48151623L;
+        profile.loginCount = 42;
+        profile.verified = true;
+        profile.role = UserProfile.Role.PLANNER;
+        profile.lastLogin = System.currentTimeMillis();
+        profile.recentEvents = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            profile.recentEvents.add(UUID.randomUUID().toString());
+        }
+        return profile;
+    }
+}
@@ -0,0 +1,93 @@
+package com.cvent.couchbase.session.benchmarks;
+
+import com.cvent.couchbase.session.BenchmarkSessions;
+import com.cvent.couchbase.session.SessionCodec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the time to encode and decode a session document, and its stored size, for each SessionCodec. The stored
+ * size of every combination is printed when its trial starts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionCodecBenchmark {
+
+    @Param({"json", "smile"})
+    private String format;
+
+    @Param({"4", "32"})
+    private int attributes;
+
+    private SessionCodec codec;
+
+    private Map<String, Object> document;
+
+    private byte[] content;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        codec = "smile".equals(format) ? SessionCodec.smile() : SessionCodec.json(new ObjectMapper());
+        document = sessionDocument(attributes);
+        content = codec.encode(document);
+
+        System.out.println();
+        System.out.println("Stored size of " + format + " with " + attributes + " attributes: " + content.length
+                + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return codec.encode(document);
+    }
+
+    @Benchmark
+    public Map<?, ?> decode() throws IOException {
+        return codec.decode(content, Map.class);
+    }
+
+    /**
+     * @param count
+     * @return A document laid out like a stored session, with a typical mix of attribute values
+     */
+    public static Map<String, Object> sessionDocument(int count) {
+        return sessionDocument(BenchmarkSessions.attributes(count, BenchmarkSessions.MIXED));
+    }
+
+    /**
+     * @param attributes
+     * @return A document laid out like a stored session holding the attributes
+     */
+    public static Map<String, Object> sessionDocument(Map<String, Object> attributes) {
+        long now = System.currentTimeMillis();
+        Map<String, Object> document = new LinkedHashMap<>();
+        document.put("attributes", attributes);
+        document.put("sessionId", UUID.randomUUID().toString());
+        document.put("creationTime", now);
+        document.put("lastSaved", now);
+        document.put("lastTouched", now);
+        document.put("maxInactiveInterval", 1800);
+        document.put("version", 1L);
+        return document;
+    }
+}
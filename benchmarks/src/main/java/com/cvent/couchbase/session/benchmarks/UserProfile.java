@@ -0,0 +1,38 @@
+package com.cvent.couchbase.session.benchmarks;
+
+import com.cvent.couchbase.session.GenerateSessionCodec;
+import java.util.List;
+
+/**
+ * A typical typed session attribute, with a codec generated by the processor
+ */
+@GenerateSessionCodec(attributes = "profile")
+public class UserProfile {
+
+    /**
+     * The role of a user
+     */
+    public enum Role {
+        ATTENDEE, PLANNER, ADMIN
+    }
+
+    public String firstName;
+
+    public String lastName;
+
+    public String email;
+
+    public String locale;
+
+    public long userId;
+
+    public int loginCount;
+
+    public boolean verified;
+
+    public Role role;
+
+    public Long lastLogin;
+
+    public List<String> recentEvents;
+}
@@ -0,0 +1,423 @@
+package com.cvent.couchbase.session.load;
+
+import com.cvent.couchbase.session.SessionTrace;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Works out offline how well a SessionNearCache would do on the traffic of a node, from a SessionTrace or an access
+ * log, before it's enabled: the hit ratio for a range of cache sizes (in entries and in bytes of serialized sessions)
+ * and staleness windows, and the cache size and heap needed for a target hit ratio.
+ *
+ * The LRU figures, which is the policy of SessionNearCache, come from the stack distances of the reads in one pass
+ * (see StackDistance), so they hold for every cache size at once. A read is a hit if the session was accessed within
+ * the cache size and, with a staleness window, was last read from couchbase or written within the window. Whether it
+ * was last read from couchbase is decided as if the cache never evicted it, which only overstates the staleness
+ * misses of the smallest caches. A TinyLFU (frequency-aware admission) cache of each size is simulated alongside, with
+ * no staleness window, to show what a frequency-aware policy would gain.
+ *
+ * An access log is a CSV file of lines time in msec,session id,operation,size in bytes where the operation is one of
+ * CREATE, READ, MISS, WRITE or REMOVE. Lines starting with # are skipped.
+ *
+ * Options are given as --name=value, run with --help for the list.
+ */
+public final class CacheSizer {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("trace", null);
+        DEFAULTS.put("format", "trace");
+        DEFAULTS.put("entries", "10000,100000,1000000");
+        DEFAULTS.put("bytes", "64MB,256MB,1GB,4GB");
+        DEFAULTS.put("staleness", "0,1s,10s,60s");
+        DEFAULTS.put("targets", "0.5,0.8,0.9,0.95,0.99");
+    }
+
+    private static final String USAGE = "Options, as --name=value:\n"
+            + "  trace      the SessionTrace file or access log to read\n"
+            + "  format     trace for a SessionTrace, csv for an access log\n"
+            + "  entries    cache sizes in entries to report\n"
+            + "  bytes      cache sizes in bytes of serialized sessions (KB, MB or GB) to report\n"
+            + "  staleness  staleness windows to report, 0 for none (a version-checked cache)\n"
+            + "  targets    hit ratios to find the cache size and heap for\n";
+
+    /**
+     * Roughly the heap taken by an entry of SessionNearCache besides the serialized session: the map entry, the key,
+     * the cache entry and the array header
+     */
+    private static final long ENTRY_OVERHEAD = 176;
+
+    private final long[] entryCapacities;
+    private final long[] byteCapacities;
+    private final long[] staleness;
+    private final double[] targets;
+
+    private final StackDistance stack = new StackDistance();
+    private final Map<Long, Session> sessions = new HashMap<>();
+
+    /**
+     * The stack distances of the reads that hit with each staleness window, in entries and in bytes
+     */
+    private final Histogram[] countDistances;
+    private final Histogram[] weightDistances;
+
+    private final TinyLfuSimulator[] entryTinyLfu;
+    private final TinyLfuSimulator[] byteTinyLfu;
+
+    private long accesses;
+    private long reads;
+    private long missing;
+    private long readWeight;
+    private long lastTime;
+
+    private CacheSizer(CommandLine options) {
+        entryCapacities = parseList(options.get("entries"), CacheSizer::parseCount);
+        byteCapacities = parseList(options.get("bytes"), CacheSizer::parseBytes);
+        staleness = parseList(options.get("staleness"), value -> "0".equals(value) ? 0
+                : LatencyDistribution.parseDuration(value) / 1000);
+        String[] targetValues = options.get("targets").split(",");
+        targets = new double[targetValues.length];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = Double.parseDouble(targetValues[i]);
+        }
+
+        countDistances = new Histogram[staleness.length];
+        weightDistances = new Histogram[staleness.length];
+        for (int i = 0; i < staleness.length; i++) {
+            countDistances[i] = new Histogram(3);
+            weightDistances[i] = new Histogram(3);
+        }
+
+        entryTinyLfu = new TinyLfuSimulator[entryCapacities.length];
+        for (int i = 0; i < entryCapacities.length; i++) {
+            entryTinyLfu[i] = new TinyLfuSimulator(entryCapacities[i], false, entryCapacities[i]);
+        }
+        byteTinyLfu = new TinyLfuSimulator[byteCapacities.length];
+        for (int i = 0; i < byteCapacities.length; i++) {
+            //Sessions are typically a few KB
+            byteTinyLfu[i] = new TinyLfuSimulator(byteCapacities[i], true, byteCapacities[i] / 4096);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        CommandLine options = CommandLine.parse(args, DEFAULTS, USAGE);
+        if (options == null) {
+            return;
+        }
+
+        CacheSizer sizer = new CacheSizer(options);
+        File file = new File(options.get("trace"));
+        if ("csv".equals(options.get("format"))) {
+            sizer.readLog(file);
+        } else {
+            sizer.readTrace(file);
+        }
+        sizer.report();
+    }
+
+    private void readTrace(File file) throws IOException {
+        try (SessionTrace.Reader reader = SessionTrace.open(file)) {
+            SessionTrace.Entry entry;
+            while ((entry = reader.next()) != null) {
+                access(entry.getOperation(), entry.getTime(), entry.getId(), entry.getSize());
+            }
+        }
+    }
+
+    private void readLog(File file) throws IOException {
+        long start = -1;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length < 4) {
+                    throw new IOException("Expected time,id,operation,size but was " + line);
+                }
+                long time = Long.parseLong(fields[0].trim());
+                if (start < 0) {
+                    start = time;
+                }
+                access(SessionTrace.Operation.valueOf(fields[2].trim().toUpperCase(Locale.ROOT)),
+                        (time - start) * 1000, hash(fields[1].trim()), Long.parseLong(fields[3].trim()));
+            }
+        }
+    }
+
+    /**
+     * @param operation
+     * @param time In microseconds
+     * @param id
+     * @param size The size of the session document, 0 if unknown
+     */
+    private void access(SessionTrace.Operation operation, long time, long id, long size) {
+        accesses++;
+        lastTime = time;
+
+        Session session = sessions.get(id);
+        switch (operation) {
+            case CREATE:
+            case WRITE:
+                if (session == null) {
+                    session = new Session(staleness.length);
+                    sessions.put(id, session);
+                }
+                session.resize(size);
+                session.fill(time);
+                stack.access(id, session.size);
+                for (TinyLfuSimulator simulator : entryTinyLfu) {
+                    simulator.write(id, session.size);
+                }
+                for (TinyLfuSimulator simulator : byteTinyLfu) {
+                    simulator.write(id, session.size);
+                }
+                break;
+            case READ:
+                reads++;
+                if (session == null) {
+                    //Created before the trace started, a cold miss
+                    session = new Session(staleness.length);
+                    sessions.put(id, session);
+                    session.resize(size);
+                    session.fill(time);
+                    stack.access(id, session.size);
+                } else {
+                    session.resize(size);
+                    if (stack.access(id, session.size)) {
+                        for (int i = 0; i < staleness.length; i++) {
+                            if (staleness[i] == 0 || time - session.filled[i] <= staleness[i]) {
+                                countDistances[i].recordValue(stack.getCount());
+                                weightDistances[i].recordValue(stack.getWeight());
+                            } else {
+                                //Stale, read from couchbase again
+                                session.filled[i] = time;
+                            }
+                        }
+                    }
+                }
+                readWeight += session.size;
+                for (TinyLfuSimulator simulator : entryTinyLfu) {
+                    simulator.read(id, session.size, true);
+                }
+                for (TinyLfuSimulator simulator : byteTinyLfu) {
+                    simulator.read(id, session.size, true);
+                }
+                break;
+            case MISS:
+                reads++;
+                missing++;
+                for (TinyLfuSimulator simulator : entryTinyLfu) {
+                    simulator.read(id, 0, false);
+                }
+                for (TinyLfuSimulator simulator : byteTinyLfu) {
+                    simulator.read(id, 0, false);
+                }
+                break;
+            default:
+                sessions.remove(id);
+                stack.remove(id);
+                for (TinyLfuSimulator simulator : entryTinyLfu) {
+                    simulator.remove(id);
+                }
+                for (TinyLfuSimulator simulator : byteTinyLfu) {
+                    simulator.remove(id);
+                }
+                break;
+        }
+    }
+
+    private void report() {
+        long meanSize = reads > missing ? readWeight / (reads - missing) : 0;
+        System.out.printf("%d accesses over %.1fs, %d reads (%d of sessions that don't exist), %d live sessions, "
+                + "mean size read %d bytes%n", accesses, lastTime / 1e6, reads, missing, sessions.size(), meanSize);
+
+        System.out.println();
+        System.out.println("LRU hit ratio by entries");
+        printHeader("staleness", entryCapacities, false);
+        for (int i = 0; i < staleness.length; i++) {
+            System.out.printf("%-10s", stalenessName(staleness[i]));
+            for (long capacity : entryCapacities) {
+                System.out.printf(" %10.3f", hitRatio(countDistances[i], capacity));
+            }
+            System.out.println();
+        }
+
+        System.out.println();
+        System.out.println("LRU hit ratio by bytes of serialized sessions (maxWeight)");
+        printHeader("staleness", byteCapacities, true);
+        for (int i = 0; i < staleness.length; i++) {
+            System.out.printf("%-10s", stalenessName(staleness[i]));
+            for (long capacity : byteCapacities) {
+                System.out.printf(" %10.3f", hitRatio(weightDistances[i], capacity));
+            }
+            System.out.println();
+        }
+
+        System.out.println();
+        System.out.println("TinyLFU hit ratio, no staleness window");
+        printHeader("entries", entryCapacities, false);
+        System.out.printf("%-10s", "");
+        for (TinyLfuSimulator simulator : entryTinyLfu) {
+            System.out.printf(" %10.3f", simulator.getHitRatio());
+        }
+        System.out.println();
+        printHeader("bytes", byteCapacities, true);
+        System.out.printf("%-10s", "");
+        for (TinyLfuSimulator simulator : byteTinyLfu) {
+            System.out.printf(" %10.3f", simulator.getHitRatio());
+        }
+        System.out.println();
+
+        System.out.println();
+        System.out.println("LRU cache needed for a hit ratio, heap estimated with " + ENTRY_OVERHEAD
+                + " bytes per entry besides the session");
+        System.out.printf("%-10s %7s %12s %12s %12s%n", "staleness", "target", "entries", "maxWeight", "heap");
+        for (int i = 0; i < staleness.length; i++) {
+            for (double target : targets) {
+                long entries = capacityFor(countDistances[i], target);
+                long weight = capacityFor(weightDistances[i], target);
+                if (entries < 0 || weight < 0) {
+                    System.out.printf("%-10s %7.3f  unreachable, at most %.3f%n", stalenessName(staleness[i]),
+                            target, (double) countDistances[i].getTotalCount() / Math.max(1, reads));
+                    continue;
+                }
+                long heap = weight + (meanSize > 0 ? weight / meanSize : entries) * ENTRY_OVERHEAD;
+                System.out.printf("%-10s %7.3f %12d %12s %12s%n", stalenessName(staleness[i]), target, entries,
+                        formatBytes(weight), formatBytes(heap));
+            }
+        }
+    }
+
+    /**
+     * @return The fraction of all reads at a stack distance within the capacity
+     */
+    private double hitRatio(Histogram distances, long capacity) {
+        if (reads == 0 || distances.getTotalCount() == 0) {
+            return 0;
+        }
+        return (double) distances.getCountBetweenValues(0, capacity) / reads;
+    }
+
+    /**
+     * @return The smallest capacity with the target hit ratio, or -1 if no capacity reaches it
+     */
+    private long capacityFor(Histogram distances, double target) {
+        double needed = target * reads;
+        long hittable = distances.getTotalCount();
+        if (hittable == 0 || needed > hittable) {
+            return -1;
+        }
+        return distances.getValueAtPercentile(100.0 * needed / hittable);
+    }
+
+    private static void printHeader(String name, long[] capacities, boolean bytes) {
+        System.out.printf("%-10s", name);
+        for (long capacity : capacities) {
+            System.out.printf(" %10s", bytes ? formatBytes(capacity) : String.valueOf(capacity));
+        }
+        System.out.println();
+    }
+
+    private static String stalenessName(long micros) {
+        return micros == 0 ? "none" : micros % 1000000 == 0 ? micros / 1000000 + "s" : micros / 1000 + "ms";
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes >= 1L << 30) {
+            return String.format("%.1fGB", bytes / (double) (1L << 30));
+        }
+        if (bytes >= 1L << 20) {
+            return String.format("%.1fMB", bytes / (double) (1L << 20));
+        }
+        if (bytes >= 1L << 10) {
+            return String.format("%.1fKB", bytes / (double) (1L << 10));
+        }
+        return bytes + "B";
+    }
+
+    private static long parseCount(String value) {
+        return Long.parseLong(value);
+    }
+
+    private static long parseBytes(String value) {
+        String upper = value.toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (upper.endsWith("KB")) {
+            unit = 1L << 10;
+        } else if (upper.endsWith("MB")) {
+            unit = 1L << 20;
+        } else if (upper.endsWith("GB")) {
+            unit = 1L << 30;
+        }
+        String number = unit == 1 ? upper : upper.substring(0, upper.length() - 2);
+        return Long.parseLong(number) * unit;
+    }
+
+    private static long[] parseList(String value, ToLongFunction<String> parser) {
+        String[] values = value.split(",");
+        long[] parsed = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            parsed[i] = parser.applyAsLong(values[i].trim());
+        }
+        return parsed;
+    }
+
+    /**
+     * A 64 bit hash of a session id from an access log, FNV-1a mixed with part of the finalizer of murmur3
+     */
+    private static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * What the simulator knows about a session
+     */
+    private static final class Session {
+
+        private long size;
+
+        /**
+         * When the session was last read from couchbase or written, for each staleness window
+         */
+        private final long[] filled;
+
+        private Session(int windows) {
+            filled = new long[windows];
+        }
+
+        /**
+         * @param newSize The size the session was accessed with, 0 if unknown which keeps the last known size
+         */
+        private void resize(long newSize) {
+            if (newSize > 0) {
+                size = newSize;
+            }
+        }
+
+        private void fill(long time) {
+            for (int i = 0; i < filled.length; i++) {
+                filled[i] = time;
+            }
+        }
+    }
+}
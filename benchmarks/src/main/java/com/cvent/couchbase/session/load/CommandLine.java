@@ -0,0 +1,111 @@
+package com.cvent.couchbase.session.load;
+
+import com.cvent.couchbase.session.InMemorySessionStore;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The --name=value options of the load tools
+ */
+final class CommandLine {
+
+    /**
+     * The usage of the options added by addStoreOptions
+     */
+    static final String STORE_USAGE = ""
+            + "  latency           latency of the store: none, fixed:D, uniform:MIN:MAX or lognormal:MEDIAN:P99\n"
+            + "  timeout           timeout of a store operation\n"
+            + "  failover-every    how often the master fails over, 0s for never\n"
+            + "  failover-for      how long a failover lasts, reads fall back to a replica meanwhile\n";
+
+    private final Map<String, String> options;
+
+    private CommandLine(Map<String, String> options) {
+        this.options = options;
+    }
+
+    /**
+     * Add the options of the store made by newStore
+     *
+     * @param defaults
+     */
+    static void addStoreOptions(Map<String, String> defaults) {
+        defaults.put("latency", "lognormal:500us:5ms");
+        defaults.put("timeout", "2500ms");
+        defaults.put("failover-every", "0s");
+        defaults.put("failover-for", "0s");
+    }
+
+    /**
+     * @param args
+     * @param defaults The options taken and their default values, null for an option that must be given
+     * @param usage Printed for --help or a bad option
+     * @return The options, or null if the tool should exit
+     */
+    static CommandLine parse(String[] args, Map<String, String> defaults, String usage) {
+        Map<String, String> options = new LinkedHashMap<>(defaults);
+        for (String arg : args) {
+            if ("--help".equals(arg)) {
+                System.out.println(usage + "\nDefaults: " + defaults);
+                return null;
+            }
+            int eq = arg.indexOf('=');
+            String name = arg.startsWith("--") && eq > 0 ? arg.substring(2, eq) : null;
+            if (name == null || !defaults.containsKey(name)) {
+                System.err.println("Unknown option " + arg + "\n" + usage);
+                return null;
+            }
+            options.put(name, arg.substring(eq + 1));
+        }
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getValue() == null) {
+                System.err.println("Missing option --" + option.getKey() + "\n" + usage);
+                return null;
+            }
+        }
+        return new CommandLine(options);
+    }
+
+    String get(String name) {
+        return options.get(name);
+    }
+
+    int getInt(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    long getLong(String name) {
+        return Long.parseLong(options.get(name));
+    }
+
+    double getDouble(String name) {
+        return Double.parseDouble(options.get(name));
+    }
+
+    boolean getBoolean(String name) {
+        return Boolean.parseBoolean(options.get(name));
+    }
+
+    /**
+     * @param name An option holding a duration with a unit of us, ms or s, or 0
+     * @return The duration in nanoseconds
+     */
+    long getNanos(String name) {
+        String value = options.get(name);
+        return "0".equals(value) ? 0 : LatencyDistribution.parseDuration(value);
+    }
+
+    /**
+     * @return A store over an InMemorySessionStore with the latency, timeout and failover options
+     */
+    FaultInjectingSessionStore newStore() {
+        return new FaultInjectingSessionStore(new InMemorySessionStore(),
+                LatencyDistribution.parse(get("latency")),
+                getNanos("timeout"), getNanos("failover-every"), getNanos("failover-for"));
+    }
+
+    @Override
+    public String toString() {
+        return options.toString();
+    }
+}
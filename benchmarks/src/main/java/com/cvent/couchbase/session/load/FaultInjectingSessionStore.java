@@ -0,0 +1,200 @@
+package com.cvent.couchbase.session.load;
+
+import com.couchbase.client.core.RequestCancelledException;
+import com.couchbase.client.java.ReplicaMode;
+import com.cvent.couchbase.session.SessionDocument;
+import com.cvent.couchbase.session.SessionFragment;
+import com.cvent.couchbase.session.SessionMutation;
+import com.cvent.couchbase.session.SessionStore;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.statistic.CounterStatistic;
+import rx.Observable;
+import rx.functions.Func0;
+
+/**
+ * A SessionStore that stands in for a couchbase cluster under load by delaying every operation of another store
+ * (ie. InMemorySessionStore) by a latency drawn from a distribution, and failing it the way the couchbase client
+ * would:
+ *
+ * <ul>
+ * <li>An operation whose latency would exceed the timeout fails with a TimeoutException once the timeout has
+ * passed.</li>
+ * <li>During a failover window every operation on the master fails with a RequestCancelledException (a
+ * CouchbaseException), as it does while the cluster is failing a node over, so reads take the replica fallback of
+ * the manager. Replica reads keep working.</li>
+ * </ul>
+ *
+ * The delegate is started and stopped along with this store.
+ */
+@ManagedObject("Fault injecting session store")
+public final class FaultInjectingSessionStore extends ContainerLifeCycle implements SessionStore {
+
+    private final SessionStore delegate;
+    private final LatencyDistribution latency;
+    private final long timeout;
+    private final long failoverEvery;
+    private final long failoverFor;
+    private final long epoch = System.nanoTime();
+
+    private final CounterStatistic operations = new CounterStatistic();
+    private final CounterStatistic replicaReads = new CounterStatistic();
+    private final CounterStatistic timeouts = new CounterStatistic();
+    private final CounterStatistic failedOver = new CounterStatistic();
+
+    /**
+     * Create a new store
+     *
+     * @param delegate The store holding the documents
+     * @param latency The latency of every operation
+     * @param timeout The timeout of an operation in nanoseconds
+     * @param failoverEvery How often in nanoseconds a failover window starts, or 0 for none
+     * @param failoverFor How long in nanoseconds a failover window lasts
+     */
+    public FaultInjectingSessionStore(SessionStore delegate, LatencyDistribution latency, long timeout,
+            long failoverEvery, long failoverFor) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be > 0 but was " + timeout);
+        }
+        if (failoverEvery > 0 && (failoverFor <= 0 || failoverFor >= failoverEvery)) {
+            throw new IllegalArgumentException("failoverFor must be > 0 and < failoverEvery but was " + failoverFor);
+        }
+        this.delegate = delegate;
+        this.latency = latency;
+        this.timeout = timeout;
+        this.failoverEvery = failoverEvery;
+        this.failoverFor = failoverFor;
+        addBean(delegate);
+    }
+
+    @Override
+    public Observable<SessionDocument> get(String id) {
+        return master(() -> delegate.get(id));
+    }
+
+    @Override
+    public Observable<SessionDocument> getAndTouch(String id, int expiry) {
+        return master(() -> delegate.getAndTouch(id, expiry));
+    }
+
+    @Override
+    public Observable<SessionDocument> getFromReplica(String id, ReplicaMode mode) {
+        replicaReads.increment();
+        return delay(() -> delegate.getFromReplica(id, mode));
+    }
+
+    @Override
+    public Observable<SessionDocument> insert(SessionDocument document) {
+        return master(() -> delegate.insert(document));
+    }
+
+    @Override
+    public Observable<SessionDocument> upsert(SessionDocument document) {
+        return master(() -> delegate.upsert(document));
+    }
+
+    @Override
+    public Observable<SessionDocument> replace(SessionDocument document) {
+        return master(() -> delegate.replace(document));
+    }
+
+    @Override
+    public Observable<SessionDocument> remove(String id) {
+        return master(() -> delegate.remove(id));
+    }
+
+    @Override
+    public Observable<SessionFragment> lookupIn(String id, Collection<String> paths) {
+        return master(() -> delegate.lookupIn(id, paths));
+    }
+
+    @Override
+    public Observable<SessionFragment> mutateIn(String id, int expiry, List<SessionMutation> mutations) {
+        return master(() -> delegate.mutateIn(id, expiry, mutations));
+    }
+
+    /**
+     * @return Whether the master is being failed over right now
+     */
+    public boolean isFailingOver() {
+        return failoverEvery > 0 && (System.nanoTime() - epoch) % failoverEvery < failoverFor;
+    }
+
+    /**
+     * An operation on the master, which fails during a failover window
+     */
+    private <T> Observable<T> master(Func0<Observable<T>> operation) {
+        return Observable.defer(() -> {
+            if (isFailingOver()) {
+                failedOver.increment();
+                return delay(() -> Observable.<T>error(
+                        new RequestCancelledException("Request cancelled while the master was failing over")));
+            }
+            return delay(operation);
+        });
+    }
+
+    /**
+     * An operation that only starts after its latency, or fails once the timeout has passed
+     */
+    private <T> Observable<T> delay(Func0<Observable<T>> operation) {
+        return Observable.defer(() -> {
+            operations.increment();
+            long nanos = latency.next(ThreadLocalRandom.current());
+            if (nanos >= timeout) {
+                timeouts.increment();
+                return Observable.timer(timeout, TimeUnit.NANOSECONDS)
+                        .flatMap(tick -> Observable.<T>error(new TimeoutException()));
+            }
+            if (nanos <= 0) {
+                return operation.call();
+            }
+            return Observable.timer(nanos, TimeUnit.NANOSECONDS).flatMap(tick -> operation.call());
+        });
+    }
+
+    /**
+     * @return The number of operations issued, including replica reads
+     */
+    @ManagedAttribute("number of operations issued")
+    public long getOperations() {
+        return operations.getTotal();
+    }
+
+    /**
+     * @return The number of replica reads
+     */
+    @ManagedAttribute("number of replica reads")
+    public long getReplicaReads() {
+        return replicaReads.getTotal();
+    }
+
+    /**
+     * @return The number of operations that timed out
+     */
+    @ManagedAttribute("number of operations that timed out")
+    public long getTimeouts() {
+        return timeouts.getTotal();
+    }
+
+    /**
+     * @return The number of operations failed by a failover window
+     */
+    @ManagedAttribute("number of operations failed by a failover window")
+    public long getFailedOver() {
+        return failedOver.getTotal();
+    }
+
+    @Override
+    public String toString() {
+        return "latency " + latency + ", timeout " + TimeUnit.NANOSECONDS.toMillis(timeout) + "ms"
+                + (failoverEvery > 0 ? ", failover for " + TimeUnit.NANOSECONDS.toMillis(failoverFor) + "ms every "
+                        + TimeUnit.NANOSECONDS.toMillis(failoverEvery) + "ms" : "");
+    }
+}
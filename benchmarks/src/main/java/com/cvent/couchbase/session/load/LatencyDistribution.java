@@ -0,0 +1,142 @@
+package com.cvent.couchbase.session.load;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distribution of latencies for FaultInjectingSessionStore, given as a spec on the command line:
+ *
+ * <ul>
+ * <li>none: no latency at all</li>
+ * <li>fixed:DURATION: always the same latency</li>
+ * <li>uniform:MIN:MAX: evenly spread between two latencies</li>
+ * <li>lognormal:MEDIAN:P99: the long tailed shape of real network latencies, given by its median and 99th
+ * percentile</li>
+ * </ul>
+ *
+ * Durations are a number with a unit of us, ms or s, ie. lognormal:800us:12ms.
+ */
+public abstract class LatencyDistribution {
+
+    /**
+     * The number of standard deviations of the 99th percentile of a normal distribution
+     */
+    private static final double Z_99 = 2.326;
+
+    /**
+     * @param random
+     * @return A latency in nanoseconds
+     */
+    public abstract long next(Random random);
+
+    /**
+     * @param spec
+     * @return The distribution described by the spec
+     * @throws IllegalArgumentException if the spec can't be parsed
+     */
+    public static LatencyDistribution parse(String spec) {
+        String[] parts = spec.split(":");
+        switch (parts[0]) {
+            case "none":
+                return fixed(0);
+            case "fixed":
+                expectArguments(spec, parts, 1);
+                return fixed(parseDuration(parts[1]));
+            case "uniform":
+                expectArguments(spec, parts, 2);
+                return uniform(parseDuration(parts[1]), parseDuration(parts[2]));
+            case "lognormal":
+                expectArguments(spec, parts, 2);
+                return logNormal(parseDuration(parts[1]), parseDuration(parts[2]));
+            default:
+                throw new IllegalArgumentException("Unknown latency distribution " + spec);
+        }
+    }
+
+    /**
+     * @param nanos
+     * @return A distribution that is always the same latency
+     */
+    public static LatencyDistribution fixed(long nanos) {
+        return new LatencyDistribution() {
+            @Override
+            public long next(Random random) {
+                return nanos;
+            }
+
+            @Override
+            public String toString() {
+                return "fixed " + nanos + "ns";
+            }
+        };
+    }
+
+    /**
+     * @param min The shortest latency in nanoseconds
+     * @param max The longest latency in nanoseconds
+     * @return A distribution of latencies evenly spread between min and max
+     */
+    public static LatencyDistribution uniform(long min, long max) {
+        if (max < min) {
+            throw new IllegalArgumentException("max must be >= min but was " + max + " < " + min);
+        }
+        return new LatencyDistribution() {
+            @Override
+            public long next(Random random) {
+                return min + (long) (random.nextDouble() * (max - min));
+            }
+
+            @Override
+            public String toString() {
+                return "uniform " + min + "ns to " + max + "ns";
+            }
+        };
+    }
+
+    /**
+     * @param median The median latency in nanoseconds
+     * @param p99 The 99th percentile latency in nanoseconds
+     * @return A log-normal distribution of latencies with the given median and 99th percentile
+     */
+    public static LatencyDistribution logNormal(long median, long p99) {
+        if (median <= 0 || p99 < median) {
+            throw new IllegalArgumentException("Need 0 < median <= p99 but was " + median + " and " + p99);
+        }
+        double mu = Math.log(median);
+        double sigma = Math.log((double) p99 / median) / Z_99;
+        return new LatencyDistribution() {
+            @Override
+            public long next(Random random) {
+                return (long) Math.exp(mu + sigma * random.nextGaussian());
+            }
+
+            @Override
+            public String toString() {
+                return "lognormal median " + median + "ns, p99 " + p99 + "ns";
+            }
+        };
+    }
+
+    /**
+     * @param value A number with a unit of us, ms or s
+     * @return The duration in nanoseconds
+     */
+    static long parseDuration(String value) {
+        if (value.endsWith("us")) {
+            return TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value.substring(0, value.length() - 2)));
+        }
+        if (value.endsWith("ms")) {
+            return TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value.substring(0, value.length() - 2)));
+        }
+        if (value.endsWith("s")) {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(value.substring(0, value.length() - 1)));
+        }
+        throw new IllegalArgumentException("Duration needs a unit of us, ms or s: " + value);
+    }
+
+    private static void expectArguments(String spec, String[] parts, int count) {
+        if (parts.length != count + 1) {
+            throw new IllegalArgumentException("Expected " + count + " durations in " + spec);
+        }
+    }
+}
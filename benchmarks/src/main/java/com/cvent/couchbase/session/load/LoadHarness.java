@@ -0,0 +1,309 @@
+package com.cvent.couchbase.session.load;
+
+import com.cvent.couchbase.session.BenchmarkSessions;
+import com.cvent.couchbase.session.CouchbaseHttpSessionProvider;
+import com.cvent.couchbase.session.CouchbaseSessionManager;
+import com.cvent.couchbase.session.HttpSessionCookieFilter;
+import com.cvent.couchbase.session.SessionNearCache;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.jersey.api.core.DefaultResourceConfig;
+import com.sun.jersey.spi.container.servlet.ServletContainer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.DispatcherType;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * An end to end load test on one machine: an embedded jetty with the CouchbaseSessionManager, the
+ * HttpSessionCookieFilter and a jersey resource taking a CouchbaseSession (LoadResource), over an
+ * InMemorySessionStore behind a FaultInjectingSessionStore that plays the part of the cluster. Virtual clients go
+ * through visits like browsers do: a visit logs in, which creates a session, keeps sending its cookie with every
+ * following request and is then replaced by a new visitor.
+ *
+ * Throughput and latency percentiles are reported every interval and for the whole run after the warmup. Latency is
+ * recorded with HdrHistogram in microseconds. With a target rate the clients are paced, and latency is measured from
+ * when a request should have been sent so that a stall isn't hidden by the clients waiting on it.
+ *
+ * Options are given as --name=value, run with --help for the list.
+ */
+public final class LoadHarness {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("clients", "64");
+        DEFAULTS.put("duration", "60s");
+        DEFAULTS.put("warmup", "10s");
+        DEFAULTS.put("report", "5s");
+        DEFAULTS.put("rate", "0");
+        DEFAULTS.put("visit", "20");
+        DEFAULTS.put("write-ratio", "0.1");
+        DEFAULTS.put("attributes", "16");
+        DEFAULTS.put("shape", BenchmarkSessions.MIXED);
+        DEFAULTS.put("hedge-percentile", "0");
+        DEFAULTS.put("near-cache", "0");
+        CommandLine.addStoreOptions(DEFAULTS);
+    }
+
+    private static final String USAGE = "Options, as --name=value:\n"
+            + "  clients           number of concurrent virtual clients\n"
+            + "  duration          how long to measure for, ie. 60s\n"
+            + "  warmup            how long to run before measuring\n"
+            + "  report            how often to report the latest interval\n"
+            + "  rate              target requests per second over all clients, 0 for as fast as they can\n"
+            + "  visit             mean number of requests of a visit before a client becomes a new visitor\n"
+            + "  write-ratio       fraction of the requests of a visit that update the session\n"
+            + "  attributes        number of attributes in a session\n"
+            + "  shape             shape of the attribute values: scalar, object, list or mixed\n"
+            + "  hedge-percentile  hedgePercentile of the manager, 0 for no hedging\n"
+            + "  near-cache        max bytes of a near cache on the manager, 0 for none\n"
+            + CommandLine.STORE_USAGE;
+
+    private final CommandLine options;
+
+    private final Recorder recorder = new Recorder(3);
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong visits = new AtomicLong();
+
+    /**
+     * The errors after the warmup
+     */
+    private long measuredErrors;
+
+    private volatile String base;
+
+    private LoadHarness(CommandLine options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine options = CommandLine.parse(args, DEFAULTS, USAGE);
+        if (options != null) {
+            new LoadHarness(options).run();
+        }
+    }
+
+    private void run() throws Exception {
+        int clients = options.getInt("clients");
+
+        FaultInjectingSessionStore store = options.newStore();
+
+        CouchbaseSessionManager manager = new CouchbaseSessionManager("load::session::", store, new ObjectMapper(),
+                1800);
+        manager.setHedgePercentile(options.getDouble("hedge-percentile"));
+        long nearCache = options.getLong("near-cache");
+        if (nearCache > 0) {
+            manager.setNearCache(new SessionNearCache(nearCache));
+        }
+
+        DefaultResourceConfig config = new DefaultResourceConfig(CouchbaseHttpSessionProvider.class);
+        config.getSingletons().add(new LoadResource(BenchmarkSessions.attributes(
+                options.getInt("attributes"), options.get("shape"))));
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setSessionHandler(new SessionHandler(manager));
+        context.addFilter(new FilterHolder(new HttpSessionCookieFilter()), "/*", EnumSet.of(DispatcherType.REQUEST));
+        context.addServlet(new ServletHolder(new ServletContainer(config)), "/*");
+
+        Server server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(context);
+        server.start();
+
+        //Keep a connection open for every client rather than the default of 5
+        System.setProperty("http.maxConnections", String.valueOf(clients));
+        base = "http://localhost:" + connector.getLocalPort() + "/session";
+
+        System.out.println("Store: " + store);
+        System.out.println("Options: " + options);
+
+        long start = System.nanoTime();
+        long measureFrom = start + options.getNanos("warmup");
+        long end = measureFrom + options.getNanos("duration");
+        double rate = options.getDouble("rate");
+        long pace = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * clients / rate) : 0;
+
+        List<Thread> threads = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            Thread thread = new Thread(() -> client(pace, end), "load-client-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        Histogram total = report(start, measureFrom, end);
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        server.stop();
+
+        System.out.println();
+        System.out.printf("Requests %d, %.1f/s, errors %d, visits %d%n", total.getTotalCount(),
+                total.getTotalCount() / (options.getNanos("duration") / 1e9), measuredErrors, visits.get());
+        System.out.printf("Store operations %d, timeouts %d, failed over %d, replica reads %d%n",
+                store.getOperations(), store.getTimeouts(), store.getFailedOver(), store.getReplicaReads());
+        System.out.printf("Manager hedged reads %d, hedge wins %d%n", manager.getHedgedReads(), manager.getHedgeWins());
+        System.out.println("Latency percentiles (msec):");
+        total.outputPercentileDistribution(System.out, 1000.0);
+    }
+
+    /**
+     * Print the latest interval every report period until the end
+     *
+     * @return The latencies recorded after the warmup
+     */
+    private Histogram report(long start, long measureFrom, long end) throws InterruptedException {
+        long period = options.getNanos("report");
+        Histogram total = new Histogram(3);
+        Histogram interval = null;
+        long errorsBefore = 0;
+
+        System.out.println("   time  phase    req/s    p50 ms    p99 ms  p99.9 ms    max ms  errors");
+        long last = start;
+        while (last < end) {
+            //An interval never straddles the end of the warmup
+            long next = Math.min(last + period, last < measureFrom ? measureFrom : end);
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+
+            interval = recorder.getIntervalHistogram(interval);
+            long errorsNow = errors.get();
+            boolean measuring = next > measureFrom;
+            if (measuring) {
+                total.add(interval);
+                measuredErrors += errorsNow - errorsBefore;
+            }
+
+            System.out.printf("%6ds  %-6s %8.1f %9.2f %9.2f %9.2f %9.2f %7d%n",
+                    TimeUnit.NANOSECONDS.toSeconds(next - start),
+                    measuring ? "run" : "warmup",
+                    interval.getTotalCount() / ((next - last) / 1e9),
+                    interval.getValueAtPercentile(50) / 1000.0,
+                    interval.getValueAtPercentile(99) / 1000.0,
+                    interval.getValueAtPercentile(99.9) / 1000.0,
+                    interval.getMaxValue() / 1000.0,
+                    errorsNow - errorsBefore);
+            errorsBefore = errorsNow;
+            last = next;
+        }
+        return total;
+    }
+
+    /**
+     * A virtual client, going from visit to visit until the end
+     *
+     * @param pace The time in nanoseconds between the requests of the client, or 0 to send them back to back
+     * @param end
+     */
+    private void client(long pace, long end) {
+        Random random = ThreadLocalRandom.current();
+        double writeRatio = options.getDouble("write-ratio");
+        double visit = options.getDouble("visit");
+
+        String cookie = null;
+        int remaining = 0;
+        long next = System.nanoTime();
+
+        while (next < end) {
+            if (pace > 0) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            } else {
+                next = System.nanoTime();
+            }
+
+            try {
+                if (cookie == null || remaining <= 0) {
+                    visits.incrementAndGet();
+                    cookie = send("POST", "/login", null);
+                    remaining = visitLength(random, visit);
+                } else {
+                    send(random.nextDouble() < writeRatio ? "POST" : "GET", "", cookie);
+                    remaining--;
+                }
+                recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - next));
+            } catch (IOException ex) {
+                errors.incrementAndGet();
+                cookie = null;
+            }
+
+            next += pace;
+        }
+    }
+
+    /**
+     * @return The number of requests following the login of a visit, geometrically distributed around the mean
+     */
+    private static int visitLength(Random random, double mean) {
+        if (mean <= 1) {
+            return 0;
+        }
+        return (int) (Math.log(1 - random.nextDouble()) / Math.log(1 - 1 / mean));
+    }
+
+    /**
+     * @param method
+     * @param path
+     * @param cookie The session cookie to send, or null
+     * @return The session cookie set by the response, or null
+     * @throws IOException if the request failed or didn't succeed
+     */
+    private String send(String method, String path, String cookie) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(base + path).openConnection();
+        connection.setRequestMethod(method);
+        if (cookie != null) {
+            connection.setRequestProperty("Cookie", cookie);
+        }
+
+        int status = connection.getResponseCode();
+        try (InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            //Read the whole body so the connection can be reused
+            if (body != null) {
+                byte[] buffer = new byte[1024];
+                while (body.read(buffer) >= 0) {
+                    // nop
+                }
+            }
+        }
+        if (status / 100 != 2) {
+            throw new IOException(method + " " + path + " answered " + status);
+        }
+
+        List<String> setCookies = connection.getHeaderFields().get("Set-Cookie");
+        if (setCookies != null) {
+            for (String setCookie : setCookies) {
+                if (setCookie.startsWith("JSESSIONID=")) {
+                    int end = setCookie.indexOf(';');
+                    return end > 0 ? setCookie.substring(0, end) : setCookie;
+                }
+            }
+        }
+        return null;
+    }
+}
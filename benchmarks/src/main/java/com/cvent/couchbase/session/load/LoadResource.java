@@ -0,0 +1,57 @@
+package com.cvent.couchbase.session.load;
+
+import com.cvent.couchbase.session.CouchbaseSession;
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import java.util.Map;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * The resource the load harness drives: a visit logs in, which fills a new session with its attributes, and then
+ * reads the session or updates a counter in it.
+ */
+@Path("/session")
+@Produces(MediaType.TEXT_PLAIN)
+public final class LoadResource {
+
+    static final String COUNTER = "counter";
+
+    private final Map<String, Object> attributes;
+
+    /**
+     * @param attributes The attributes a session is filled with when the visit logs in
+     */
+    public LoadResource(Map<String, Object> attributes) {
+        this.attributes = attributes;
+    }
+
+    @POST
+    @Path("/login")
+    public String login(@CouchbaseSession(write = true) CouchbaseHttpSession session) {
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            session.setAttribute(attribute.getKey(), attribute.getValue());
+        }
+        session.setAttribute(COUNTER, 0L);
+        return session.getId();
+    }
+
+    @GET
+    public String read(@CouchbaseSession(create = false, attributes = COUNTER) CouchbaseHttpSession session) {
+        return session != null ? String.valueOf(session.getAttribute(COUNTER)) : "";
+    }
+
+    @POST
+    public String update(@CouchbaseSession(create = false, write = true, attributes = COUNTER)
+            CouchbaseHttpSession session) {
+        if (session == null) {
+            return "";
+        }
+        Object counter = session.getAttribute(COUNTER);
+        long next = (counter instanceof Number ? ((Number) counter).longValue() : 0) + 1;
+        session.setAttribute(COUNTER, next);
+        return String.valueOf(next);
+    }
+}
@@ -0,0 +1,161 @@
+package com.cvent.couchbase.session.load;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The LRU stack distances of a stream of accesses (Mattson's stack algorithm), both as a number of entries and as
+ * the total weight of the entries, in one pass. An access at distance d hits in every LRU cache holding at least d
+ * entries (or weight), so a histogram of the distances gives the hit ratio of every cache size at once.
+ *
+ * Each session holds one position in the order of the last accesses, and two Fenwick trees over the positions hold
+ * a count of one and the weight of the session. The distance of an access is the sum over its position and every
+ * later one, after which the session moves to a new last position. The positions are renumbered once they run out,
+ * so memory is bounded by the number of live sessions rather than the number of accesses.
+ */
+final class StackDistance {
+
+    /**
+     * The distances of a session never accessed before, which misses in any cache
+     */
+    static final long COLD = -1;
+
+    private final Map<Long, Slot> slots = new HashMap<>();
+
+    private long[] counts;
+    private long[] weights;
+    private int next = 1;
+
+    private long distanceCount;
+    private long distanceWeight;
+
+    StackDistance() {
+        resize(1 << 16);
+    }
+
+    /**
+     * Access a session, moving it to the top of the stack
+     *
+     * @param id
+     * @param weight The weight of the session from now on
+     * @return false if this is the first access of the session, otherwise the distances are in getCount and
+     * getWeight
+     */
+    boolean access(long id, long weight) {
+        //Out of the stack while it moves, so a compaction doesn't renumber it
+        Slot slot = slots.remove(id);
+        boolean seen = slot != null;
+        if (seen) {
+            distanceCount = suffix(counts, slot.position);
+            distanceWeight = suffix(weights, slot.position);
+            add(slot.position, -1, -slot.weight);
+        } else {
+            distanceCount = COLD;
+            distanceWeight = COLD;
+            slot = new Slot();
+        }
+
+        if (next >= counts.length) {
+            compact();
+        }
+        slot.position = next++;
+        slot.weight = weight;
+        add(slot.position, 1, weight);
+        slots.put(id, slot);
+        return seen;
+    }
+
+    /**
+     * Forget a session, ie. once it's removed
+     *
+     * @param id
+     */
+    void remove(long id) {
+        Slot slot = slots.remove(id);
+        if (slot != null) {
+            add(slot.position, -1, -slot.weight);
+        }
+    }
+
+    /**
+     * @return The number of distinct sessions accessed since the previous access of the one just accessed, including
+     * itself
+     */
+    long getCount() {
+        return distanceCount;
+    }
+
+    /**
+     * @return The total weight of the distinct sessions accessed since the previous access of the one just accessed,
+     * including itself with the weight it had then
+     */
+    long getWeight() {
+        return distanceWeight;
+    }
+
+    /**
+     * @return The number of sessions in the stack
+     */
+    int size() {
+        return slots.size();
+    }
+
+    /**
+     * Renumber the live sessions from 1 in the order of their last access, growing the trees if they're over half
+     * full
+     */
+    private void compact() {
+        List<Slot> live = new ArrayList<>(slots.values());
+        live.sort((a, b) -> Integer.compare(a.position, b.position));
+
+        int length = counts.length;
+        if (live.size() * 2 >= length) {
+            length *= 2;
+        }
+        resize(length);
+
+        next = 1;
+        for (Slot slot : live) {
+            slot.position = next++;
+            add(slot.position, 1, slot.weight);
+        }
+    }
+
+    private void resize(int length) {
+        counts = new long[length];
+        weights = new long[length];
+    }
+
+    private void add(int position, long count, long weight) {
+        for (int i = position; i < counts.length; i += i & -i) {
+            counts[i] += count;
+            weights[i] += weight;
+        }
+    }
+
+    /**
+     * @return The sum of the tree from the position to the end
+     */
+    private long suffix(long[] tree, int position) {
+        return prefix(tree, next - 1) - prefix(tree, position - 1);
+    }
+
+    private static long prefix(long[] tree, int position) {
+        long sum = 0;
+        for (int i = position; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * The position and weight of a session in the stack
+     */
+    private static final class Slot {
+
+        private int position;
+        private long weight;
+    }
+}
@@ -0,0 +1,153 @@
+package com.cvent.couchbase.session.load;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Simulates a frequency-aware cache of a given capacity: an LRU cache with TinyLFU admission, where a session that
+ * isn't cached is only admitted if it has been accessed more often recently than each entry it would evict. How often
+ * is estimated by a count-min sketch of 4 bit counters that are halved every 10 accesses per counter, so the
+ * frequencies age.
+ *
+ * Unlike LRU this can't be derived from stack distances, so each capacity is simulated on its own.
+ */
+final class TinyLfuSimulator {
+
+    private final long capacity;
+    private final boolean weighted;
+
+    private final LinkedHashMap<Long, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long used;
+
+    private final byte[][] sketch;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    private long lookups;
+    private long hits;
+
+    /**
+     * @param capacity The capacity of the cache, in entries or weight
+     * @param weighted Whether the capacity is a weight, otherwise each entry counts as one
+     * @param expectedEntries About how many entries the cache will hold, to size the sketch
+     */
+    TinyLfuSimulator(long capacity, boolean weighted, long expectedEntries) {
+        this.capacity = capacity;
+        this.weighted = weighted;
+
+        int width = Integer.highestOneBit((int) Math.max(1024, Math.min(1 << 24, expectedEntries)) * 2 - 1);
+        sketch = new byte[4][width];
+        mask = width - 1;
+        sampleSize = width * 10;
+    }
+
+    /**
+     * A read of a session, which hits if it's cached
+     *
+     * @param id
+     * @param weight The weight of the session
+     * @param exists Whether the session exists, only one that does is cached after a miss
+     */
+    void read(long id, long weight, boolean exists) {
+        increment(id);
+        lookups++;
+        if (entries.get(id) != null) {
+            hits++;
+        } else if (exists) {
+            admit(id, weight);
+        }
+    }
+
+    /**
+     * A write of a session, which replaces a cached copy or is admitted like a miss
+     *
+     * @param id
+     * @param weight The new weight of the session
+     */
+    void write(long id, long weight) {
+        increment(id);
+        Long previous = entries.remove(id);
+        if (previous != null) {
+            used -= cost(previous);
+        }
+        admit(id, weight);
+    }
+
+    /**
+     * @param id A session that was removed
+     */
+    void remove(long id) {
+        Long previous = entries.remove(id);
+        if (previous != null) {
+            used -= cost(previous);
+        }
+    }
+
+    /**
+     * @return The fraction of the reads that hit
+     */
+    double getHitRatio() {
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    private void admit(long id, long weight) {
+        long cost = weighted ? weight : 1;
+        if (cost > capacity) {
+            return;
+        }
+
+        int frequency = frequency(id);
+        Iterator<Map.Entry<Long, Long>> eldest = entries.entrySet().iterator();
+        while (used + cost > capacity && eldest.hasNext()) {
+            Map.Entry<Long, Long> victim = eldest.next();
+            if (frequency <= frequency(victim.getKey())) {
+                return;
+            }
+            used -= cost(victim.getValue());
+            eldest.remove();
+        }
+
+        entries.put(id, weight);
+        used += cost;
+    }
+
+    private long cost(long weight) {
+        return weighted ? weight : 1;
+    }
+
+    private void increment(long id) {
+        boolean added = false;
+        for (int row = 0; row < sketch.length; row++) {
+            int index = index(id, row);
+            if (sketch[row][index] < 15) {
+                sketch[row][index]++;
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize) {
+            for (byte[] counters : sketch) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+
+    private int frequency(long id) {
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < sketch.length; row++) {
+            frequency = Math.min(frequency, sketch[row][index(id, row)]);
+        }
+        return frequency;
+    }
+
+    private int index(long id, int row) {
+        long h = (id + row * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 31;
+        return (int) h & mask;
+    }
+}
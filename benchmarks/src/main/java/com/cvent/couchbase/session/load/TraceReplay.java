@@ -0,0 +1,364 @@
+package com.cvent.couchbase.session.load;
+
+import com.cvent.couchbase.session.BenchmarkSessions;
+import com.cvent.couchbase.session.CouchbaseSessionManager;
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import com.cvent.couchbase.session.SessionNearCache;
+import com.cvent.couchbase.session.SessionTrace;
+import com.cvent.couchbase.session.SessionWriteBehind;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Replays a SessionTrace recorded by a CouchbaseSessionManager against a manager configured from the command line,
+ * so that a store, near cache, touch policy or write-behind setting can be tried on the traffic of a real node.
+ *
+ * Every session the trace uses without creating it is created before the replay starts, with a document of the size
+ * it had. The entries are then replayed at the speed they were recorded (or scaled, or as fast as possible): a create
+ * creates a session with a document of the recorded size, a read is a request that only reads its session, a write is
+ * a request that changes as many attributes as were recorded and a remove invalidates the session. The operations of
+ * a session are replayed in order, those of different sessions concurrently over a number of lanes.
+ *
+ * Latency is measured from when the entry was due, so a replay that falls behind shows in its latencies. The store is
+ * a FaultInjectingSessionStore, as with LoadHarness.
+ *
+ * Options are given as --name=value, run with --help for the list.
+ */
+public final class TraceReplay {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("trace", null);
+        DEFAULTS.put("speed", "1");
+        DEFAULTS.put("lanes", "16");
+        DEFAULTS.put("lazy-load", "false");
+        DEFAULTS.put("touch-fraction", "0");
+        DEFAULTS.put("delta-writes", "false");
+        DEFAULTS.put("async-writes", "false");
+        DEFAULTS.put("write-behind", "0");
+        DEFAULTS.put("write-behind-threads", "2");
+        DEFAULTS.put("near-cache", "0");
+        DEFAULTS.put("near-cache-staleness", "0");
+        CommandLine.addStoreOptions(DEFAULTS);
+    }
+
+    private static final String USAGE = "Options, as --name=value:\n"
+            + "  trace                 the trace file to replay\n"
+            + "  speed                 1 for the recorded speed, 2 for twice as fast, 0 for as fast as possible\n"
+            + "  lanes                 number of threads replaying, the entries of a session always share one\n"
+            + "  lazy-load             lazyLoad of the manager\n"
+            + "  touch-fraction        touchFraction of the manager\n"
+            + "  delta-writes          deltaWrites of the manager\n"
+            + "  async-writes          asyncWrites of the manager\n"
+            + "  write-behind          capacity of a write-behind queue on the manager, 0 for none\n"
+            + "  write-behind-threads  number of workers of the write-behind queue\n"
+            + "  near-cache            max bytes of a near cache on the manager, 0 for none\n"
+            + "  near-cache-staleness  how long the near cache serves an entry unchecked, 0 for version-checked\n"
+            + CommandLine.STORE_USAGE;
+
+    /**
+     * Roughly the size of a session document without its attributes
+     */
+    private static final int DOCUMENT_OVERHEAD = 160;
+
+    private static final Runnable STOP = () -> { };
+
+    private final CommandLine options;
+
+    private final File trace;
+
+    private final CouchbaseSessionManager manager;
+
+    private final Map<SessionTrace.Operation, Recorder> latencies = new EnumMap<>(SessionTrace.Operation.class);
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private TraceReplay(CommandLine options, CouchbaseSessionManager manager) {
+        this.options = options;
+        this.trace = new File(options.get("trace"));
+        this.manager = manager;
+        for (SessionTrace.Operation operation : SessionTrace.Operation.values()) {
+            latencies.put(operation, new Recorder(3));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine options = CommandLine.parse(args, DEFAULTS, USAGE);
+        if (options == null) {
+            return;
+        }
+
+        FaultInjectingSessionStore store = options.newStore();
+        CouchbaseSessionManager manager = new CouchbaseSessionManager("replay::session::", store, new ObjectMapper(),
+                1800);
+        manager.setLazyLoad(options.getBoolean("lazy-load"));
+        manager.setTouchFraction(options.getDouble("touch-fraction"));
+        manager.setDeltaWrites(options.getBoolean("delta-writes"));
+        manager.setAsyncWrites(options.getBoolean("async-writes"));
+        if (options.getInt("write-behind") > 0) {
+            manager.setWriteBehind(new SessionWriteBehind(options.getInt("write-behind"),
+                    options.getInt("write-behind-threads")));
+        }
+        if (options.getLong("near-cache") > 0) {
+            long staleness = options.getNanos("near-cache-staleness");
+            manager.setNearCache(staleness > 0
+                    ? new SessionNearCache(options.getLong("near-cache"), staleness, TimeUnit.NANOSECONDS)
+                    : new SessionNearCache(options.getLong("near-cache")));
+        }
+
+        System.out.println("Store: " + store);
+        System.out.println("Options: " + options);
+
+        manager.start();
+        try {
+            new TraceReplay(options, manager).run(store);
+        } finally {
+            manager.stop();
+        }
+    }
+
+    private void run(FaultInjectingSessionStore store) throws IOException, InterruptedException {
+        Lane[] lanes = new Lane[options.getInt("lanes")];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane("trace-replay-" + i);
+            lanes[i].start();
+        }
+
+        long existing = createExisting(lanes);
+        System.out.println("Created " + existing + " sessions that existed before the trace started");
+
+        double speed = options.getDouble("speed");
+        Histogram lag = new Histogram(3);
+        long entries = 0;
+        long start = System.nanoTime();
+        long traceEnd = 0;
+
+        try (SessionTrace.Reader reader = SessionTrace.open(trace)) {
+            SessionTrace.Entry entry;
+            while ((entry = reader.next()) != null) {
+                long due = speed > 0 ? start + (long) (TimeUnit.MICROSECONDS.toNanos(entry.getTime()) / speed)
+                        : System.nanoTime();
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } else {
+                    lag.recordValue(TimeUnit.NANOSECONDS.toMicros(-wait));
+                }
+
+                SessionTrace.Entry replayed = entry;
+                lane(lanes, entry.getId()).put(() -> replay(replayed, due));
+                traceEnd = entry.getTime();
+                entries++;
+            }
+        }
+
+        for (Lane lane : lanes) {
+            lane.put(STOP);
+        }
+        for (Lane lane : lanes) {
+            lane.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        report(entries, elapsed, traceEnd, lag, store);
+    }
+
+    /**
+     * Create the sessions the trace uses without creating them, with the size they were first seen with
+     *
+     * @return The number of sessions created
+     */
+    private long createExisting(Lane[] lanes) throws IOException, InterruptedException {
+        Set<Long> created = new HashSet<>();
+        Map<Long, Long> existing = new HashMap<>();
+        try (SessionTrace.Reader reader = SessionTrace.open(trace)) {
+            SessionTrace.Entry entry;
+            while ((entry = reader.next()) != null) {
+                Long id = entry.getId();
+                switch (entry.getOperation()) {
+                    case CREATE:
+                        created.add(id);
+                        break;
+                    case MISS:
+                        break;
+                    default:
+                        if (!created.contains(id) && !existing.containsKey(id)) {
+                            existing.put(id, entry.getSize());
+                        }
+                        break;
+                }
+            }
+        }
+
+        CountDownLatch done = new CountDownLatch(existing.size());
+        for (Map.Entry<Long, Long> session : existing.entrySet()) {
+            lane(lanes, session.getKey()).put(() -> {
+                try {
+                    BenchmarkSessions.create(manager, idOf(session.getKey()), payload(session.getValue()));
+                } catch (RuntimeException ex) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        errors.set(0);
+        return existing.size();
+    }
+
+    private void replay(SessionTrace.Entry entry, long due) {
+        String id = idOf(entry.getId());
+        try {
+            switch (entry.getOperation()) {
+                case CREATE:
+                    BenchmarkSessions.create(manager, id, payload(entry.getSize()));
+                    break;
+                case READ:
+                    request(id, 0);
+                    break;
+                case MISS:
+                    request("missing" + id, 0);
+                    break;
+                case WRITE:
+                    request(id, Math.max(1, entry.getChanged()));
+                    break;
+                default:
+                    BenchmarkSessions.remove(manager, id);
+                    break;
+            }
+            latencies.get(entry.getOperation()).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+        } catch (RuntimeException ex) {
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * A request reading its session and changing some of its attributes
+     *
+     * @param id
+     * @param changes The number of attributes to change
+     */
+    private void request(String id, int changes) {
+        CouchbaseHttpSession session = (CouchbaseHttpSession) manager.getSession(id);
+        if (session == null) {
+            return;
+        }
+        session.load();
+        if (!session.isValid()) {
+            return;
+        }
+
+        manager.access(session, false);
+        if (changes > 0) {
+            session.setWrite(true);
+            long value = counter.incrementAndGet();
+            for (int i = 0; i < changes; i++) {
+                session.setAttribute("changed" + i, value);
+            }
+        }
+        manager.complete(session);
+    }
+
+    private void report(long entries, long elapsed, long traceEnd, Histogram lag, FaultInjectingSessionStore store) {
+        System.out.println();
+        System.out.printf("Replayed %d entries covering %.1fs in %.1fs (%.1f/s), errors %d%n", entries,
+                traceEnd / 1e6, elapsed / 1e9, entries / (elapsed / 1e9), errors.get());
+        System.out.println("operation      count    p50 ms    p99 ms  p99.9 ms    max ms");
+        for (Map.Entry<SessionTrace.Operation, Recorder> operation : latencies.entrySet()) {
+            Histogram histogram = operation.getValue().getIntervalHistogram();
+            System.out.printf("%-9s %10d %9.2f %9.2f %9.2f %9.2f%n", operation.getKey(), histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMaxValue() / 1000.0);
+        }
+        System.out.printf("Dispatch lag behind the trace p99 %.2fms, max %.2fms%n",
+                lag.getValueAtPercentile(99) / 1000.0, lag.getMaxValue() / 1000.0);
+
+        System.out.printf("Store operations %d, timeouts %d, failed over %d, replica reads %d%n",
+                store.getOperations(), store.getTimeouts(), store.getFailedOver(), store.getReplicaReads());
+        System.out.printf("Touches issued %d, skipped %d, delta writes %d%n", manager.getTouchesIssued(),
+                manager.getTouchesSkipped(), manager.getDeltaWrites());
+
+        SessionNearCache nearCache = manager.getNearCache();
+        if (nearCache != null) {
+            long lookups = nearCache.getHits() + nearCache.getMisses();
+            System.out.printf("Near cache hits %d, misses %d (hit ratio %.3f), evictions %d, stale served %d%n",
+                    nearCache.getHits(), nearCache.getMisses(),
+                    lookups > 0 ? (double) nearCache.getHits() / lookups : 0,
+                    nearCache.getEvictions(), nearCache.getStaleServed());
+        }
+
+        SessionWriteBehind writeBehind = manager.getWriteBehind();
+        if (writeBehind != null) {
+            System.out.printf("Write-behind coalesced %d, overflowed %d, failed %d%n", writeBehind.getCoalesced(),
+                    writeBehind.getOverflowed(), writeBehind.getFailed());
+        }
+    }
+
+    private static Lane lane(Lane[] lanes, long id) {
+        return lanes[(int) Math.floorMod(id, (long) lanes.length)];
+    }
+
+    private static String idOf(long id) {
+        return Long.toHexString(id);
+    }
+
+    /**
+     * @return Attributes making a session document of about the size
+     */
+    private static Map<String, Object> payload(long size) {
+        char[] filler = new char[(int) Math.max(0, Math.min(Integer.MAX_VALUE, size - DOCUMENT_OVERHEAD))];
+        Arrays.fill(filler, 'x');
+        return Collections.singletonMap("payload", new String(filler));
+    }
+
+    /**
+     * A thread replaying the entries of the sessions assigned to it in order
+     */
+    private static final class Lane extends Thread {
+
+        private final BlockingQueue<Runnable> entries = new ArrayBlockingQueue<>(1024);
+
+        private Lane(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        private void put(Runnable entry) throws InterruptedException {
+            entries.put(entry);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Runnable entry;
+                while ((entry = entries.take()) != STOP) {
+                    entry.run();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
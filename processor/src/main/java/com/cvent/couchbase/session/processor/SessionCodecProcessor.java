@@ -0,0 +1,705 @@
+package com.cvent.couchbase.session.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates a SessionAttributeCodec for every type annotated with @GenerateSessionCodec, reading and writing its
+ * properties with the jackson streaming api the same way jackson databind would, and registers the generated codecs
+ * as services so that CouchbaseSessionManager finds them with a ServiceLoader.
+ *
+ * The codec of a type is generated in the package of the type, named after it with a SessionCodec suffix (with the
+ * enclosing types of a nested type joined by underscores). The processor only refers to the library by name so that
+ * it needs no dependency at all.
+ */
+@SupportedAnnotationTypes(SessionCodecProcessor.ANNOTATION)
+public final class SessionCodecProcessor extends AbstractProcessor {
+
+    static final String ANNOTATION = "com.cvent.couchbase.session.GenerateSessionCodec";
+
+    private static final String CODEC_INTERFACE = "com.cvent.couchbase.session.SessionAttributeCodec";
+
+    private static final String SERVICES = "META-INF/services/" + CODEC_INTERFACE;
+
+    private static final String SUFFIX = "SessionCodec";
+
+    /**
+     * The generated codecs of every round, registered once processing is over
+     */
+    private final Set<String> generated = new TreeSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeServices();
+            return false;
+        }
+
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    error(element, "@GenerateSessionCodec only applies to classes");
+                    continue;
+                }
+                generate((TypeElement) element);
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement type) {
+        if (!isSupportedType(type)) {
+            return;
+        }
+
+        List<Property> properties = properties(type);
+        if (properties == null) {
+            return;
+        }
+
+        String packageName = packageOf(type).getQualifiedName().toString();
+        String codecName = codecSimpleName(type);
+        String typeName = type.getQualifiedName().toString();
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("import com.fasterxml.jackson.core.JsonGenerator;\n")
+                .append("import com.fasterxml.jackson.core.JsonParser;\n")
+                .append("import com.fasterxml.jackson.core.JsonToken;\n")
+                .append("import com.fasterxml.jackson.core.type.TypeReference;\n")
+                .append("import java.io.IOException;\n\n")
+                .append("/**\n")
+                .append(" * SessionAttributeCodec of ").append(typeName).append(", generated by ")
+                .append(SessionCodecProcessor.class.getName()).append(". Do not edit.\n")
+                .append(" */\n")
+                .append("public final class ").append(codecName).append(" implements ").append(CODEC_INTERFACE)
+                .append('<').append(typeName).append("> {\n\n")
+                .append("    public static final ").append(codecName).append(" INSTANCE = new ").append(codecName)
+                .append("();\n\n")
+                .append("    private static final String[] ATTRIBUTES = {");
+        List<String> attributes = attributesOf(type);
+        for (int i = 0; i < attributes.size(); i++) {
+            source.append(i == 0 ? "" : ", ").append(literal(attributes.get(i)));
+        }
+        source.append("};\n");
+
+        for (int i = 0; i < properties.size(); i++) {
+            Property property = properties.get(i);
+            if (property.kind == Kind.DATABIND) {
+                source.append("\n    private static final TypeReference<").append(boxedName(property.type))
+                        .append("> TYPE_").append(i).append(" = new TypeReference<")
+                        .append(boxedName(property.type)).append(">() { };\n");
+            }
+        }
+
+        source.append("\n    @Override\n")
+                .append("    public Class<").append(typeName).append("> getType() {\n")
+                .append("        return ").append(typeName).append(".class;\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public String[] getAttributes() {\n")
+                .append("        return ATTRIBUTES.clone();\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public void write(").append(typeName)
+                .append(" value, JsonGenerator generator) throws IOException {\n")
+                .append("        if (value == null) {\n")
+                .append("            generator.writeNull();\n")
+                .append("            return;\n")
+                .append("        }\n\n")
+                .append("        generator.writeStartObject();\n");
+        for (Property property : properties) {
+            writeProperty(source, property);
+        }
+        source.append("        generator.writeEndObject();\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public ").append(typeName).append(" read(JsonParser parser) throws IOException {\n")
+                .append("        if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {\n")
+                .append("            return null;\n")
+                .append("        }\n")
+                .append("        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {\n")
+                .append("            throw new IOException(\"Expected an object for ").append(typeName)
+                .append(" but got \" + parser.getCurrentToken());\n")
+                .append("        }\n\n")
+                .append("        ").append(typeName).append(" value = new ").append(typeName).append("();\n")
+                .append("        while (parser.nextToken() == JsonToken.FIELD_NAME) {\n")
+                .append("            String field = parser.getCurrentName();\n")
+                .append("            JsonToken token = parser.nextToken();\n")
+                .append("            switch (field) {\n");
+        for (int i = 0; i < properties.size(); i++) {
+            readProperty(source, properties.get(i), i);
+        }
+        source.append("                default:\n")
+                .append("                    parser.skipChildren();\n")
+                .append("                    break;\n")
+                .append("            }\n")
+                .append("        }\n")
+                .append("        return value;\n")
+                .append("    }\n")
+                .append("}\n");
+
+        String qualifiedCodecName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedCodecName, type);
+            try (Writer writer = file.openWriter()) {
+                writer.write(source.toString());
+            }
+        } catch (IOException ex) {
+            error(type, "Failed to write " + qualifiedCodecName + ": " + ex);
+            return;
+        }
+        generated.add(qualifiedCodecName);
+    }
+
+    private boolean isSupportedType(TypeElement type) {
+        boolean supported = true;
+        if (type.getModifiers().contains(Modifier.ABSTRACT) || type.getModifiers().contains(Modifier.PRIVATE)) {
+            error(type, "@GenerateSessionCodec needs a concrete class that is not private");
+            supported = false;
+        }
+        if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) {
+            error(type, "@GenerateSessionCodec needs a nested class to be static");
+            supported = false;
+        } else if (type.getNestingKind().isNested() && type.getNestingKind() != NestingKind.MEMBER) {
+            error(type, "@GenerateSessionCodec does not apply to local or anonymous classes");
+            supported = false;
+        }
+        if (!type.getTypeParameters().isEmpty()) {
+            error(type, "@GenerateSessionCodec does not support generic classes");
+            supported = false;
+        }
+
+        boolean noArg = false;
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                noArg = true;
+            }
+        }
+        if (!noArg) {
+            error(type, "@GenerateSessionCodec needs a no-arg constructor that is not private");
+            supported = false;
+        }
+
+        if (hasJacksonAnnotations(type)) {
+            error(type, "@GenerateSessionCodec does not support jackson annotations, their meaning would be lost");
+            supported = false;
+        }
+        return supported;
+    }
+
+    /**
+     * @param type
+     * @return The properties of the type the way jackson databind finds them, or null if any of them is unusable
+     */
+    private List<Property> properties(TypeElement type) {
+        Map<String, Property> properties = new LinkedHashMap<>();
+        List<? extends Element> members = processingEnv.getElementUtils().getAllMembers(type);
+
+        for (VariableElement field : ElementFilter.fieldsIn(members)) {
+            Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.PUBLIC) && !modifiers.contains(Modifier.STATIC)
+                    && !modifiers.contains(Modifier.TRANSIENT) && !modifiers.contains(Modifier.FINAL)) {
+                String name = field.getSimpleName().toString();
+                properties.put(name, new Property(name, field.asType(), "value." + name, "value." + name + " = %s"));
+            }
+        }
+
+        //Accessors take precedence over fields of the same name, as with databind
+        for (ExecutableElement getter : ElementFilter.methodsIn(members)) {
+            String name = propertyName(getter);
+            if (name == null) {
+                continue;
+            }
+            ExecutableElement setter = setterOf(members, getter, name);
+            if (setter == null) {
+                continue;
+            }
+            properties.put(name, new Property(name, getter.getReturnType(),
+                    "value." + getter.getSimpleName() + "()", "value." + setter.getSimpleName() + "(%s)"));
+        }
+
+        List<Property> usable = new ArrayList<>(properties.size());
+        boolean valid = true;
+        for (Property property : properties.values()) {
+            if (property.type.getKind() == TypeKind.TYPEVAR || containsTypeVariable(property.type)) {
+                error(type, "Property " + property.name + " of a @GenerateSessionCodec type has a type variable");
+                valid = false;
+            }
+            usable.add(property);
+        }
+        return valid ? usable : null;
+    }
+
+    /**
+     * @param method
+     * @return The name of the property that a public getter is for, or null if it isn't one
+     */
+    private String propertyName(ExecutableElement method) {
+        Set<Modifier> modifiers = method.getModifiers();
+        if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.STATIC)
+                || !method.getParameters().isEmpty() || !method.getTypeParameters().isEmpty()) {
+            return null;
+        }
+
+        String name = method.getSimpleName().toString();
+        TypeKind returnKind = method.getReturnType().getKind();
+        if (name.startsWith("get") && name.length() > 3 && returnKind != TypeKind.VOID
+                && !"getClass".equals(name)) {
+            return mangle(name.substring(3));
+        }
+        if (name.startsWith("is") && name.length() > 2 && returnKind == TypeKind.BOOLEAN) {
+            return mangle(name.substring(2));
+        }
+        return null;
+    }
+
+    /**
+     * @param suffix The part of an accessor name after get, is or set
+     * @return The property name jackson gives the accessor, with the leading upper case letters in lower case
+     */
+    private static String mangle(String suffix) {
+        StringBuilder name = new StringBuilder(suffix);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            char lower = Character.toLowerCase(c);
+            if (c == lower) {
+                break;
+            }
+            name.setCharAt(i, lower);
+        }
+        return name.toString();
+    }
+
+    private ExecutableElement setterOf(List<? extends Element> members, ExecutableElement getter, String name) {
+        for (ExecutableElement method : ElementFilter.methodsIn(members)) {
+            Set<Modifier> modifiers = method.getModifiers();
+            String methodName = method.getSimpleName().toString();
+            if (modifiers.contains(Modifier.PUBLIC) && !modifiers.contains(Modifier.STATIC)
+                    && methodName.startsWith("set") && methodName.length() > 3
+                    && name.equals(mangle(methodName.substring(3))) && method.getParameters().size() == 1
+                    && processingEnv.getTypeUtils().isSameType(method.getParameters().get(0).asType(),
+                            getter.getReturnType())) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private boolean containsTypeVariable(TypeMirror type) {
+        if (type.getKind() == TypeKind.TYPEVAR) {
+            return true;
+        }
+        if (type.getKind() == TypeKind.ARRAY) {
+            return containsTypeVariable(((javax.lang.model.type.ArrayType) type).getComponentType());
+        }
+        if (type.getKind() == TypeKind.DECLARED) {
+            for (TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+                if (containsTypeVariable(argument)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean hasJacksonAnnotations(TypeElement type) {
+        List<Element> elements = new ArrayList<>(type.getEnclosedElements());
+        elements.add(type);
+        for (Element element : elements) {
+            for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+                if (annotation.getAnnotationType().toString().startsWith("com.fasterxml.jackson.")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void writeProperty(StringBuilder source, Property property) {
+        String name = literal(property.name);
+        String get = property.getter;
+        switch (property.kind) {
+            case BOOLEAN:
+                source.append("        generator.writeBooleanField(").append(name).append(", ").append(get)
+                        .append(");\n");
+                break;
+            case CHAR:
+                source.append("        generator.writeStringField(").append(name).append(", String.valueOf(")
+                        .append(get).append("));\n");
+                break;
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                source.append("        generator.writeNumberField(").append(name).append(", ").append(get)
+                        .append(");\n");
+                break;
+            case STRING:
+                source.append("        generator.writeStringField(").append(name).append(", ").append(get)
+                        .append(");\n");
+                break;
+            case BOXED:
+            case ENUM:
+                source.append("        {\n")
+                        .append("            ").append(boxedName(property.type)).append(" v = ").append(get)
+                        .append(";\n")
+                        .append("            if (v == null) {\n")
+                        .append("                generator.writeNullField(").append(name).append(");\n")
+                        .append("            } else {\n");
+                if (property.kind == Kind.ENUM) {
+                    source.append("                generator.writeStringField(").append(name)
+                            .append(", v.name());\n");
+                } else if (property.primitive == TypeKind.BOOLEAN) {
+                    source.append("                generator.writeBooleanField(").append(name).append(", v);\n");
+                } else if (property.primitive == TypeKind.CHAR) {
+                    source.append("                generator.writeStringField(").append(name)
+                            .append(", String.valueOf(v));\n");
+                } else {
+                    source.append("                generator.writeNumberField(").append(name).append(", v);\n");
+                }
+                source.append("            }\n")
+                        .append("        }\n");
+                break;
+            case GENERATED:
+                source.append("        generator.writeFieldName(").append(name).append(");\n")
+                        .append("        ").append(codecName(property.type)).append(".INSTANCE.write(")
+                        .append(get).append(", generator);\n");
+                break;
+            default:
+                source.append("        generator.writeFieldName(").append(name).append(");\n")
+                        .append("        generator.writeObject(").append(get).append(");\n");
+                break;
+        }
+    }
+
+    private void readProperty(StringBuilder source, Property property, int index) {
+        source.append("                case ").append(literal(property.name)).append(":\n");
+        String value;
+        switch (property.kind) {
+            case BOOLEAN:
+                value = "parser.getValueAsBoolean()";
+                break;
+            case CHAR:
+                value = "parser.getText().charAt(0)";
+                break;
+            case BYTE:
+                value = "(byte) parser.getValueAsInt()";
+                break;
+            case SHORT:
+                value = "(short) parser.getValueAsInt()";
+                break;
+            case INT:
+                value = "parser.getValueAsInt()";
+                break;
+            case LONG:
+                value = "parser.getValueAsLong()";
+                break;
+            case FLOAT:
+                value = "(float) parser.getValueAsDouble()";
+                break;
+            case DOUBLE:
+                value = "parser.getValueAsDouble()";
+                break;
+            case STRING:
+                value = "token == JsonToken.VALUE_NULL ? null : parser.getText()";
+                break;
+            case BOXED:
+                value = "token == JsonToken.VALUE_NULL ? null : " + boxedRead(property.primitive);
+                break;
+            case ENUM:
+                value = "token == JsonToken.VALUE_NULL ? null : Enum.valueOf(" + erasure(property.type)
+                        + ".class, parser.getText())";
+                break;
+            case GENERATED:
+                value = codecName(property.type) + ".INSTANCE.read(parser)";
+                break;
+            default:
+                value = "parser.readValueAs(TYPE_" + index + ")";
+                break;
+        }
+
+        if (property.type.getKind().isPrimitive()) {
+            //A null leaves the default value of the property, as with databind
+            source.append("                    if (token != JsonToken.VALUE_NULL) {\n")
+                    .append("                        ").append(String.format(property.setter, value)).append(";\n")
+                    .append("                    }\n");
+        } else {
+            source.append("                    ").append(String.format(property.setter, value)).append(";\n");
+        }
+        source.append("                    break;\n");
+    }
+
+    private static String boxedRead(TypeKind primitive) {
+        switch (primitive) {
+            case BOOLEAN:
+                return "Boolean.valueOf(parser.getValueAsBoolean())";
+            case CHAR:
+                return "Character.valueOf(parser.getText().charAt(0))";
+            case BYTE:
+                return "Byte.valueOf((byte) parser.getValueAsInt())";
+            case SHORT:
+                return "Short.valueOf((short) parser.getValueAsInt())";
+            case INT:
+                return "Integer.valueOf(parser.getValueAsInt())";
+            case LONG:
+                return "Long.valueOf(parser.getValueAsLong())";
+            case FLOAT:
+                return "Float.valueOf((float) parser.getValueAsDouble())";
+            default:
+                return "Double.valueOf(parser.getValueAsDouble())";
+        }
+    }
+
+    private String boxedName(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass((javax.lang.model.type.PrimitiveType) type)
+                    .getQualifiedName().toString();
+        }
+        return type.toString();
+    }
+
+    private String erasure(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    /**
+     * @param type A type annotated with @GenerateSessionCodec
+     * @return The qualified name of its generated codec
+     */
+    private String codecName(TypeMirror type) {
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        String packageName = packageOf(element).getQualifiedName().toString();
+        return packageName.isEmpty() ? codecSimpleName(element) : packageName + "." + codecSimpleName(element);
+    }
+
+    private static String codecSimpleName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        for (Element enclosing = type.getEnclosingElement(); enclosing instanceof TypeElement;
+                enclosing = enclosing.getEnclosingElement()) {
+            name.insert(0, '_').insert(0, enclosing.getSimpleName());
+        }
+        return name.append(SUFFIX).toString();
+    }
+
+    private PackageElement packageOf(Element element) {
+        return processingEnv.getElementUtils().getPackageOf(element);
+    }
+
+    private Kind kindOf(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return Kind.BOOLEAN;
+            case CHAR:
+                return Kind.CHAR;
+            case BYTE:
+                return Kind.BYTE;
+            case SHORT:
+                return Kind.SHORT;
+            case INT:
+                return Kind.INT;
+            case LONG:
+                return Kind.LONG;
+            case FLOAT:
+                return Kind.FLOAT;
+            case DOUBLE:
+                return Kind.DOUBLE;
+            case DECLARED:
+                break;
+            default:
+                return Kind.DATABIND;
+        }
+
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        if ("java.lang.String".equals(element.getQualifiedName().toString())) {
+            return Kind.STRING;
+        }
+        if (element.getKind() == ElementKind.ENUM) {
+            return Kind.ENUM;
+        }
+        if (unboxed(type) != null) {
+            return Kind.BOXED;
+        }
+        if (isAnnotated(element)) {
+            return Kind.GENERATED;
+        }
+        return Kind.DATABIND;
+    }
+
+    private TypeKind unboxed(TypeMirror type) {
+        try {
+            return processingEnv.getTypeUtils().unboxedType(type).getKind();
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static boolean isAnnotated(Element element) {
+        return annotationOf(element) != null;
+    }
+
+    private static AnnotationMirror annotationOf(Element element) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            if (ANNOTATION.equals(annotation.getAnnotationType().toString())) {
+                return annotation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param type
+     * @return The attribute names given by the annotation of the type
+     */
+    private static List<String> attributesOf(TypeElement type) {
+        List<String> attributes = new ArrayList<>();
+        AnnotationMirror annotation = annotationOf(type);
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value
+                : annotation.getElementValues().entrySet()) {
+            if ("attributes".contentEquals(value.getKey().getSimpleName())) {
+                for (Object attribute : (List<?>) value.getValue().getValue()) {
+                    attributes.add((String) ((AnnotationValue) attribute).getValue());
+                }
+            }
+        }
+        return attributes;
+    }
+
+    private static String literal(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                literal.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                literal.append(String.format("\\u%04x", (int) c));
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    /**
+     * Register the generated codecs as services, along with those registered by an earlier incremental compilation
+     */
+    private void writeServices() {
+        if (generated.isEmpty()) {
+            return;
+        }
+
+        Set<String> services = new TreeSet<>(generated);
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICES);
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(existing.openInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        services.add(line.trim());
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            //Nothing registered yet
+        }
+
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICES);
+            try (Writer writer = file.openWriter()) {
+                for (String service : services) {
+                    writer.write(service);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write " + SERVICES + ": " + ex);
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    /**
+     * How a property is read and written
+     */
+    private enum Kind {
+        BOOLEAN, CHAR, BYTE, SHORT, INT, LONG, FLOAT, DOUBLE, STRING, BOXED, ENUM, GENERATED, DATABIND
+    }
+
+    /**
+     * A property of an annotated type
+     */
+    private final class Property {
+
+        private final String name;
+
+        private final TypeMirror type;
+
+        private final Kind kind;
+
+        /**
+         * The primitive type of a boxed property
+         */
+        private final TypeKind primitive;
+
+        /**
+         * Expression reading the property of value
+         */
+        private final String getter;
+
+        /**
+         * Statement setting the property of value to %s
+         */
+        private final String setter;
+
+        private Property(String name, TypeMirror type, String getter, String setter) {
+            this.name = name;
+            this.type = type;
+            this.kind = kindOf(type);
+            this.primitive = kind == Kind.BOXED ? unboxed(type) : null;
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * This filter reads the session of a request from couchbase using servlet 3 async processing, so that the request
+ * doesn't hold a thread while it waits for couchbase. The request is suspended while the session is read and then
+ * dispatched again to run as normal with the session already loaded.
+ *
+ * It only has an effect when the CouchbaseSessionManager uses lazyLoad (otherwise jetty has already read the session
+ * before any filter runs) and the filter must be mapped with async supported for both the REQUEST and ASYNC
+ * dispatcher types. If the read fails the request is dispatched anyway and reads the session again as it's used.
+ *
+ * Only use it for requests that will use their session, since the session is always read.
+ */
+public class AsyncSessionFilter implements Filter {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(AsyncSessionFilter.class);
+
+    /**
+     * Request attribute holding the session that was loaded while the request was suspended
+     */
+    private static final String LOADED_SESSION = AsyncSessionFilter.class.getName() + ".session";
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+            ServletException {
+
+        Object loaded = request.getAttribute(LOADED_SESSION);
+        if (loaded != null && request.getDispatcherType() == DispatcherType.ASYNC) {
+            request.removeAttribute(LOADED_SESSION);
+            CouchbaseHttpSession session = (CouchbaseHttpSession) loaded;
+
+            //Jetty only accesses and completes a session for the original dispatch, so do it for this one to get the
+            //session persisted
+            session.getSessionManager().access(session, request.isSecure());
+            try {
+                chain.doFilter(request, response);
+            } finally {
+                session.getSessionManager().complete(session);
+            }
+            return;
+        }
+
+        if (request.getDispatcherType() == DispatcherType.REQUEST && request.isAsyncSupported()
+                && request instanceof HttpServletRequest) {
+            HttpSession existing = ((HttpServletRequest) request).getSession(false);
+
+            if (existing instanceof CouchbaseHttpSession && !((CouchbaseHttpSession) existing).isLoaded()) {
+                CouchbaseHttpSession session = (CouchbaseHttpSession) existing;
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Suspending request while reading session {}", session.getClusterId());
+                }
+
+                request.setAttribute(LOADED_SESSION, session);
+                AsyncContext async = request.startAsync();
+                session.loadAsync().subscribe(
+                        ignored -> { },
+                        ex -> {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Failed to read session " + session.getClusterId() + " asynchronously", ex);
+                            }
+                            async.dispatch();
+                        },
+                        async::dispatch);
+                return;
+            }
+        }
+
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        // nop
+    }
+
+    @Override
+    public void destroy() {
+        // nop
+    }
+
+}
@@ -7,12 +7,23 @@ import com.sun.jersey.core.spi.component.ComponentScope;
 import com.sun.jersey.spi.inject.Injectable;
 import com.sun.jersey.spi.inject.InjectableProvider;
 
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.ext.Provider;
 
 /**
  * Provides the HttpSession entity for any resource annotated with @CouchbaseSession annotated method parameter
+ *
+ * A parameter of any other (non-JDK) class is a session bean, bound to the session with
+ * CouchbaseHttpSession.bindBean so that only the attributes the bean holds are read and only the ones the resource
+ * changes are written back.
  * 
  * @author bryan
  */
@@ -21,6 +32,11 @@ public class CouchbaseHttpSessionProvider implements InjectableProvider<Couchbas
 
     private final ThreadLocal<HttpServletRequest> request;
 
+    /**
+     * The field first seen bound to each attribute by a session bean parameter
+     */
+    private final ConcurrentMap<String, Field> beanFields = new ConcurrentHashMap<>();
+
     public CouchbaseHttpSessionProvider(@Context ThreadLocal<HttpServletRequest> request) {
         this.request = request;
     }
@@ -32,20 +48,89 @@ public class CouchbaseHttpSessionProvider implements InjectableProvider<Couchbas
 
     @Override
     public Injectable<?> getInjectable(ComponentContext ic, final CouchbaseSession session, Parameter parameter) {
-        if (parameter.getParameterClass().isAssignableFrom(CouchbaseHttpSession.class)) {
+        Class<?> type = parameter.getParameterClass();
+        if (type.isAssignableFrom(CouchbaseHttpSession.class)) {
             return () -> {
                 final HttpServletRequest req = request.get();
-                if (req != null) {
-                    CouchbaseHttpSession couchbaseHttpSession = (CouchbaseHttpSession) req.getSession(session.create());
-                    if (session.write()) {
-                        couchbaseHttpSession.setWrite(true);
-                    }
-                    
-                    return couchbaseHttpSession;
-                }
-                return null;
+                return req != null ? getSession(req, session, null) : null;
             };
         }
-        return null;
+        if (type.isPrimitive() || type.isArray() || type.isInterface() || type.getName().startsWith("java")) {
+            return null;
+        }
+
+        //Any other type is a session bean bound to the attributes of the session
+        checkBean(type);
+        return () -> {
+            final HttpServletRequest req = request.get();
+            if (req == null) {
+                return null;
+            }
+            CouchbaseHttpSession couchbaseHttpSession = getSession(req, session, type);
+            return couchbaseHttpSession != null ? couchbaseHttpSession.bindBean(type) : null;
+        };
+    }
+
+    /**
+     * Make sure a session bean agrees with the beans of the other resources about the type of every attribute, which
+     * fails when the resources are set up rather than on the first request binding both
+     *
+     * @param type The type of the session bean
+     * @throws IllegalArgumentException if a field has another type than the field of the same name of another bean
+     */
+    private void checkBean(Class<?> type) {
+        for (Field field : SessionBeanBinder.fields(type)) {
+            Field seen = beanFields.putIfAbsent(field.getName(), field);
+            if (seen != null && !seen.getGenericType().equals(field.getGenericType())) {
+                throw new IllegalArgumentException("Session attribute " + field.getName() + " is "
+                        + field.getGenericType().getTypeName() + " in session bean " + type.getName() + " but "
+                        + seen.getGenericType().getTypeName() + " in session bean "
+                        + seen.getDeclaringClass().getName());
+            }
+        }
+    }
+
+    /**
+     * @param req
+     * @param session
+     * @param beanType The type of the session bean that will be bound to the session, or null
+     * @return The session of the request
+     */
+    private static CouchbaseHttpSession getSession(HttpServletRequest req, CouchbaseSession session,
+            Class<?> beanType) {
+        //Force a lazy session to be read now so that if it no longer exists jetty will treat it as invalid
+        //and create a new one (when allowed) below. Write mode and the declared attributes are set first
+        //so that the read knows whether it may be served from the near cache and what it has to read.
+        HttpSession existing = req.getSession(false);
+        if (existing instanceof CouchbaseHttpSession) {
+            CouchbaseHttpSession existingSession = (CouchbaseHttpSession) existing;
+            if (session.write()) {
+                existingSession.setWrite(true);
+            }
+            existingSession.project(declaredAttributes(existingSession, session, beanType), session.groups());
+            existingSession.load();
+        }
+
+        CouchbaseHttpSession couchbaseHttpSession = (CouchbaseHttpSession) req.getSession(session.create());
+        if (couchbaseHttpSession != null && session.write()) {
+            couchbaseHttpSession.setWrite(true);
+        }
+
+        return couchbaseHttpSession;
+    }
+
+    /**
+     * @return The attributes declared by the annotation, along with those a session bean is bound to
+     */
+    private static String[] declaredAttributes(CouchbaseHttpSession existingSession, CouchbaseSession session,
+            Class<?> beanType) {
+        if (beanType == null) {
+            return session.attributes();
+        }
+
+        CouchbaseSessionManager manager = (CouchbaseSessionManager) existingSession.getSessionManager();
+        Set<String> attributes = new LinkedHashSet<>(Arrays.asList(session.attributes()));
+        attributes.addAll(manager.getBeanAttributes(beanType));
+        return attributes.toArray(new String[attributes.size()]);
     }
 }
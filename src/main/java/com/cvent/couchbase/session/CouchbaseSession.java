@@ -13,6 +13,9 @@ import java.lang.annotation.Target;
  * Note: If a session does NOT exist and write == false, create == true then the
  * session will still be created and saved.
  *
+ * Besides a CouchbaseHttpSession, the annotated parameter can be a plain java bean whose fields hold the session
+ * attributes of the same names, see CouchbaseHttpSession.bindBean.
+ *
  * @author bryan
  */
 @Documented
@@ -33,4 +36,18 @@ public @interface CouchbaseSession {
      * saved.
      */
     boolean write() default false;
+
+    /**
+     * @return The names of the only session attributes the resource uses. When the session is loaded lazily only these
+     * attributes are read from couchbase. Defaults to reading the whole session.
+     *
+     * Note: Using any other attribute reads it on demand, or fails if the session manager uses strict projection.
+     */
+    String[] attributes() default {};
+
+    /**
+     * @return The names of groups of session attributes, registered with the session manager, that the resource uses.
+     * Combined with attributes().
+     */
+    String[] groups() default {};
 }
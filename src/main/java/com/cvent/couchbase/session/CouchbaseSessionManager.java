@@ -2,17 +2,34 @@ package com.cvent.couchbase.session;
 
 import com.couchbase.client.core.CouchbaseException;
 import com.couchbase.client.java.Bucket;
-import com.couchbase.client.java.ReplicaMode;
-import com.couchbase.client.java.document.RawJsonDocument;
 import com.couchbase.client.java.error.DocumentDoesNotExistException;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
 import javax.servlet.http.HttpServletRequest;
 import org.eclipse.jetty.server.session.AbstractSession;
 import org.eclipse.jetty.server.session.AbstractSessionManager;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.statistic.CounterStatistic;
 import org.slf4j.LoggerFactory;
+import rx.Observable;
 
 /**
  * An implementation of session manager for Couchbase + Jetty. This session manager stores documents as JSON into a
@@ -22,38 +39,883 @@ import org.slf4j.LoggerFactory;
  * This is primarily because we'd like to reuse components of the initialization process that's built into dropwizard
  * and would prefer not to manage that here as well.
  *
+ * The storage itself goes through a SessionStore, so the manager can also run against an InMemorySessionStore with no
+ * cluster at all. A store that is a jetty LifeCycle (ie. InMemorySessionStore) is started and stopped with the
+ * manager.
+ *
  * A session will remain active if there is activity.
  *
- * If a read fails for an IOException then this will fallback and try to read the session from a replica.
+ * If a read fails for an IOException then this will fallback and try to read the session from a replica. With a
+ * hedgePercentile a read that is merely slow is also sent to all the replicas in parallel.
+ *
+ * By default every read resets the expiry of the session document. With a touchFraction the expiry is only reset
+ * once that fraction of maxInactiveInterval has passed, which removes most of the expiry writes for busy sessions.
+ *
+ * An optional SessionNearCache lets read-only sessions be served without a round trip to couchbase, or in its
+ * version-checked mode lets any session be served after reading only the small version stamp of the document.
+ *
+ * With coalesceReads, concurrent requests for the same session share one read from couchbase.
+ *
+ * With deferredPersistence, new sessions are only written once they hold data. With deltaWrites, only the attributes
+ * that changed are written back. A lazy session injected for a @CouchbaseSession that declares attributes only reads
+ * those attributes.
+ *
+ * When lazy loading is enabled a session returned to jetty is only a handle holding the session id. The document is
+ * not read from couchbase until the first attribute or metadata access (or until it's injected by
+ * CouchbaseHttpSessionProvider) so requests that never look at their session never pay for the read. The expiry of
+ * such a session is still reset when the request completes, without waiting for it, since the request still counts as
+ * activity.
+ *
+ * Every storage operation is built as a non-blocking Observable pipeline and only the servlet facing methods wait for
+ * it. With lazy loading, AsyncSessionFilter reads the session while the request is suspended so no thread waits for
+ * couchbase, and with asyncWrites the write at the end of the request isn't waited for either. A SessionWriteBehind
+ * queue instead hands the writes to its own workers, coalescing repeated writes of the same session. A write that
+ * fails is kept in a local SessionJournal, when there is one, and replayed once couchbase is back.
+ *
+ * Sessions are stored as JSON unless another SessionCodec is set, ie. Smile which is smaller and faster to encode and
+ * decode. Documents of any codec that was set are still read, so a document written before a change of codec is
+ * simply rewritten in the new format the next time its session is written. The sub-document features (deltaWrites,
+ * touchFraction, projected reads and the version-checked near cache) need JSON documents and are not used with a
+ * binary codec. With a SessionCompression, documents above its threshold are also stored deflated, which makes them
+ * binary documents too.
+ *
+ * With lazyAttributes, the object and array attributes of a JSON document are only decoded when they're first read.
+ * Until then they're held as their span of the document, and written back from it if they're never used.
+ *
+ * Attributes are decoded into the plain maps and lists that any JSON decodes into, unless a type is registered for
+ * them by name or pattern with addAttributeType, in which case they're decoded straight into that type (without
+ * databind for types annotated with @GenerateSessionCodec, whose codec is generated at compile time). A plain java
+ * bean can also be bound to a session, each field holding the attribute of the same name, in which case only the
+ * fields a request changes are set back as attributes (and with deltaWrites, only those are written).
+ *
+ * A SessionTrace records an anonymized trace of the session reads and writes, for replaying or analysing the traffic
+ * of a node offline.
+ *
+ * The manager itself deals with jetty and the session lifecycle. The reads from couchbase are made by a SessionReader,
+ * the writes by a SessionWriter and the trace is recorded through SessionTraceHooks.
  */
 public final class CouchbaseSessionManager extends AbstractSessionManager {
 
-    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(CouchbaseSessionManager.class);
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(CouchbaseSessionManager.class);
+
+    /**
+     * Name of the document field holding the time in msec since the epoch that the expiry was last reset
+     */
+    private static final String LAST_TOUCHED = SessionSerializer.LAST_TOUCHED;
+
+    /**
+     * Name of the document field holding the version counter that every write of the document bumps
+     */
+    private static final String VERSION = SessionSerializer.VERSION;
+
+    /**
+     * Name of the document field holding the time in msec since the epoch that the session was last persisted
+     */
+    private static final String LAST_SAVED = SessionSerializer.LAST_SAVED;
+
+    /**
+     * Couchbase allows at most 16 paths in one sub-document lookup
+     */
+    private static final int MAX_LOOKUP_SPECS = 16;
+
+    /**
+     * A projected read needs 4 of the lookup paths for the session metadata
+     */
+    private static final int MAX_LOOKUP_ATTRIBUTES = MAX_LOOKUP_SPECS - 4;
+
+    /**
+     * Name of the document field holding the time in msec since the epoch that the session was created
+     */
+    private static final String CREATION_TIME = SessionSerializer.CREATION_TIME;
+
+    private final SessionStore store;
+    private final ObjectMapper mapper;
+
+    private volatile SessionCodec codec;
+    private final ConcurrentMap<Byte, SessionCodec> codecs = new ConcurrentHashMap<>();
+
+    private volatile SessionCompression compression;
+    private final String keyPrefix;
+
+    private volatile boolean lazyLoad = false;
+
+    private volatile boolean lazyAttributes = false;
+    private final CounterStatistic lazyAttributesDecoded = new CounterStatistic();
+
+    private volatile double touchFraction = 0;
+
+    private volatile SessionNearCache nearCache;
+
+    private volatile boolean coalesceReads = false;
+
+    private volatile boolean deferredPersistence = false;
+
+    private volatile boolean deltaWrites = false;
+
+    private volatile boolean strictProjection = false;
+
+    private final ConcurrentMap<String, Set<String>> attributeGroups = new ConcurrentHashMap<>();
+
+    private final SessionAttributeTypes attributeTypes = new SessionAttributeTypes();
+
+    private final ConcurrentMap<Class<?>, SessionBeanBinder<?>> beanBinders = new ConcurrentHashMap<>();
+
+    /**
+     * The session bean that registered the type of each attribute bound by a bean
+     */
+    private final ConcurrentMap<String, Class<?>> beanAttributeOwners = new ConcurrentHashMap<>();
+    private final CounterStatistic projectedReads = new CounterStatistic();
+
+    private volatile double hedgePercentile = 0;
+    private volatile long hedgeMinDelay = 10;
+
+    private volatile boolean asyncWrites = false;
+
+    private volatile SessionWriteBehind writeBehind;
+
+    private volatile SessionJournal journal;
+
+    private final SessionTraceHooks traces = new SessionTraceHooks();
+
+    private final SessionReader reads;
+    private final SessionWriter writes;
+
+    /**
+     * Create a new session manager
+     *
+     * @param keyPrefix The key prefix to use with couchbase documents
+     * @param bucket The couchbase Bucket api instance for communicating with couchbase
+     * @param mapper The jackson ObjectMapper to be used for serialization/deserialization of session objects to/from
+     * JSON
+     * @param maxInactiveInterval The max number of seconds that session can exist for with no activity
+     */
+    public CouchbaseSessionManager(String keyPrefix, Bucket bucket, ObjectMapper mapper, int maxInactiveInterval) {
+        this(keyPrefix, new CouchbaseSessionStore(bucket), mapper, maxInactiveInterval);
+    }
+
+    /**
+     * Create a new session manager
+     *
+     * @param keyPrefix The key prefix to use with session documents
+     * @param store The SessionStore holding the session documents
+     * @param mapper The jackson ObjectMapper to be used for serialization/deserialization of session objects to/from
+     * JSON
+     * @param maxInactiveInterval The max number of seconds that session can exist for with no activity
+     */
+    public CouchbaseSessionManager(String keyPrefix, SessionStore store, ObjectMapper mapper,
+            int maxInactiveInterval) {
+        super();
+        this.store = store;
+        this.reads = new SessionReader(this, store);
+        this.writes = new SessionWriter(this, store, traces);
+        //Starts and stops the store with the manager if it has a lifecycle of its own
+        addBean(store);
+        this.mapper = mapper;
+        this.codec = SessionCodec.json(mapper);
+        codecs.put(SessionCodec.JSON, codec);
+        //ie. generated for the types annotated with @GenerateSessionCodec
+        for (SessionAttributeCodec<?> attributeCodec : ServiceLoader.load(SessionAttributeCodec.class)) {
+            addAttributeCodec(attributeCodec);
+        }
+        setMaxInactiveInterval(maxInactiveInterval);
+        setSessionIdManager(new NoOpSessionIdManager());
+        this.keyPrefix = keyPrefix;
+    }
+
+    String getKey(String id) {
+        return keyPrefix + id;
+    }
+
+    /**
+     * Wait for the single result of a store operation, the same way the blocking couchbase Bucket api does
+     *
+     * @param <T>
+     * @param operation
+     * @return The result or null if there is none, ie. the document does not exist
+     */
+    static <T> T await(Observable<T> operation) {
+        return operation.toBlocking().singleOrDefault(null);
+    }
+
+    /**
+     * Get the value of lazyLoad
+     *
+     * @return the value of lazyLoad
+     */
+    public boolean isLazyLoad() {
+        return lazyLoad;
+    }
+
+    /**
+     * Set the value of lazyLoad. When true, getSession() returns a handle that only reads the session document from
+     * couchbase the first time its attributes or metadata are accessed. A handle that is never read only resets the
+     * expiry of the document (when due) as its request completes.
+     *
+     * @param lazyLoad new value of lazyLoad
+     */
+    public void setLazyLoad(boolean lazyLoad) {
+        this.lazyLoad = lazyLoad;
+    }
+
+    /**
+     * Get the value of lazyAttributes
+     *
+     * @return the value of lazyAttributes
+     */
+    public boolean isLazyAttributes() {
+        return lazyAttributes;
+    }
+
+    /**
+     * Set the value of lazyAttributes. When true, the object and array attributes of a JSON session document are
+     * decoded the first time they're read rather than when the document is read, so a request only pays for decoding
+     * the attributes it uses. Attributes that were never decoded are written back exactly as they were read.
+     *
+     * @param lazyAttributes new value of lazyAttributes
+     */
+    public void setLazyAttributes(boolean lazyAttributes) {
+        this.lazyAttributes = lazyAttributes;
+    }
+
+    /**
+     * @return The number of session attributes decoded when they were first read
+     */
+    @ManagedAttribute("number of session attributes decoded when they were first read")
+    public long getLazyAttributesDecoded() {
+        return lazyAttributesDecoded.getTotal();
+    }
+
+    /**
+     * Get the value of codec
+     *
+     * @return the value of codec
+     */
+    public SessionCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Set the value of codec. Sessions are written in the format of this codec from then on. Documents written by any
+     * codec set before (and JSON documents) are still read, and are rewritten in the new format the next time their
+     * session is written. deltaWrites, touchFraction, projected reads and the version-checked near cache are not used
+     * while the codec isn't JSON.
+     *
+     * @param codec new value of codec
+     */
+    public void setCodec(SessionCodec codec) {
+        SessionCodec registered = codecs.putIfAbsent(codec.getFormat(), codec);
+        if (registered != null && registered != codec && codec.getFormat() != SessionCodec.JSON) {
+            //JSON may be set with another mapper, other formats must not be mistaken for one another
+            throw new IllegalArgumentException("A different codec is already registered for format "
+                    + codec.getFormat());
+        }
+        if (codec.getFormat() == SessionCodec.JSON) {
+            codecs.put(SessionCodec.JSON, codec);
+        }
+        this.codec = codec;
+    }
+
+    /**
+     * Get the value of compression
+     *
+     * @return the value of compression
+     */
+    public SessionCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Set the value of compression. When set, session documents at least the threshold of the compression in size are
+     * stored deflated. Compressed documents are always read, also once compression is turned off as long as they
+     * weren't compressed with a dictionary.
+     *
+     * @param compression new value of compression or null to store documents uncompressed
+     */
+    public void setCompression(SessionCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return Whether or not reads may skip resetting the expiry, which needs sub-document access to the document to
+     * reset it later
+     */
+    boolean isTouchElided() {
+        return touchFraction > 0 && codec.isJson();
+    }
+
+    /**
+     * Get the value of touchFraction
+     *
+     * @return the value of touchFraction
+     */
+    public double getTouchFraction() {
+        return touchFraction;
+    }
+
+    /**
+     * Set the value of touchFraction. When 0 (the default) every read resets the expiry of the session document. When
+     * greater than 0 a read only resets the expiry once this fraction of maxInactiveInterval has passed since it was
+     * last reset, ie. 0.25 with a 30 minute session re-touches at most every 7.5 minutes.
+     *
+     * @param touchFraction new value of touchFraction, from 0 (inclusive) to 1 (exclusive)
+     */
+    public void setTouchFraction(double touchFraction) {
+        if (touchFraction < 0 || touchFraction >= 1) {
+            throw new IllegalArgumentException("touchFraction must be >= 0 and < 1 but was " + touchFraction);
+        }
+        this.touchFraction = touchFraction;
+    }
+
+    /**
+     * Get the value of nearCache
+     *
+     * @return the value of nearCache
+     */
+    public SessionNearCache getNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * Set the value of nearCache. When set, read-only sessions are served from the cache while it holds a recent copy
+     * (or any session whose version stamp is unchanged for a version-checked cache) and every read or write made by
+     * this manager keeps it up to date. A session served from the cache still has its expiry reset when due, without
+     * the request waiting for it.
+     *
+     * @param nearCache new value of nearCache, or null to disable the near cache
+     */
+    public void setNearCache(SessionNearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    /**
+     * Get the value of coalesceReads
+     *
+     * @return the value of coalesceReads
+     */
+    public boolean isCoalesceReads() {
+        return coalesceReads;
+    }
+
+    /**
+     * Set the value of coalesceReads. When true, concurrent requests for the same session (ie. parallel XHRs from a
+     * browser) share a single read from couchbase and each gets its own copy of the session.
+     *
+     * @param coalesceReads new value of coalesceReads
+     */
+    public void setCoalesceReads(boolean coalesceReads) {
+        this.coalesceReads = coalesceReads;
+    }
+
+    /**
+     * @return The number of session reads that were served by a read already in flight for the same session
+     */
+    @ManagedAttribute("number of session reads that joined a read already in flight")
+    public long getReadsCoalesced() {
+        return reads.getReadsCoalesced();
+    }
+
+    /**
+     * Get the value of deferredPersistence
+     *
+     * @return the value of deferredPersistence
+     */
+    public boolean isDeferredPersistence() {
+        return deferredPersistence;
+    }
+
+    /**
+     * Set the value of deferredPersistence. When true a new session is not written when jetty creates it but only when
+     * its first request completes, in a single insert and only if it holds attributes by then. Sessions that never
+     * hold any data (anonymous hits, bots) are never written at all. A client that returns the cookie of such a
+     * session simply gets a new one since there is nothing to lose.
+     *
+     * @param deferredPersistence new value of deferredPersistence
+     */
+    public void setDeferredPersistence(boolean deferredPersistence) {
+        this.deferredPersistence = deferredPersistence;
+    }
+
+    /**
+     * Get the value of deltaWrites
+     *
+     * @return the value of deltaWrites
+     */
+    public boolean isDeltaWrites() {
+        return deltaWrites;
+    }
+
+    /**
+     * Set the value of deltaWrites. When true, a session whose attributes changed is persisted by writing only the
+     * attributes that were set or removed, with a single sub-document mutation, unless that would be as large as
+     * writing the whole session.
+     *
+     * @param deltaWrites new value of deltaWrites
+     */
+    public void setDeltaWrites(boolean deltaWrites) {
+        this.deltaWrites = deltaWrites;
+    }
+
+    /**
+     * @return The number of session updates that only wrote the changed attributes
+     */
+    @ManagedAttribute("number of session updates that only wrote the changed attributes")
+    public long getDeltaWrites() {
+        return writes.getDeltaWritesIssued();
+    }
+
+    /**
+     * Get the value of strictProjection
+     *
+     * @return the value of strictProjection
+     */
+    public boolean isStrictProjection() {
+        return strictProjection;
+    }
+
+    /**
+     * Set the value of strictProjection. When a session is injected for a @CouchbaseSession that declares attributes
+     * only those attributes are read. Reading any other attribute (or the whole session, ie. getAttributeNames()) then
+     * reads it on demand, or when strictProjection is true fails with an IllegalStateException so that the missing
+     * declaration is found early.
+     *
+     * @param strictProjection new value of strictProjection
+     */
+    public void setStrictProjection(boolean strictProjection) {
+        this.strictProjection = strictProjection;
+    }
+
+    /**
+     * Register a named group of attributes that a @CouchbaseSession can declare through its groups
+     *
+     * @param group The name of the group
+     * @param attributes The names of the attributes in the group
+     */
+    public void addAttributeGroup(String group, String... attributes) {
+        attributeGroups.put(group, new HashSet<>(Arrays.asList(attributes)));
+    }
+
+    /**
+     * @param group The name of the group
+     * @return The names of the attributes in the group
+     * @throws IllegalArgumentException if there is no such group
+     */
+    public Set<String> getAttributeGroup(String group) {
+        Set<String> attributes = attributeGroups.get(group);
+        if (attributes == null) {
+            throw new IllegalArgumentException("No session attribute group named " + group);
+        }
+        return attributes;
+    }
+
+    /**
+     * Register the type that an attribute is decoded into, instead of the plain maps and lists that any JSON decodes
+     * into, so that the application gets the value it stored back without converting it again
+     *
+     * @param name The name of the attribute
+     * @param type
+     */
+    public void addAttributeType(String name, Class<?> type) {
+        addAttributeType(name, mapper.getTypeFactory().constructType(type));
+    }
+
+    /**
+     * Register the type that an attribute is decoded into, ie. a generic collection type built with the TypeFactory
+     * of the mapper
+     *
+     * @param name The name of the attribute
+     * @param type
+     */
+    public void addAttributeType(String name, JavaType type) {
+        attributeTypes.add(name, type);
+        codec.getValueReader(type);
+    }
+
+    /**
+     * Register the type that the attributes whose whole name matches a pattern are decoded into. Types registered by
+     * name take precedence, then patterns in the order they were registered.
+     *
+     * @param pattern A regular expression
+     * @param type
+     */
+    public void addAttributeTypePattern(String pattern, Class<?> type) {
+        addAttributeTypePattern(pattern, mapper.getTypeFactory().constructType(type));
+    }
+
+    /**
+     * Register the type that the attributes whose whole name matches a pattern are decoded into. Types registered by
+     * name take precedence, then patterns in the order they were registered.
+     *
+     * @param pattern A regular expression
+     * @param type
+     */
+    public void addAttributeTypePattern(String pattern, JavaType type) {
+        attributeTypes.add(Pattern.compile(pattern), type);
+        codec.getValueReader(type);
+    }
+
+    /**
+     * Register a codec that reads and writes the values of its type instead of jackson databind, along with its type
+     * as the type of the attributes it names. The codecs generated for types annotated with @GenerateSessionCodec are
+     * registered on their own.
+     *
+     * @param attributeCodec
+     */
+    public void addAttributeCodec(SessionAttributeCodec<?> attributeCodec) {
+        attributeTypes.add(attributeCodec);
+        for (String name : attributeCodec.getAttributes()) {
+            addAttributeType(name, attributeCodec.getType());
+        }
+    }
+
+    /**
+     * @param name The name of an attribute
+     * @return The type the attribute is decoded into or null if it's decoded as a plain value
+     */
+    public JavaType getAttributeType(String name) {
+        return attributeTypes.typeOf(name);
+    }
+
+    SessionAttributeTypes getAttributeTypes() {
+        return attributeTypes;
+    }
+
+    /**
+     * Register a session bean type up front, ie. when the application starts, so that an attribute it disagrees
+     * with another bean or registered type about fails then rather than on the first request binding it
+     *
+     * @param type The type of the bean
+     * @throws IllegalArgumentException if an attribute of the bean already has another type registered
+     */
+    public void addSessionBean(Class<?> type) {
+        getBeanBinder(type);
+    }
+
+    /**
+     * Get the binder of a session bean type, registering the types of its fields as the types of their attributes
+     * the first time
+     *
+     * @param <T>
+     * @param type The type of the bean
+     * @return The binder of the bean type
+     * @throws IllegalArgumentException if an attribute of the bean already has another type registered
+     */
+    @SuppressWarnings("unchecked")
+    <T> SessionBeanBinder<T> getBeanBinder(Class<T> type) {
+        return (SessionBeanBinder<T>) beanBinders.computeIfAbsent(type, beanType -> {
+            SessionBeanBinder<?> binder = new SessionBeanBinder<>(beanType, mapper);
+            //Every attribute is checked before any is registered, a bean that is refused leaves nothing behind
+            Map<String, JavaType> added = new LinkedHashMap<>();
+            binder.forEachType((name, attributeType) -> {
+                JavaType registered = attributeTypes.typeOf(name);
+                if (registered == null) {
+                    added.put(name, attributeType);
+                } else if (!registered.equals(attributeType)) {
+                    Class<?> owner = beanAttributeOwners.get(name);
+                    String other = owner != null
+                            ? " in session bean " + owner.getName()
+                            : " is already registered for it";
+                    throw new IllegalArgumentException("Session attribute " + name + " is " + attributeType
+                            + " in session bean " + beanType.getName() + " but " + registered + other);
+                }
+            });
+            for (Map.Entry<String, JavaType> attribute : added.entrySet()) {
+                addAttributeType(attribute.getKey(), attribute.getValue());
+                beanAttributeOwners.putIfAbsent(attribute.getKey(), beanType);
+            }
+            return binder;
+        });
+    }
+
+    /**
+     * @param type The type of a session bean
+     * @return The names of the attributes the bean is bound to
+     */
+    public Set<String> getBeanAttributes(Class<?> type) {
+        return getBeanBinder(type).getNames();
+    }
+
+    /**
+     * @return The number of session reads that only read the declared attributes
+     */
+    @ManagedAttribute("number of session reads that only read the declared attributes")
+    public long getProjectedReads() {
+        return projectedReads.getTotal();
+    }
+
+    /**
+     * Get the value of hedgePercentile
+     *
+     * @return the value of hedgePercentile
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Set the value of hedgePercentile. When greater than 0, a read that the master hasn't answered within this
+     * percentile of its recent latencies (but never sooner than hedgeMinDelay) is also sent to all the replicas in
+     * parallel and the first answer is used. This cuts the tail latency of reads during rebalances and failovers.
+     *
+     * @param hedgePercentile new value of hedgePercentile, ie. 99 for the 99th percentile or 0 to disable hedging
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        if (hedgePercentile < 0 || hedgePercentile >= 100) {
+            throw new IllegalArgumentException("hedgePercentile must be >= 0 and < 100 but was " + hedgePercentile);
+        }
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Get the value of hedgeMinDelay
+     *
+     * @return the value of hedgeMinDelay
+     */
+    public long getHedgeMinDelay() {
+        return hedgeMinDelay;
+    }
+
+    /**
+     * Set the value of hedgeMinDelay. Reads are never hedged sooner than this, which is also the hedge delay used until
+     * enough latencies of the master have been seen.
+     *
+     * @param hedgeMinDelay new value of hedgeMinDelay in msec
+     */
+    public void setHedgeMinDelay(long hedgeMinDelay) {
+        this.hedgeMinDelay = hedgeMinDelay;
+    }
+
+    /**
+     * @return The number of reads that were also sent to the replicas because the master was slow
+     */
+    @ManagedAttribute("number of session reads hedged to the replicas")
+    public long getHedgedReads() {
+        return reads.getHedgedReads();
+    }
+
+    /**
+     * @return The number of hedged reads where a replica answered before the master
+     */
+    @ManagedAttribute("number of hedged session reads answered by a replica first")
+    public long getHedgeWins() {
+        return reads.getHedgeWins();
+    }
+
+    /**
+     * Get the value of asyncWrites
+     *
+     * @return the value of asyncWrites
+     */
+    public boolean isAsyncWrites() {
+        return asyncWrites;
+    }
+
+    /**
+     * Set the value of asyncWrites. When true, the write of a changed session at the end of a request is issued
+     * without waiting for couchbase to answer, so the response is never held up by it. A failed write is only
+     * logged, as it is when waiting, but it is no longer guaranteed to have landed before the next request for the
+     * same session reads it.
+     *
+     * @param asyncWrites new value of asyncWrites
+     */
+    public void setAsyncWrites(boolean asyncWrites) {
+        this.asyncWrites = asyncWrites;
+    }
+
+    /**
+     * Get the value of writeBehind
+     *
+     * @return the value of writeBehind
+     */
+    public SessionWriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Set the value of writeBehind. When set, changed sessions are queued at the end of a request and written by the
+     * workers of the queue instead of the request thread. The queue is started and flushed with the manager.
+     *
+     * @param writeBehind new value of writeBehind or null to write sessions from the request thread
+     */
+    public void setWriteBehind(SessionWriteBehind writeBehind) {
+        SessionWriteBehind previous = this.writeBehind;
+        this.writeBehind = writeBehind;
+
+        if (previous != null && previous != writeBehind) {
+            previous.stop();
+        }
+        if (writeBehind != null && isRunning()) {
+            writeBehind.start(writes::writeQueued);
+        }
+    }
+
+    /**
+     * Get the value of journal
+     *
+     * @return the value of journal
+     */
+    public SessionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Set the value of journal. When set, a session write that fails is journaled locally and replayed once couchbase
+     * takes writes again, rather than being lost. Replay is started and stopped with the manager.
+     *
+     * @param journal new value of journal or null to only log failed writes
+     */
+    public void setJournal(SessionJournal journal) {
+        SessionJournal previous = this.journal;
+        this.journal = journal;
+
+        if (previous != null && previous != journal) {
+            previous.stop();
+        }
+        if (journal != null && isRunning()) {
+            journal.start(writes::replayJournaled);
+        }
+    }
+
+    /**
+     * Get the value of trace
+     *
+     * @return the value of trace
+     */
+    public SessionTrace getTrace() {
+        return traces.getTrace();
+    }
+
+    /**
+     * Set the value of trace. When set, the session reads and writes are recorded to it while the manager runs.
+     *
+     * @param trace new value of trace or null to record nothing
+     */
+    public void setTrace(SessionTrace trace) {
+        traces.setTrace(trace, isRunning());
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        traces.start();
+
+        SessionJournal target = journal;
+        if (target != null) {
+            target.start(writes::replayJournaled);
+        }
+
+        SessionWriteBehind queue = writeBehind;
+        if (queue != null) {
+            queue.start(writes::writeQueued);
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        SessionWriteBehind queue = writeBehind;
+        if (queue != null) {
+            queue.stop();
+        }
+
+        //After the queue so that anything it failed to write is journaled
+        SessionJournal target = journal;
+        if (target != null) {
+            target.stop();
+        }
+
+        traces.stop();
+        super.doStop();
+    }
+
+    /**
+     * Apply the journaled copy of a session whose write could not be replayed yet, which is newer than the stored one
+     *
+     * @param session
+     * @return true if the session was restored from the journal
+     */
+    private boolean restoreJournaled(CouchbaseHttpSession session) {
+        SessionJournal target = journal;
+        if (target == null) {
+            return false;
+        }
+
+        //Replaying is left to the journal in the background, the request never waits for couchbase to recover
+        String id = session.getClusterId();
+        byte[] content = target.pending(id);
+        if (content == null) {
+            return false;
+        }
 
-    private final Bucket bucket;
-    private final ObjectMapper mapper;
-    private final String keyPrefix;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Serving journaled copy of session {}", id);
+        }
+        session.clearProjection();
+        //No CAS since the stored document is older
+        restoreStored(session, new SessionReader.StoredSession(content, content, 0));
+        //Nor can the changes be applied to the stored document, only a full write replaces it
+        session.setStoredSize(0);
+        return true;
+    }
 
     /**
-     * Create a new session manager
+     * Apply the state of a session that still has a write in the write-behind queue, which is newer than the stored
+     * one, instead of waiting for the write. The attributes are copied through the codec so that the two sessions
+     * never share a value that could be changed in place.
      *
-     * @param keyPrefix The key prefix to use with couchbase documents
-     * @param bucket The couchbase Bucket api instance for communicating with couchbase
-     * @param mapper The jackson ObjectMapper to be used for serialization/deserialization of session objects to/from
-     * JSON
-     * @param maxInactiveInterval The max number of seconds that session can exist for with no activity
+     * @param session
+     * @return true if the session was restored from the queue
      */
-    public CouchbaseSessionManager(String keyPrefix, Bucket bucket, ObjectMapper mapper, int maxInactiveInterval) {
-        super();
-        this.bucket = bucket;
-        this.mapper = mapper;
-        setMaxInactiveInterval(maxInactiveInterval);
-        setSessionIdManager(new NoOpSessionIdManager());
-        this.keyPrefix = keyPrefix;
+    private boolean restoreQueued(CouchbaseHttpSession session) {
+        SessionWriteBehind queue = writeBehind;
+        if (queue == null) {
+            return false;
+        }
+
+        String id = session.getClusterId();
+        CouchbaseHttpSession queued = queue.pending(id);
+        if (queued == null) {
+            return false;
+        }
+        if (queued.getProjection() != null) {
+            //Only the attributes it read are at hand, the others have to be read once it's written
+            queue.flush(id);
+            return false;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Serving queued copy of session {}", id);
+        }
+        byte[] content;
+        try {
+            SessionSerializer.Stamp stamp = new SessionSerializer.Stamp(queued.getCreationTime(),
+                    queued.getLastSaved(),
+                    queued.getMaxInactiveInterval(),
+                    System.currentTimeMillis(),
+                    queued.getVersion());
+            content = SessionSerializer.write(codec, attributeTypes, stamp, id, queued.getStoredAttributes());
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to serialize session " + id, ex);
+        }
+
+        session.clearProjection();
+        restoreDocument(session, content, queued.getCas());
+        session.setQueued(queued);
+        return true;
     }
 
-    private String getKey(String id) {
-        return keyPrefix + id;
+    /**
+     * @return The number of reads that reset the expiry of a session document
+     */
+    @ManagedAttribute("number of session reads that reset the session expiry")
+    public long getTouchesIssued() {
+        return reads.getTouchesIssued();
+    }
+
+    /**
+     * @return The number of reads that skipped resetting the expiry because it was reset recently
+     */
+    @ManagedAttribute("number of session reads that skipped resetting the session expiry")
+    public long getTouchesSkipped() {
+        return reads.getTouchesSkipped();
     }
 
     @Override
@@ -63,18 +925,27 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
         }
 
         if (isRunning()) {
-            try {
-                RawJsonDocument doc = RawJsonDocument.create(getKey(session.getClusterId()),
-                        getMaxInactiveInterval(),
-                        serialize((CouchbaseHttpSession) session));
+            CouchbaseHttpSession couchbaseSession = (CouchbaseHttpSession) session;
 
-                bucket.insert(doc);
-            } catch (JsonProcessingException ex) {
-                throw new RuntimeException("Failed serialize session to JSON " + session, ex);
+            if (deferredPersistence) {
+                //Nothing is written until the session is completed with some data in it
+                couchbaseSession.setPersisted(false);
+                return;
             }
+
+            insertSession(couchbaseSession);
         }
     }
 
+    /**
+     * Write a new session to couchbase
+     *
+     * @param session
+     */
+    private void insertSession(CouchbaseHttpSession session) {
+        await(writes.insertSessionAsync(session));
+    }
+
     @Override
     public AbstractSession getSession(String idInCluster) {
         String key = getKey(idInCluster);
@@ -82,40 +953,353 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
             LOG.debug("Get session {}", key);
         }
 
-        try {
-            RawJsonDocument doc = bucket.getAndTouch(key, getMaxInactiveInterval(), RawJsonDocument.class);
+        CouchbaseHttpSession session = new CouchbaseHttpSession(idInCluster, System.currentTimeMillis());
+
+        if (lazyLoad) {
+            //Defer the read until somebody actually needs the session data
+            return session;
+        }
+
+        session.load();
+
+        return session.isValid() ? session : null;
+    }
+
+    /**
+     * Read the session data for a session handle from couchbase. If the document no longer exists the handle is
+     * marked as missing, which makes it invalid so jetty will not use it any further.
+     *
+     * @param session
+     */
+    private void loadSession(CouchbaseHttpSession session) {
+        String key = getKey(session.getClusterId());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Load session {}", key);
+        }
+
+        String id = session.getClusterId();
+        if (restoreQueued(session) || restoreJournaled(session) || restoreCached(session)) {
+            return;
+        }
+
+        if (session.getProjection() != null && codec.isJson() && loadProjected(session, key)) {
+            return;
+        }
+        session.clearProjection();
 
-            if (doc == null) {
-                return null;
+        restoreStored(session, coalesceReads ? reads.readShared(id, key) : reads.readStored(id, key));
+    }
+
+    /**
+     * Read the session data for a session handle from couchbase without blocking. The whole document is always read
+     * (or the window near cache used) since the attributes that will be used aren't known yet, and the read is not
+     * shared with other requests.
+     *
+     * @param session
+     * @return An Observable emitting the session once its data has been applied, or it has been marked as missing
+     */
+    private Observable<CouchbaseHttpSession> loadSessionAsync(CouchbaseHttpSession session) {
+        String id = session.getClusterId();
+        String key = getKey(id);
+
+        return Observable.defer(() -> {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Load session {} asynchronously", key);
             }
 
-            try {
-                return deserialize(doc.content(), doc.cas());
-            } catch (IOException ex) {
-                throw new RuntimeException("Failed to deserialize session " + key, ex);
+            synchronized (session) {
+                if (restoreQueued(session) || restoreJournaled(session) || restoreCached(session)) {
+                    return Observable.just(session);
+                }
+                session.clearProjection();
             }
-        } catch (CouchbaseException ex) {
-            LOG.warn("Read failed to master, attempting read from replica for {}", key);
 
+            return reads.readStoredAsync(id, key)
+                    .defaultIfEmpty(null)
+                    .map(stored -> {
+                        synchronized (session) {
+                            restoreStored(session, stored);
+                        }
+                        return session;
+                    });
+        });
+    }
+
+    /**
+     * Apply the session data from the window near cache, if there is a copy that may be served
+     *
+     * @param session
+     * @return true if the session was restored from the cache
+     */
+    private boolean restoreCached(CouchbaseHttpSession session) {
+        SessionNearCache cache = nearCache;
+        if (cache == null || cache.isVersionChecked() || session.isWrite()) {
+            return false;
+        }
+
+        SessionNearCache.Entry entry = cache.get(session.getClusterId());
+        if (entry == null) {
+            return false;
+        }
+
+        session.clearProjection();
+        restoreDocument(session, entry.getContent(), entry.getCas());
+        session.setStored(entry.getContent());
+        session.setServedFromCache();
+        reads.touchCached(session.getClusterId(), cache, entry);
+        return true;
+    }
+
+    /**
+     * Apply a stored session to a session handle
+     *
+     * @param session
+     * @param stored The stored session or null if it does not exist
+     */
+    private void restoreStored(CouchbaseHttpSession session, SessionReader.StoredSession stored) {
+        if (stored == null) {
+            session.setMissing();
+            return;
+        }
+
+        restoreDocument(session, stored.getDocument(), stored.getCas());
+        session.setStored(stored.getContent());
+    }
+
+    /**
+     * Apply a stored session document to a session, its attributes going straight into the session as they're read
+     *
+     * @param session
+     * @param content The document, compressed or not
+     * @param cas
+     * @return The session metadata
+     */
+    private SessionSerializer.Stamp restoreDocument(CouchbaseHttpSession session, byte[] content, long cas) {
+        SessionSerializer.Stamp stamp = decode(getKey(session.getClusterId()), content, session::restoreAttribute);
+        session.restore(stamp, cas);
+        return stamp;
+    }
+
+    /**
+     * @param key
+     * @param content The document, compressed or not
+     * @param attributes Takes every attribute as it's read, or null to only read the session metadata
+     * @return The session metadata
+     */
+    SessionSerializer.Stamp decode(String key, byte[] content, BiConsumer<String, Object> attributes) {
+        try {
+            byte[] document = inflate(content);
+            SessionCodec reader = codecOf(document);
+            return attributes == null
+                    ? SessionSerializer.readStamp(reader, document)
+                    : SessionSerializer.read(reader, document, attributes, attributeTypes, lazyAttributes);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to deserialize session " + key, ex);
+        }
+    }
+
+    /**
+     * @param key
+     * @param content The document as stored
+     * @return The document decompressed if it was compressed, otherwise the document itself
+     */
+    byte[] inflate(String key, byte[] content) {
+        try {
+            return inflate(content);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to deserialize session " + key, ex);
+        }
+    }
+
+    private byte[] inflate(byte[] content) throws IOException {
+        if (SessionCodec.formatOf(content) != SessionCodec.DEFLATE) {
+            return content;
+        }
+
+        SessionCompression target = compression;
+        return target != null
+                ? target.decompress(content)
+                : SessionCompression.decompressWithoutDictionary(content);
+    }
+
+    /**
+     * @param document An uncompressed document
+     * @return The codec of the format of the document
+     * @throws IOException if no codec for the format was ever set
+     */
+    private SessionCodec codecOf(byte[] document) throws IOException {
+        byte format = SessionCodec.formatOf(document);
+        SessionCodec reader = codecs.get(format);
+        if (reader == null) {
+            throw new IOException("No codec for session format " + format);
+        }
+        return reader;
+    }
+
+    /**
+     * Read only the metadata and the declared attributes of a session with a projection, using a sub-document lookup
+     * rather than reading the whole document.
+     *
+     * @param session
+     * @param key
+     * @return true if the session was loaded (or found to be missing), false if the whole document must be read
+     * because there are too many attributes to look up at once or the lookup failed
+     */
+    private boolean loadProjected(CouchbaseHttpSession session, String key) {
+        Set<String> names = session.getProjection();
+        if (names.size() > MAX_LOOKUP_ATTRIBUTES) {
+            return false;
+        }
+
+        List<String> paths = new ArrayList<>(Arrays.asList(CREATION_TIME, LAST_SAVED, LAST_TOUCHED, VERSION));
+        for (String name : names) {
+            paths.add(SessionSerializer.attributePath(name));
+        }
+
+        SessionFragment result;
+        try {
+            result = await(store.lookupIn(key, paths));
+        } catch (DocumentDoesNotExistException ex) {
+            result = null;
+        } catch (CouchbaseException ex) {
+            //Leave it to the full read, which falls back to a replica
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Read failed to master, attempting read from replica for " + key, ex);
+                LOG.debug("Failed to look up attributes " + names + " of session " + key, ex);
             }
+            return false;
+        }
+
+        if (result == null) {
+            session.setMissing();
+            return true;
+        }
+
+        for (Map.Entry<String, Object> attribute : attributeFragments(result, names).entrySet()) {
+            session.restoreAttribute(attribute.getKey(), attribute.getValue());
+        }
+        long lastTouched = SessionReader.stampField(result, LAST_TOUCHED);
+        SessionSerializer.Stamp stamp = new SessionSerializer.Stamp(SessionReader.stampField(result, CREATION_TIME),
+                SessionReader.stampField(result, LAST_SAVED),
+                session.getMaxInactiveInterval(),
+                lastTouched,
+                SessionReader.stampField(result, VERSION));
+
+        session.restore(stamp, reads.touchIfDue(key, lastTouched, result.cas(), false));
+        //The size of the whole document isn't known so never let it stop a delta write
+        session.setStoredSize(Long.MAX_VALUE);
+        projectedReads.increment();
+        return true;
+    }
+
+    /**
+     * Read attributes of a projected session that were not declared, as they are first used.
+     *
+     * @param session
+     * @param names
+     * @return The values of the attributes that exist
+     */
+    private Map<String, Object> fetchAttributes(CouchbaseHttpSession session, Set<String> names) {
+        String key = getKey(session.getClusterId());
+        Map<String, Object> values = new HashMap<>();
 
-            //We should only read from a replica if there was a failure reading from the primary master.  This typically
-            //should only occur when there's a network issue or during an auto-failover (outage).
-            RawJsonDocument replicaDoc
-                    = bucket.getFromReplica(key, ReplicaMode.FIRST, RawJsonDocument.class).get(0);
+        List<String> remaining = new ArrayList<>(names);
+        while (!remaining.isEmpty()) {
+            List<String> batch = remaining.subList(0, Math.min(MAX_LOOKUP_SPECS, remaining.size()));
 
-            if (replicaDoc == null) {
-                return null;
+            List<String> paths = new ArrayList<>(batch.size());
+            for (String name : batch) {
+                paths.add(SessionSerializer.attributePath(name));
             }
 
             try {
-                return deserialize(replicaDoc.content(), replicaDoc.cas());
-            } catch (IOException replicaEx) {
-                throw new RuntimeException("Failed to deserialize replica session " + key, replicaEx);
+                values.putAll(attributeFragments(await(store.lookupIn(key, paths)), batch));
+            } catch (DocumentDoesNotExistException ex) {
+                //Nothing more to find
+                break;
+            }
+            batch.clear();
+        }
+
+        return values;
+    }
+
+    /**
+     * Read the rest of the attributes of a projected session from the whole document, keeping the attributes that
+     * were already read or changed as they are. This is needed before anything that works on the whole session, such
+     * as writing it in full.
+     *
+     * @param session
+     */
+    private void completeProjection(CouchbaseHttpSession session) {
+        await(completeProjectionAsync(session));
+    }
+
+    /**
+     * Read the rest of the attributes of a projected session without blocking
+     *
+     * @param session
+     * @return An Observable emitting the session once its projection is complete
+     */
+    Observable<CouchbaseHttpSession> completeProjectionAsync(CouchbaseHttpSession session) {
+        String key = getKey(session.getClusterId());
+
+        return Observable.defer(() -> {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Reading all attributes of projected session {}", key);
+            }
+
+            return reads.readDocumentAsync(key, isTouchElided())
+                    .defaultIfEmpty(null)
+                    .map(doc -> {
+                        if (doc == null) {
+                            //Nothing else to read, a full write will recreate the document from what we have
+                            session.setProjected(null, null);
+                        } else {
+                            Map<String, Object> attributes = new HashMap<>();
+                            decode(key, doc.content(), attributes::put);
+                            session.setProjected(attributes, doc.cas());
+                            session.setStored(doc.content());
+                        }
+                        return session;
+                    });
+        });
+    }
+
+    private Map<String, Object> attributeFragments(SessionFragment result, Collection<String> names) {
+        //Only a JSON document can be looked up
+        SessionCodec reader = codecs.get(SessionCodec.JSON);
+        Map<String, Object> attributes = new HashMap<>();
+        for (String name : names) {
+            String path = SessionSerializer.attributePath(name);
+            if (result.exists(path)) {
+                Object value = result.content(path);
+                if (value != null) {
+                    //Sub-document reads only give plain values, decoded here as a full read decodes the document
+                    try {
+                        attributes.put(name, SessionSerializer.readFragment(reader, attributeTypes,
+                                attributeTypes.typeOf(name), value));
+                    } catch (IOException ex) {
+                        throw new RuntimeException("Failed to deserialize attribute " + name + " of session "
+                                + result.id(), ex);
+                    }
+                }
             }
         }
+        return attributes;
+    }
+
+    void cacheUpdate(CouchbaseHttpSession session, byte[] content, long cas) {
+        SessionNearCache cache = nearCache;
+        if (cache != null) {
+            cache.update(session.getClusterId(), content, cas, session.getVersion(), session.getLastSaved());
+        }
+    }
+
+    void cacheInvalidate(String id) {
+        SessionNearCache cache = nearCache;
+        if (cache != null) {
+            cache.invalidate(id);
+        }
     }
 
     @Override
@@ -124,7 +1308,12 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
             LOG.debug("invalidateSessions()");
         }
 
-        //Do nothing on shutdown.  We'll let couchbase TTL them for us.
+        //Nothing to invalidate on shutdown.  We'll let couchbase TTL them for us, but anything still waiting to be
+        //written must be written first.
+        SessionWriteBehind queue = writeBehind;
+        if (queue != null) {
+            queue.flush();
+        }
     }
 
     @Override
@@ -142,22 +1331,43 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
             //we don't care about consistency because the update will fail by any other thread anyways because the
             //session won't exist which will create the behavior we want and 3) this renewSessionId api isn't really
             //called in our use.
-            RawJsonDocument doc = bucket.remove(oldKey, RawJsonDocument.class);
-            CouchbaseHttpSession session = deserialize(doc.content(), doc.cas());
+            writes.flushQueued(oldClusterId);
+            cacheInvalidate(oldClusterId);
+
+            //A journaled write is newer than the stored session, and must not be replayed under the old id once the
+            //session has moved
+            SessionJournal target = journal;
+            byte[] journaled = target == null ? null : target.pending(oldClusterId);
+            SessionDocument doc;
+            try {
+                doc = await(store.remove(oldKey));
+            } catch (DocumentDoesNotExistException ex) {
+                if (journaled == null) {
+                    throw ex;
+                }
+                //Only ever written to the journal
+                doc = null;
+            }
+            writes.discardJournaled(oldClusterId);
 
-            assertWritableSession(session, "renewSessionId");
+            CouchbaseHttpSession session = journaled != null
+                    ? deserialize(oldClusterId, journaled, 0)
+                    : deserialize(oldClusterId, doc.content(), doc.cas());
+
+            //This copy only exists to be written again under the new id, it's never handed to a request
+            session.setWrite(true);
 
             session.setClusterId(newClusterId);
 
-            doc = RawJsonDocument.create(newKey,
+            byte[] content = writes.serialize(session);
+            doc = SessionDocument.create(newKey,
                     getMaxInactiveInterval(),
-                    serialize(session));
+                    content);
 
-            bucket.insert(doc);
-        } catch (JsonProcessingException ex) {
-            throw new RuntimeException("Failed to process JSON", ex);
+            doc = await(store.insert(doc));
+            cacheUpdate(session, content, doc.cas());
         } catch (IOException ex) {
-            throw new RuntimeException("Failed to deserialize old session " + oldKey, ex);
+            throw new RuntimeException("Failed to serialize session " + newKey, ex);
         }
     }
 
@@ -177,16 +1387,21 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
             LOG.debug("removeSession() key={}", key);
         }
 
+        //A write still queued or journaled must not recreate the session after it's removed
+        writes.flushQueued(clusterId);
+        writes.discardJournaled(clusterId);
+        cacheInvalidate(clusterId);
+
         try {
             //We are not using CAS when removing because 1) it's not available and 2) since we're removing the session
             //we don't care about consistency because the update will fail by any other thread anyways because the
             //session won't exist which will create the behavior we want and 3) this removeSession api isn't really
             //called in our use.
-            RawJsonDocument doc = bucket.remove(key, RawJsonDocument.class);
-            CouchbaseHttpSession session = deserialize(doc.content(), doc.cas());
+            //The removed document isn't read back: a copy deserialized from it is read only, so asserting it is
+            //writable failed every remove after the document was already gone
+            SessionDocument doc = await(store.remove(key));
+            traces.record(SessionTrace.Operation.REMOVE, clusterId, doc.content().length, 0);
 
-            assertWritableSession(session, "removeSession");
-                        
             return true;
         } catch (DocumentDoesNotExistException ex) {
             if (LOG.isDebugEnabled()) {
@@ -209,47 +1424,17 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
             return;
         }
 
-        assertWritableSession(session, "updateSession");
-        
-        try {
-            session.setLastSaved(System.currentTimeMillis());
-            RawJsonDocument doc = RawJsonDocument.create(getKey(session.getClusterId()),
-                    getMaxInactiveInterval(),
-                    serialize(session),
-                    session.getCas());
-
-            bucket.upsert(doc);
-        } catch (JsonProcessingException ex) {
-            throw new RuntimeException("Failed serialize session to JSON " + session, ex);
-        }
-
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Updated session " + session);
-        }
-    }
-
-    private String serialize(CouchbaseHttpSession session) throws JsonProcessingException {
-        SessionJson json = new SessionJson();
-        json.setAttributes(session.getAttributeMap());
-        json.setLastSaved(session.getLastSaved());
-        json.setCreationTime(session.getCreationTime());
-        json.setSessionId(session.getClusterId());
-        json.setMaxInactiveInterval(session.getMaxInactiveInterval());
-
-        return mapper.writeValueAsString(json);
+        await(writes.updateSessionAsync(session, session.getChangedAttributes()));
     }
 
-    private CouchbaseHttpSession deserialize(String content, long cas) throws IOException {
-        SessionJson json = mapper.readValue(content, SessionJson.class);
-
-        CouchbaseHttpSession session = new CouchbaseHttpSession(json.getSessionId(),
-                json.creationTime,
+    private CouchbaseHttpSession deserialize(String clusterId, byte[] content, long cas) {
+        CouchbaseHttpSession session = new CouchbaseHttpSession(clusterId,
+                0,
                 System.currentTimeMillis(),
-                json.getMaxInactiveInterval());
+                getMaxInactiveInterval());
 
-        session.setCas(cas);
-        session.setLastSaved(json.getLastSaved());
-        session.addAttributes(json.getAttributes());
+        SessionSerializer.Stamp stamp = restoreDocument(session, content, cas);
+        session.setMaxInactiveInterval(stamp.getMaxInactiveInterval());
 
         return session;
     }
@@ -262,7 +1447,7 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
      * @param session
      * @param methodName    The name of the method calling this method so that it's easy for debugging
      */
-    private static void assertWritableSession(CouchbaseHttpSession session, String methodName) {
+    static void assertWritableSession(CouchbaseHttpSession session, String methodName) {
         if (!session.isWrite()) {
             throw new UnsupportedOperationException(
                     methodName + "() - Write operation not supported. "
@@ -272,174 +1457,350 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
     }
     
     /**
-     * A simple container class that allows us to specify exactly what data type we want to serialize to/from JSON
-     * without mucking with the parent class and/or fancy serialization techniques in Jackson
+     * CouchbaseHttpSession is the real instance of a session that's managed by Jetty
      */
-    private static class SessionJson {
+    public final class CouchbaseHttpSession extends AbstractSession {
+
+        /**
+         * If dirty, session needs to be (re)persisted
+         */
+        private boolean dirty = false;
+
+        /**
+         * Time in msec since the epoch that the session was last persisted
+         */
+        private long lastSaved;
+
+        /**
+         * Do NOT serialize this into couchbase as it will become incorrect as soon as it's saved. This should be
+         * transient and only used for the life of this in-memory session
+         */
+        private long cas;
+
+        /**
+         * The version counter of the persisted session document
+         */
+        private long version;
+
+        /**
+         * Default to having write mode disabled for sessions to protect developers from doing something they didn't
+         * intend since we're forced into using HttpSession interface.
+         */
+        private boolean write = false;
+
+        /**
+         * False while this is a lazy handle whose data has not been read from couchbase yet
+         */
+        private boolean loaded = true;
+
+        /**
+         * True while an asynchronous read of this lazy handle is in flight, ie. AsyncSessionFilter suspended the
+         * request to read it and the dispatch that will use it is still to come
+         */
+        private volatile boolean loading;
 
-        private Map<String, Object> attributes;
+        /**
+         * True if this was a lazy handle and the document no longer existed when it was loaded
+         */
+        private boolean missing = false;
+
+        /**
+         * True if the session data came from the near cache rather than couchbase
+         */
+        private boolean servedFromCache = false;
+
+        /**
+         * False for a new session whose write to couchbase has been deferred until it holds some data
+         */
+        private boolean persisted = true;
+
+        /**
+         * Names of the attributes set or removed since the session was last persisted
+         */
+        private final Set<String> changedAttributes = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Beans bound to the session by the requests using it, whose changes are written when a request completes
+         */
+        private final List<SessionBeanBinder<?>.Binding> beans = new CopyOnWriteArrayList<>();
+
+        /**
+         * Size of the session document as last read or written
+         */
+        private long storedSize;
 
-        private long creationTime;
+        /**
+         * Whether the session document as last read or written was JSON, rather than binary or compressed
+         */
+        private boolean storedJson = true;
 
-        private String sessionId;
+        /**
+         * Names of the attributes that have been read when only some of the attributes were read, otherwise null
+         */
+        private Set<String> projection;
 
-        private long lastSaved;
+        /**
+         * The creation time as stored with the session. Kept here because lazy handles only learn it once loaded.
+         */
+        private long creationTime;
 
-        private int maxInactiveInterval;
+        /**
+         * The session whose write was still queued when this one was restored from it, until this one is written
+         */
+        private CouchbaseHttpSession queued;
 
         /**
-         * Get the value of maxInactiveInterval
+         * Get the value of write
          *
-         * @return the value of maxInactiveInterval
+         * @return the value of write
          */
-        public int getMaxInactiveInterval() {
-            return maxInactiveInterval;
+        public boolean isWrite() {
+            return write;
         }
 
         /**
-         * Set the value of maxInactiveInterval
+         * Set the value of write
          *
-         * @param maxInactiveInterval new value of maxInactiveInterval
+         * @param write new value of write
          */
-        public void setMaxInactiveInterval(int maxInactiveInterval) {
-            this.maxInactiveInterval = maxInactiveInterval;
+        public void setWrite(boolean write) {
+            this.write = write;
+
+            if (write && servedFromCache) {
+                //Never allow writes based on a possibly stale copy from the near cache
+                reload();
+            }
         }
 
         /**
-         * Get the value of lastSaved
+         * Get the value of cas
          *
-         * @return the value of lastSaved
+         * @return the value of cas
          */
-        public long getLastSaved() {
-            return lastSaved;
+        public long getCas() {
+            load();
+            return cas;
         }
 
         /**
-         * Set the value of lastSaved
+         * Set the value of cas
          *
-         * @param lastSaved new value of lastSaved
+         * @param cas new value of cas
+         */
+        public void setCas(long cas) {
+            this.cas = cas;
+        }
+
+        /**
+         * @return The names of the attributes set or removed since the session was last persisted
          */
-        public void setLastSaved(long lastSaved) {
-            this.lastSaved = lastSaved;
+        public Set<String> getChangedAttributes() {
+            return new HashSet<>(changedAttributes);
         }
 
         /**
-         * Get the value of sessionId
+         * Declare the only attributes that will be used, so that only those are read when the session is loaded. Has
+         * no effect on a session that was already fully loaded, and reads the newly declared attributes of one that
+         * was already loaded with a projection.
          *
-         * @return the value of sessionId
+         * @param attributes The names of the attributes
+         * @param groups The names of attribute groups registered with the session manager
          */
-        public String getSessionId() {
-            return sessionId;
+        public synchronized void project(String[] attributes, String[] groups) {
+            if (attributes.length == 0 && groups.length == 0) {
+                return;
+            }
+
+            Set<String> names = new HashSet<>(Arrays.asList(attributes));
+            for (String group : groups) {
+                names.addAll(getAttributeGroup(group));
+            }
+
+            if (!loaded) {
+                projection = projection == null ? names : union(projection, names);
+            } else if (projection != null) {
+                names.removeAll(projection);
+                fetch(names);
+            }
+        }
+
+        private Set<String> union(Set<String> a, Set<String> b) {
+            Set<String> union = new HashSet<>(a);
+            union.addAll(b);
+            return union;
         }
 
         /**
-         * Set the value of sessionId
-         *
-         * @param sessionId new value of sessionId
+         * @return The names of the attributes read so far when only some of the attributes were read, otherwise null
          */
-        public void setSessionId(String sessionId) {
-            this.sessionId = sessionId;
+        public synchronized Set<String> getProjection() {
+            return projection;
         }
 
         /**
-         * Get the value of creationTime
-         *
-         * @return the value of creationTime
+         * Forget the declared attributes of a session that is being read in full anyway
          */
-        public long getCreationTime() {
-            return creationTime;
+        private synchronized void clearProjection() {
+            projection = null;
         }
 
         /**
-         * Set the value of creationTime
+         * Complete the attributes of a projected session
          *
-         * @param createdTime new value of creationTime
+         * @param attributes All the stored attributes of the session, only those not read yet are used
+         * @param cas The cas of the document they were read from, or null if the document no longer exists
          */
-        public void setCreationTime(long createdTime) {
-            this.creationTime = createdTime;
+        private synchronized void setProjected(Map<String, Object> attributes, Long cas) {
+            if (attributes != null) {
+                for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                    if (!projection.contains(attribute.getKey())) {
+                        doPutOrRemove(attribute.getKey(), attribute.getValue());
+                    }
+                }
+            }
+            if (cas != null) {
+                setCas(cas);
+            }
+            projection = null;
         }
 
         /**
-         * Get the value of attributes
+         * Read the given attributes of a projected session that haven't been read yet
          *
-         * @return the value of attributes
+         * @param names
          */
-        public Map<String, Object> getAttributes() {
-            return attributes;
+        private synchronized void fetch(Set<String> names) {
+            if (names.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, Object> attribute : fetchAttributes(this, names).entrySet()) {
+                doPutOrRemove(attribute.getKey(), attribute.getValue());
+            }
+            projection.addAll(names);
         }
 
         /**
-         * Set the value of attributes
+         * Make sure a single attribute has been read when only some of the attributes were read
          *
-         * @param attributes new value of attributes
+         * @param name
          */
-        public void setAttributes(Map<String, Object> attributes) {
-            this.attributes = attributes;
+        private synchronized void requireAttribute(String name) {
+            if (projection == null || projection.contains(name)) {
+                return;
+            }
+            if (strictProjection) {
+                throw new IllegalStateException("Session attribute " + name
+                        + " was not declared by the @CouchbaseSession that loaded the session");
+            }
+            fetch(Collections.singleton(name));
         }
 
-    }
+        /**
+         * Make sure all the attributes have been read when only some of the attributes were read
+         */
+        private synchronized void requireAllAttributes() {
+            if (projection == null) {
+                return;
+            }
+            if (strictProjection) {
+                throw new IllegalStateException("All session attributes are needed but only " + projection
+                        + " were declared by the @CouchbaseSession that loaded the session");
+            }
+            completeProjection(this);
+        }
 
-    /**
-     * CouchbaseHttpSession is the real instance of a session that's managed by Jetty
-     */
-    public final class CouchbaseHttpSession extends AbstractSession {
+        /**
+         * Get the value of storedSize
+         *
+         * @return the value of storedSize
+         */
+        public long getStoredSize() {
+            return storedSize;
+        }
 
         /**
-         * If dirty, session needs to be (re)persisted
+         * Set the value of storedSize
+         *
+         * @param storedSize new value of storedSize
          */
-        private boolean dirty = false;
+        void setStoredSize(long storedSize) {
+            this.storedSize = storedSize;
+        }
 
         /**
-         * Time in msec since the epoch that the session was last persisted
+         * Get the value of storedJson
+         *
+         * @return the value of storedJson
          */
-        private long lastSaved;
+        public boolean isStoredJson() {
+            return storedJson;
+        }
 
         /**
-         * Do NOT serialize this into couchbase as it will become incorrect as soon as it's saved. This should be
-         * transient and only used for the life of this in-memory session
+         * Record the size and format of the session document as last read or written
+         *
+         * @param content The session document
          */
-        private long cas;
+        void setStored(byte[] content) {
+            this.storedSize = content.length;
+            this.storedJson = SessionCodec.formatOf(content) == SessionCodec.JSON;
+        }
 
         /**
-         * Default to having write mode disabled for sessions to protect developers from doing something they didn't
-         * intend since we're forced into using HttpSession interface.
+         * Build on a session whose write is still queued, whose document is about to be stored
+         *
+         * @param queued
          */
-        private boolean write = false;
+        private void setQueued(CouchbaseHttpSession queued) {
+            this.queued = queued;
+            this.storedSize = queued.getStoredSize();
+            this.storedJson = queued.isStoredJson();
+        }
 
         /**
-         * Get the value of write
+         * @return The session whose queued write this one was restored from, or null, forgetting it
+         */
+        CouchbaseHttpSession takeQueued() {
+            CouchbaseHttpSession basis = queued;
+            queued = null;
+            return basis;
+        }
+
+        /**
+         * Get the value of persisted
          *
-         * @return the value of write
+         * @return the value of persisted
          */
-        public boolean isWrite() {
-            return write;
+        public boolean isPersisted() {
+            return persisted;
         }
 
         /**
-         * Set the value of write
+         * Set the value of persisted
          *
-         * @param write new value of write
+         * @param persisted new value of persisted
          */
-        public void setWrite(boolean write) {
-            this.write = write;
+        void setPersisted(boolean persisted) {
+            this.persisted = persisted;
         }
 
         /**
-         * Get the value of cas
+         * Get the value of version
          *
-         * @return the value of cas
+         * @return the value of version
          */
-        public long getCas() {
-            return cas;
+        public long getVersion() {
+            load();
+            return version;
         }
 
         /**
-         * Set the value of cas
+         * Set the value of version
          *
-         * @param cas new value of cas
+         * @param version new value of version
          */
-        public void setCas(long cas) {
-            this.cas = cas;
+        public void setVersion(long version) {
+            this.version = version;
         }
 
         @Override
@@ -459,6 +1820,7 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
          */
         protected CouchbaseHttpSession(HttpServletRequest request) {
             super(CouchbaseSessionManager.this, request);
+            creationTime = super.getCreationTime();
         }
 
         /**
@@ -471,9 +1833,238 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
          */
         protected CouchbaseHttpSession(String sessionId, long created, long accessed, int maxInterval) {
             super(CouchbaseSessionManager.this, created, accessed, sessionId);
+            creationTime = created;
+        }
+
+        /**
+         * Session handle that will be loaded from the database on first use
+         *
+         * @param sessionId
+         * @param accessed
+         */
+        protected CouchbaseHttpSession(String sessionId, long accessed) {
+            super(CouchbaseSessionManager.this, accessed, accessed, sessionId);
+            creationTime = accessed;
+            loaded = false;
+        }
+
+        /**
+         * Apply the persisted state of the session, once its attributes have been restored
+         *
+         * @param stamp
+         * @param cas
+         */
+        private void restore(SessionSerializer.Stamp stamp, long cas) {
+            creationTime = stamp.getCreationTime();
+            setCas(cas);
+            setLastSaved(stamp.getLastSaved());
+            setVersion(stamp.getVersion());
+            loaded = true;
+        }
+
+        /**
+         * Restore a persisted attribute, without it counting as a change
+         *
+         * @param name
+         * @param value
+         */
+        private void restoreAttribute(String name, Object value) {
+            doPutOrRemove(name, value);
+        }
+
+        /**
+         * Mark a session whose data came from the near cache
+         */
+        private void setServedFromCache() {
+            servedFromCache = true;
+        }
+
+        /**
+         * Discard the loaded session data and read it again from couchbase
+         */
+        private synchronized void reload() {
+            for (String name : super.getNames()) {
+                doPutOrRemove(name, null);
+            }
+            servedFromCache = false;
+            loaded = false;
+            load();
+        }
+
+        /**
+         * @return Whether the document of the session could not be found when it was loaded
+         */
+        public boolean isMissing() {
+            return missing;
+        }
+
+        /**
+         * Mark a lazy handle whose document could not be found
+         */
+        private void setMissing() {
+            missing = true;
+            loaded = true;
+        }
+
+        /**
+         * Fail a change to a lazy handle whose document turned out to be gone (ie. it expired after the request
+         * started), which jetty handed out as valid since that isn't known until it's loaded. The change would
+         * otherwise be silently dropped.
+         *
+         * @param methodName The name of the method calling this method so that it's easy for debugging
+         */
+        private void checkExists(String methodName) {
+            if (missing) {
+                throw new IllegalStateException(methodName + "() - Session " + getClusterId() + " no longer exists");
+            }
+        }
+
+        /**
+         * Read the session data from couchbase if this is a lazy handle that has not been loaded yet. Called
+         * automatically by any attribute or metadata access.
+         */
+        public synchronized void load() {
+            if (!loaded) {
+                loadSession(this);
+                traces.read(this);
+            }
+        }
+
+        /**
+         * Read the session data from couchbase without blocking if this is a lazy handle that has not been loaded yet.
+         * Nothing else should use the session until the returned Observable completes.
+         *
+         * @return An Observable emitting this session once it has been loaded
+         */
+        public Observable<CouchbaseHttpSession> loadAsync() {
+            synchronized (this) {
+                if (loaded) {
+                    return Observable.just(this);
+                }
+                loading = true;
+            }
+            return loadSessionAsync(this)
+                    .doOnNext(traces::read)
+                    .doOnTerminate(() -> loading = false);
+        }
+
+        /**
+         * @return Whether or not the session data has been read from couchbase
+         */
+        public boolean isLoaded() {
+            return loaded;
+        }
+
+        @Override
+        public boolean isValid() {
+            return super.isValid() && !missing;
+        }
+
+        @Override
+        public long getCreationTime() throws IllegalStateException {
+            load();
+            checkValid();
+            return creationTime;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            load();
+            requireAttribute(name);
+            Object value = super.getAttribute(name);
+            return value instanceof SessionSerializer.RawValue ? decodeAttribute(name) : value;
+        }
+
+        /**
+         * Decode an attribute that was read lazily, replacing it in the session
+         *
+         * @param name
+         * @return The decoded value
+         */
+        private synchronized Object decodeAttribute(String name) {
+            Object value = doGet(name);
+            if (!(value instanceof SessionSerializer.RawValue)) {
+                //Decoded by another thread meanwhile
+                return value;
+            }
+
+            try {
+                Object decoded = ((SessionSerializer.RawValue) value).decode();
+                doPutOrRemove(name, decoded);
+                lazyAttributesDecoded.increment();
+                return decoded;
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to deserialize attribute " + name + " of session "
+                        + getClusterId(), ex);
+            }
+        }
+
+        /**
+         * Decode every attribute that was read lazily
+         */
+        private void decodeAllAttributes() {
+            for (String name : super.getNames()) {
+                decodeAttribute(name);
+            }
+        }
+
+        /**
+         * @param name
+         * @return The attribute as it is to be stored, which may not be decoded yet
+         */
+        Object getStoredAttribute(String name) {
+            load();
+            requireAttribute(name);
+            return doGet(name);
+        }
+
+        /**
+         * @return The attributes as they are to be stored, including those not decoded yet
+         */
+        Map<String, Object> getStoredAttributes() {
+            load();
+            requireAllAttributes();
+            return super.getAttributeMap();
+        }
+
+        @Override
+        public Enumeration<String> getAttributeNames() {
+            load();
+            requireAllAttributes();
+            return super.getAttributeNames();
+        }
+
+        @Override
+        public Map<String, Object> getAttributeMap() {
+            load();
+            requireAllAttributes();
+            decodeAllAttributes();
+            return super.getAttributeMap();
+        }
+
+        @Override
+        public int getAttributes() {
+            load();
+            requireAllAttributes();
+            return super.getAttributes();
+        }
+
+        @Override
+        public Set<String> getNames() {
+            load();
+            requireAllAttributes();
+            return super.getNames();
+        }
+
+        @Override
+        public String[] getValueNames() throws IllegalStateException {
+            load();
+            requireAllAttributes();
+            return super.getValueNames();
         }
 
         public long getLastSaved() {
+            load();
             return lastSaved;
         }
 
@@ -484,18 +2075,56 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
         @Override
         public void setAttribute(String name, Object value) {
             assertWritableSession(this, "setAttribute");
+            load();
+            checkExists("setAttribute");
+            synchronized (this) {
+                if (projection != null) {
+                    //The previous value doesn't matter, the attribute is known from now on
+                    projection.add(name);
+                }
+            }
 
-            dirty = (updateAttribute(name, value) || dirty);
+            //Listeners and the check for an unchanged value need the previous value decoded
+            decodeAttribute(name);
+            if (updateAttribute(name, value)) {
+                changedAttributes.add(name);
+                dirty = true;
+            }
+        }
+
+        /**
+         * Set an attribute from a field of a session bean, which counts as a change even when it's the instance the
+         * session already holds since the bean may have changed it in place
+         *
+         * @param name
+         * @param value
+         */
+        void setBeanAttribute(String name, Object value) {
+            setAttribute(name, value);
+            changedAttributes.add(name);
+            dirty = true;
         }
 
         @Override
         public void removeAttribute(String name) {
             assertWritableSession(this, "removeAttribute");
+            load();
+            checkExists("removeAttribute");
 
+            decodeAttribute(name);
             super.removeAttribute(name);
             dirty = true;
         }
 
+        @Override
+        public void clearAttributes() {
+            if (!_sessionAttributeListeners.isEmpty()) {
+                //The listeners are told the values being removed
+                decodeAllAttributes();
+            }
+            super.clearAttributes();
+        }
+
         @Override
         public void setMaxInactiveInterval(int secs) {
             super.setMaxInactiveInterval(secs);
@@ -515,6 +2144,43 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
             super.putValue(name, value);
         }
 
+        /**
+         * Bind a plain java bean to the session, each of its fields holding the attribute of the same name. The fields
+         * the request changes are set as attributes when the request completes, when the session is writable.
+         *
+         * @param <T>
+         * @param type The type of the bean, which needs a no-arg constructor
+         * @return A new bean holding the attributes of the session
+         */
+        public <T> T bindBean(Class<T> type) {
+            load();
+            SessionBeanBinder<T>.Binding binding = getBeanBinder(type).bind(this);
+            beans.add(binding);
+            return binding.getBean();
+        }
+
+        /**
+         * Set the fields of the bound beans changed since they were last flushed as attributes. Beans bound by other
+         * requests still using the session are flushed as well, and only their later changes again.
+         */
+        private void flushBeans() {
+            if (beans.isEmpty()) {
+                return;
+            }
+
+            for (SessionBeanBinder<?>.Binding binding : beans) {
+                if (write) {
+                    binding.flush(this);
+                } else if (LOG.isWarnEnabled()) {
+                    Set<String> changed = binding.getChanged();
+                    if (!changed.isEmpty()) {
+                        LOG.warn("Ignoring changes to {} of a session bean of read only session id={}", changed,
+                                getClusterId());
+                    }
+                }
+            }
+        }
+
         /**
          * Exit from session
          *
@@ -522,14 +2188,37 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
          */
         @Override
         protected void complete() {
+            try {
+                if (isValid()) {
+                    flushBeans();
+                }
+            } catch (Exception e) {
+                LOG.error("Problem applying session bean changes id=" + getId(), e);
+            }
             super.complete();
+            if (getRequests() == 0) {
+                beans.clear();
+            }
             try {
                 if (isValid()) {
-                    if (dirty) {
+                    if (!loaded) {
+                        //A lazy handle the request never read, which still counts as activity. Not while it's being
+                        //read asynchronously though, the read touches it and the dispatch that follows completes it.
+                        if (!loading) {
+                            reads.touchUnread(getClusterId());
+                        }
+                    } else if (!persisted) {
+                        //A deferred new session is only worth writing once it holds some data
+                        if (getAttributes() > 0) {
+                            willPassivate();
+                            persist(true);
+                            didActivate();
+                        }
+                    } else if (dirty) {
                         //The session attributes have changed, write to the db, ensuring
                         //http passivation/activation listeners called
                         willPassivate();
-                        updateSession(this);
+                        persist(false);
                         didActivate();
                     }
                 }
@@ -537,7 +2226,44 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
                 LOG.error("Problem persisting changed session data id=" + getId(), e);
             } finally {
                 dirty = false;
+                changedAttributes.clear();
+            }
+        }
+
+        /**
+         * Queue the write of the session with the write-behind queue, otherwise wait for the write or only issue it
+         * with asyncWrites
+         *
+         * @param insert Whether the session has never been written before
+         */
+        private void persist(boolean insert) {
+            //The changes are cleared once the request completes so capture them now
+            Set<String> changed = getChangedAttributes();
+
+            SessionWriteBehind queue = writeBehind;
+            if (queue != null && queue.submit(this, insert, changed)) {
+                return;
+            }
+
+            writes.followQueued(this);
+            long version = insert ? -1 : getVersion();
+            Observable<?> write = insert ? writes.insertSessionAsync(this) : writes.updateSessionAsync(this, changed);
+            if (!asyncWrites) {
+                try {
+                    await(write);
+                } catch (RuntimeException ex) {
+                    if (!writes.journalFailed(this, version, ex)) {
+                        throw ex;
+                    }
+                }
+                return;
             }
+
+            write.subscribe(written -> { }, ex -> {
+                if (!writes.journalFailed(this, version, ex)) {
+                    LOG.error("Problem persisting changed session data id=" + getId(), ex);
+                }
+            });
         }
 
         @Override
@@ -550,8 +2276,8 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
 
         @Override
         public String toString() {
-            return "Session id=" + getId() + ",dirty=" + dirty + ",created="
-                    + getCreationTime() + ",accessed=" + getAccessed() + ",lastAccessed=" + getLastAccessedTime()
+            return "Session id=" + getId() + ",dirty=" + dirty + ",loaded=" + loaded + ",created="
+                    + creationTime + ",accessed=" + getAccessed() + ",lastAccessed=" + getLastAccessedTime()
                     + ",maxInterval=" + getMaxInactiveInterval() + ",lastSaved="
                     + lastSaved;
         }
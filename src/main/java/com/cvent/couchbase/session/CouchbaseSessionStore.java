@@ -0,0 +1,217 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.ReplicaMode;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.LegacyDocument;
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.subdoc.AsyncLookupInBuilder;
+import com.couchbase.client.java.subdoc.AsyncMutateInBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import rx.Observable;
+
+/**
+ * SessionStore backed by a couchbase bucket through its AsyncBucket, applying the key/value timeout of the bucket's
+ * environment to every operation the same way the blocking Bucket api does.
+ *
+ * JSON documents are stored as JSON so couchbase can apply sub-document operations to them, binary documents as byte
+ * arrays. Documents are read with the legacy transcoder, which gives back the content of either kind in a single read.
+ *
+ * With rawDocuments the encoded sessions go straight between their bytes and the network buffers through the
+ * RawSessionDocumentTranscoder instead, without decoding JSON documents into strings and encoding them back, which
+ * needs the bucket to be opened with that transcoder.
+ *
+ * The lifecycle of the bucket is managed outside of the store.
+ */
+public final class CouchbaseSessionStore implements SessionStore {
+
+    /**
+     * Decodes JSON fragments into the plain values the sub-document api takes, which encode back to the same JSON
+     */
+    private static final ObjectMapper FRAGMENTS = new ObjectMapper();
+
+    private final AsyncBucket bucket;
+    private final long timeout;
+    private final boolean rawDocuments;
+    private final Class<? extends Document<?>> documentType;
+
+    /**
+     * @param bucket The couchbase Bucket api instance for communicating with couchbase
+     */
+    public CouchbaseSessionStore(Bucket bucket) {
+        this(bucket, false);
+    }
+
+    /**
+     * @param bucket The couchbase Bucket api instance for communicating with couchbase
+     * @param rawDocuments Whether to use RawSessionDocuments, the bucket must have been opened with the
+     * RawSessionDocumentTranscoder
+     */
+    public CouchbaseSessionStore(Bucket bucket, boolean rawDocuments) {
+        this.bucket = bucket.async();
+        this.timeout = bucket.environment().kvTimeout();
+        this.rawDocuments = rawDocuments;
+        this.documentType = rawDocuments ? RawSessionDocument.class : LegacyDocument.class;
+    }
+
+    @Override
+    public Observable<SessionDocument> get(String id) {
+        return withTimeout(bucket.get(id, documentType)).map(CouchbaseSessionStore::fromCouchbase);
+    }
+
+    @Override
+    public Observable<SessionDocument> getAndTouch(String id, int expiry) {
+        return withTimeout(bucket.getAndTouch(id, expiry, documentType))
+                .map(CouchbaseSessionStore::fromCouchbase);
+    }
+
+    @Override
+    public Observable<SessionDocument> getFromReplica(String id, ReplicaMode mode) {
+        return withTimeout(bucket.getFromReplica(id, mode, documentType))
+                .map(CouchbaseSessionStore::fromCouchbase);
+    }
+
+    @Override
+    public Observable<SessionDocument> insert(SessionDocument document) {
+        return withTimeout(bucket.insert(toCouchbase(document))).map(saved -> withCas(document, saved));
+    }
+
+    @Override
+    public Observable<SessionDocument> upsert(SessionDocument document) {
+        return withTimeout(bucket.upsert(toCouchbase(document))).map(saved -> withCas(document, saved));
+    }
+
+    @Override
+    public Observable<SessionDocument> replace(SessionDocument document) {
+        return withTimeout(bucket.replace(toCouchbase(document))).map(saved -> withCas(document, saved));
+    }
+
+    @Override
+    public Observable<SessionDocument> remove(String id) {
+        return withTimeout(bucket.remove(id, documentType)).map(CouchbaseSessionStore::fromCouchbase);
+    }
+
+    @Override
+    public Observable<SessionFragment> lookupIn(String id, Collection<String> paths) {
+        AsyncLookupInBuilder lookup = bucket.lookupIn(id);
+        for (String path : paths) {
+            lookup.get(path);
+        }
+
+        return withTimeout(lookup.execute()).map(result -> {
+            Map<String, Object> values = new HashMap<>();
+            for (String path : paths) {
+                if (result.exists(path)) {
+                    values.put(path, plain(result.content(path)));
+                }
+            }
+            return new SessionFragment(id, result.cas(), values);
+        });
+    }
+
+    @Override
+    public Observable<SessionFragment> mutateIn(String id, int expiry, List<SessionMutation> mutations) {
+        AsyncMutateInBuilder mutation = bucket.mutateIn(id).withExpiry(expiry);
+        for (SessionMutation spec : mutations) {
+            switch (spec.getType()) {
+                case UPSERT:
+                    mutation.upsert(spec.getPath(), spec.getValue(), spec.isCreateParents());
+                    break;
+                case UPSERT_FRAGMENT:
+                    mutation.upsert(spec.getPath(), fragment(spec), spec.isCreateParents());
+                    break;
+                case REMOVE:
+                    mutation.remove(spec.getPath());
+                    break;
+                case COUNTER:
+                    mutation.counter(spec.getPath(), (Long) spec.getValue(), spec.isCreateParents());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported mutation " + spec);
+            }
+        }
+
+        return withTimeout(mutation.execute()).map(result -> {
+            Map<String, Object> values = new HashMap<>();
+            for (SessionMutation spec : mutations) {
+                if (spec.getType() == SessionMutation.Type.COUNTER) {
+                    values.put(spec.getPath(), result.content(spec.getPath()));
+                }
+            }
+            return new SessionFragment(id, result.cas(), values);
+        });
+    }
+
+    private static Object fragment(SessionMutation spec) {
+        try {
+            return FRAGMENTS.readValue((byte[]) spec.getValue(), Object.class);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Invalid JSON fragment for " + spec, ex);
+        }
+    }
+
+    private <T> Observable<T> withTimeout(Observable<T> operation) {
+        return operation.timeout(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param document
+     * @return The couchbase document to write, JSON documents keep their JSON flags so they stay usable by the
+     * sub-document operations
+     */
+    private Document<?> toCouchbase(SessionDocument document) {
+        if (rawDocuments) {
+            return RawSessionDocument.create(document.id(), document.expiry(), document.content(), document.cas());
+        }
+        if (SessionCodec.formatOf(document.content()) == SessionCodec.JSON) {
+            return RawJsonDocument.create(document.id(), document.expiry(),
+                    new String(document.content(), StandardCharsets.UTF_8), document.cas());
+        }
+        return LegacyDocument.create(document.id(), document.expiry(), document.content(), document.cas());
+    }
+
+    /**
+     * @param document
+     * @return The document as read with the legacy transcoder, which decodes JSON as a string and byte arrays as they
+     * were written, or with the raw session transcoder, which gives back the bytes of either
+     */
+    private static SessionDocument fromCouchbase(Document<?> document) {
+        Object content = document.content();
+        byte[] bytes;
+        if (content == null || content instanceof byte[]) {
+            //A removed document comes back without its content
+            bytes = (byte[]) content;
+        } else {
+            bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return SessionDocument.create(document.id(), document.expiry(), bytes, document.cas());
+    }
+
+    private static SessionDocument withCas(SessionDocument document, Document<?> saved) {
+        return SessionDocument.create(document.id(), document.expiry(), document.content(), saved.cas());
+    }
+
+    /**
+     * @param value
+     * @return The value with couchbase json objects and arrays turned into the same plain maps and lists that jackson
+     * produces
+     */
+    private static Object plain(Object value) {
+        if (value instanceof JsonObject) {
+            return ((JsonObject) value).toMap();
+        } else if (value instanceof JsonArray) {
+            return ((JsonArray) value).toList();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,29 @@
+package com.cvent.couchbase.session;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a session attribute type for the dropwizard-couchbase-sessions-processor annotation processor, which generates
+ * a SessionAttributeCodec for it at compile time and registers the codec as a service that CouchbaseSessionManager
+ * loads on its own. Attributes of the type are then read and written without jackson databind.
+ *
+ * The type needs a no-arg constructor, and its properties are its non-static, non-transient public fields and its
+ * public getter/setter pairs, named the way jackson names them. Properties of types the processor knows (primitives,
+ * strings, enums and other annotated types) are read and written directly, any other property goes through the
+ * ObjectMapper of the session codec. Jackson annotations on the type are not supported.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface GenerateSessionCodec {
+
+    /**
+     * @return The names of the session attributes holding the type, which are registered as attributes of the type.
+     * Defaults to none, the type is then only used for attributes it's registered for with the session manager.
+     */
+    String[] attributes() default {};
+}
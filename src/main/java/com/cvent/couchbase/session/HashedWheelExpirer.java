@@ -0,0 +1,172 @@
+package com.cvent.couchbase.session;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Expires keys at their deadline using a hashed timing wheel, so that scheduling a key is O(1) however many keys are
+ * pending and each tick only looks at the keys that hash to the current slot.
+ *
+ * A key is scheduled by its deadline and, when its slot comes around after the deadline, the owner is asked to
+ * expire it. The owner answers with a later deadline if the key has been touched in the meantime, and the key is
+ * rescheduled for that instead of the owner having to schedule every touch. Keys whose deadline is more than one
+ * rotation of the wheel away simply stay in their slot until a rotation reaches it. A key is never more than a tick
+ * late: one whose slot was already visited when it was scheduled, or that is due later in the tick being visited, is
+ * moved on to the next slot to be visited.
+ */
+final class HashedWheelExpirer {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(HashedWheelExpirer.class);
+
+    /**
+     * Called for a key whose deadline has passed
+     */
+    interface Expiry {
+
+        /**
+         * @param key
+         * @param deadline The deadline the key was scheduled for
+         * @param now The current time in msec since the epoch
+         * @return A later deadline to reschedule the key for, or 0 if it was expired or no longer needs expiring
+         */
+        long expire(String key, long deadline, long now);
+    }
+
+    private final Expiry expiry;
+    private final long tickMillis;
+    private final Queue<Timer>[] wheel;
+    private final int mask;
+
+    private ScheduledExecutorService executor;
+    private volatile long lastTick;
+
+    /**
+     * @param expiry The owner of the keys
+     * @param tickMillis The resolution of the wheel in msec
+     * @param ticksPerWheel The number of slots, rounded up to a power of 2
+     */
+    @SuppressWarnings("unchecked")
+    HashedWheelExpirer(Expiry expiry, long tickMillis, int ticksPerWheel) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be > 0 but was " + tickMillis);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 20) {
+            throw new IllegalArgumentException("ticksPerWheel must be in (0, 2^20] but was " + ticksPerWheel);
+        }
+
+        int slots = 1;
+        while (slots < ticksPerWheel) {
+            slots <<= 1;
+        }
+        this.expiry = expiry;
+        this.tickMillis = tickMillis;
+        this.wheel = new Queue[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.mask = slots - 1;
+    }
+
+    /**
+     * Schedule a key to be expired
+     *
+     * @param key
+     * @param deadline Time in msec since the epoch, 0 for never
+     */
+    void schedule(String key, long deadline) {
+        if (deadline > 0) {
+            //A slot already visited would only be visited again a rotation later
+            long tick = Math.max(deadline / tickMillis, lastTick + 1);
+            wheel[(int) tick & mask].add(new Timer(key, deadline));
+        }
+    }
+
+    /**
+     * Start ticking
+     */
+    synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        lastTick = System.currentTimeMillis() / tickMillis;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-store-expirer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop ticking, the pending keys stay scheduled
+     */
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Expire the keys of every slot passed since the last tick
+     */
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            long currentTick = now / tickMillis;
+            //After a stall there is no point in visiting the same slot more than once
+            long from = Math.max(lastTick + 1, currentTick - mask);
+
+            for (long tick = from; tick <= currentTick; tick++) {
+                expireSlot(tick, now);
+            }
+            lastTick = currentTick;
+        } catch (RuntimeException ex) {
+            //Never let a failure cancel the ticking
+            LOG.warn("Failed to expire sessions", ex);
+        }
+    }
+
+    private void expireSlot(long tick, long now) {
+        Iterator<Timer> timers = wheel[(int) tick & mask].iterator();
+        while (timers.hasNext()) {
+            Timer timer = timers.next();
+            if (timer.deadline > now) {
+                if (timer.deadline / tickMillis <= tick) {
+                    //Later in the tick being visited, so due by the next one rather than a rotation later
+                    timers.remove();
+                    wheel[(int) (tick + 1) & mask].add(timer);
+                }
+                //Otherwise due in a later rotation
+                continue;
+            }
+
+            timers.remove();
+            long later = expiry.expire(timer.key, timer.deadline, now);
+            if (later > 0) {
+                schedule(timer.key, later);
+            }
+        }
+    }
+
+    /**
+     * A scheduled key
+     */
+    private static final class Timer {
+
+        private final String key;
+
+        private final long deadline;
+
+        private Timer(String key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+}
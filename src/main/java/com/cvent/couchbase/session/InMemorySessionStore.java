@@ -0,0 +1,428 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.ReplicaMode;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.subdoc.DocumentNotJsonException;
+import com.couchbase.client.java.error.subdoc.PathMismatchException;
+import com.couchbase.client.java.error.subdoc.PathNotFoundException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.statistic.CounterStatistic;
+import rx.Observable;
+
+/**
+ * A SessionStore that keeps the session documents in memory, for running the manager with no cluster (ie. local
+ * development, tests, benchmarks and load tests) or as a single node store.
+ *
+ * It behaves like a couchbase bucket as far as the manager can tell: every write gets a new CAS, replace checks the
+ * CAS, insert fails if the document exists, documents expire with the couchbase expiry semantics and the
+ * sub-document operations apply all of their mutations or none of them. Every operation on a document is atomic.
+ * There are no replicas, so a replica read answers with the one copy there is.
+ *
+ * Expired documents are never returned. They are removed by a hashed timing wheel that only runs while the store is
+ * started, which CouchbaseSessionManager does when given the store.
+ *
+ * Sub-document paths may only address fields of objects (ie. attributes.`name`), not elements of arrays.
+ */
+@ManagedObject("In-memory session store")
+public final class InMemorySessionStore extends AbstractLifeCycle implements SessionStore {
+
+    /**
+     * Couchbase treats an expiry above 30 days as an absolute unix time rather than a number of seconds from now
+     */
+    private static final int RELATIVE_EXPIRY_LIMIT = 30 * 24 * 60 * 60;
+
+    private final ConcurrentHashMap<String, Entry> documents = new ConcurrentHashMap<>();
+    private final AtomicLong casSequence = new AtomicLong(System.currentTimeMillis() << 16);
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HashedWheelExpirer expirer;
+
+    private final CounterStatistic expired = new CounterStatistic();
+
+    /**
+     * Create a new store expiring documents with a resolution of 100 msec
+     */
+    public InMemorySessionStore() {
+        this(100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Create a new store
+     *
+     * @param tick The resolution of the expiry of documents
+     * @param unit The unit of tick
+     * @param ticksPerWheel The number of slots of the timing wheel, ideally about the number of ticks in the
+     * maxInactiveInterval of the sessions
+     */
+    public InMemorySessionStore(long tick, TimeUnit unit, int ticksPerWheel) {
+        this.expirer = new HashedWheelExpirer(this::expire, unit.toMillis(tick), ticksPerWheel);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        expirer.start();
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        expirer.stop();
+        super.doStop();
+    }
+
+    @Override
+    public Observable<SessionDocument> get(String id) {
+        return Observable.defer(() -> {
+            Entry entry = live(documents.get(id));
+            return entry == null ? Observable.<SessionDocument>empty() : Observable.just(entry.toDocument(id));
+        });
+    }
+
+    @Override
+    public Observable<SessionDocument> getAndTouch(String id, int expiry) {
+        return Observable.defer(() -> {
+            Entry entry = documents.computeIfPresent(id, (key, current) -> live(current) == null
+                    ? current
+                    : write(key, current, current.content, expiry));
+            entry = live(entry);
+            return entry == null ? Observable.<SessionDocument>empty() : Observable.just(entry.toDocument(id));
+        });
+    }
+
+    @Override
+    public Observable<SessionDocument> getFromReplica(String id, ReplicaMode mode) {
+        //The only copy is always up to date, so it answers for every replica
+        return get(id);
+    }
+
+    @Override
+    public Observable<SessionDocument> insert(SessionDocument document) {
+        return Observable.defer(() -> Observable.just(documents.compute(document.id(), (key, current) -> {
+            if (live(current) != null) {
+                throw new DocumentAlreadyExistsException();
+            }
+            return write(key, null, document.content(), document.expiry());
+        }).toDocument(document.id())));
+    }
+
+    @Override
+    public Observable<SessionDocument> upsert(SessionDocument document) {
+        return Observable.defer(() -> Observable.just(documents.compute(document.id(),
+                (key, current) -> write(key, live(current), document.content(), document.expiry()))
+                .toDocument(document.id())));
+    }
+
+    @Override
+    public Observable<SessionDocument> replace(SessionDocument document) {
+        return Observable.defer(() -> Observable.just(documents.compute(document.id(), (key, current) -> {
+            current = existing(current);
+            if (document.cas() != 0 && document.cas() != current.cas) {
+                throw new CASMismatchException();
+            }
+            return write(key, current, document.content(), document.expiry());
+        }).toDocument(document.id())));
+    }
+
+    @Override
+    public Observable<SessionDocument> remove(String id) {
+        return Observable.defer(() -> {
+            Entry[] removed = new Entry[1];
+            documents.compute(id, (key, current) -> {
+                removed[0] = existing(current);
+                return null;
+            });
+            return Observable.just(removed[0].toDocument(id));
+        });
+    }
+
+    @Override
+    public Observable<SessionFragment> lookupIn(String id, Collection<String> paths) {
+        return Observable.defer(() -> {
+            Entry entry = existing(documents.get(id));
+            ObjectNode root = parse(id, entry.content);
+
+            Map<String, Object> values = new HashMap<>();
+            for (String path : paths) {
+                JsonNode node = root;
+                for (String field : parsePath(path)) {
+                    node = node.isObject() ? node.get(field) : null;
+                    if (node == null) {
+                        break;
+                    }
+                }
+                if (node != null) {
+                    values.put(path, plain(node));
+                }
+            }
+
+            return Observable.just(new SessionFragment(id, entry.cas, values));
+        });
+    }
+
+    @Override
+    public Observable<SessionFragment> mutateIn(String id, int expiry, List<SessionMutation> mutations) {
+        return Observable.defer(() -> {
+            Map<String, Object> values = new HashMap<>();
+            Entry entry = documents.compute(id, (key, current) -> {
+                current = existing(current);
+                ObjectNode root = parse(key, current.content);
+                //Only the counters of the mutations that were applied to this copy may be reported
+                values.clear();
+
+                for (SessionMutation mutation : mutations) {
+                    apply(key, root, mutation, values);
+                }
+
+                try {
+                    return write(key, current, mapper.writeValueAsBytes(root), expiry);
+                } catch (JsonProcessingException ex) {
+                    throw new RuntimeException("Failed to serialize document " + key, ex);
+                }
+            });
+
+            return Observable.just(new SessionFragment(id, entry.cas, values));
+        });
+    }
+
+    /**
+     * @return The number of documents held, including expired ones that were not removed yet
+     */
+    @ManagedAttribute("number of documents held")
+    public int getSize() {
+        return documents.size();
+    }
+
+    /**
+     * @return The number of documents removed because they expired
+     */
+    @ManagedAttribute("number of documents removed because they expired")
+    public long getExpired() {
+        return expired.getTotal();
+    }
+
+    private void apply(String id, ObjectNode root, SessionMutation mutation, Map<String, Object> values) {
+        List<String> fields = parsePath(mutation.getPath());
+        ObjectNode parent = root;
+
+        for (String field : fields.subList(0, fields.size() - 1)) {
+            JsonNode child = parent.get(field);
+            if (child == null) {
+                if (!mutation.isCreateParents()) {
+                    throw new PathNotFoundException(id, mutation.getPath());
+                }
+                child = parent.putObject(field);
+            } else if (!child.isObject()) {
+                throw new PathMismatchException(id, mutation.getPath());
+            }
+            parent = (ObjectNode) child;
+        }
+
+        String field = fields.get(fields.size() - 1);
+        switch (mutation.getType()) {
+            case UPSERT:
+                parent.set(field, mapper.<JsonNode>valueToTree(mutation.getValue()));
+                break;
+            case UPSERT_FRAGMENT:
+                parent.set(field, fragment(mutation));
+                break;
+            case REMOVE:
+                if (parent.remove(field) == null) {
+                    throw new PathNotFoundException(id, mutation.getPath());
+                }
+                break;
+            case COUNTER:
+                JsonNode current = parent.get(field);
+                if (current != null && !current.isIntegralNumber()) {
+                    throw new PathMismatchException(id, mutation.getPath());
+                }
+                long value = (current == null ? 0 : current.longValue()) + (Long) mutation.getValue();
+                parent.put(field, value);
+                values.put(mutation.getPath(), value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported mutation " + mutation);
+        }
+    }
+
+    /**
+     * Split a sub-document path into its fields. Fields are separated by dots and a field quoted with backticks may
+     * contain anything, with a backtick written as two.
+     *
+     * @param path
+     * @return The fields of the path
+     */
+    static List<String> parsePath(String path) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '`') {
+                if (quoted && i + 1 < path.length() && path.charAt(i + 1) == '`') {
+                    field.append('`');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == '.' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '[' && !quoted) {
+                throw new IllegalArgumentException("Array elements are not supported in path " + path);
+            } else {
+                field.append(c);
+            }
+        }
+
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated backtick in path " + path);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private ObjectNode parse(String id, byte[] content) {
+        try {
+            JsonNode root = mapper.readTree(content);
+            if (root instanceof ObjectNode) {
+                return (ObjectNode) root;
+            }
+        } catch (IOException ex) {
+            //Same as any other content that isn't a JSON object, ie. a binary encoded session
+        }
+        throw new DocumentNotJsonException(id);
+    }
+
+    private JsonNode fragment(SessionMutation mutation) {
+        try {
+            return mapper.readTree((byte[]) mutation.getValue());
+        } catch (IOException ex) {
+            throw new RuntimeException("Invalid JSON fragment for " + mutation, ex);
+        }
+    }
+
+    private Object plain(JsonNode node) {
+        try {
+            return mapper.treeToValue(node, Object.class);
+        } catch (JsonProcessingException ex) {
+            throw new RuntimeException("Failed to convert " + node, ex);
+        }
+    }
+
+    /**
+     * Create the entry for a write of a document, scheduling it to be expired unless the pending expiry of the
+     * document it replaces will do
+     *
+     * @param id
+     * @param current The live entry being replaced or null
+     * @param content
+     * @param expiry The couchbase expiry of the document
+     * @return The new entry
+     */
+    private Entry write(String id, Entry current, byte[] content, int expiry) {
+        long expiresAt = expiresAt(expiry);
+        long scheduled = current == null ? 0 : current.scheduled;
+
+        //A pending expiry that is due no later than the new one reschedules itself once it finds the document touched
+        if (expiresAt > 0 && (scheduled == 0 || expiresAt < scheduled)) {
+            scheduled = expiresAt;
+            expirer.schedule(id, scheduled);
+        }
+
+        return new Entry(content, casSequence.incrementAndGet(), expiresAt, scheduled);
+    }
+
+    /**
+     * Called by the expirer for a document whose scheduled expiry is due
+     */
+    private long expire(String id, long deadline, long now) {
+        long[] later = new long[1];
+        documents.computeIfPresent(id, (key, current) -> {
+            if (current.scheduled != deadline) {
+                //The document was recreated since and has its own expiry pending
+                return current;
+            }
+            if (current.isExpired(now)) {
+                expired.increment();
+                return null;
+            }
+
+            later[0] = current.expiresAt;
+            return new Entry(current.content, current.cas, current.expiresAt, current.expiresAt);
+        });
+        return later[0];
+    }
+
+    private static long expiresAt(int expiry) {
+        if (expiry <= 0) {
+            return 0;
+        } else if (expiry > RELATIVE_EXPIRY_LIMIT) {
+            return TimeUnit.SECONDS.toMillis(expiry);
+        }
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiry);
+    }
+
+    private static Entry live(Entry entry) {
+        return entry == null || entry.isExpired(System.currentTimeMillis()) ? null : entry;
+    }
+
+    private static Entry existing(Entry entry) {
+        entry = live(entry);
+        if (entry == null) {
+            throw new DocumentDoesNotExistException();
+        }
+        return entry;
+    }
+
+    /**
+     * A stored document, never changed once created
+     */
+    private static final class Entry {
+
+        private final byte[] content;
+
+        private final long cas;
+
+        /**
+         * Time in msec since the epoch that the document expires, 0 for never
+         */
+        private final long expiresAt;
+
+        /**
+         * The deadline the document is scheduled with the expirer for, 0 for none
+         */
+        private final long scheduled;
+
+        private Entry(byte[] content, long cas, long expiresAt, long scheduled) {
+            this.content = content;
+            this.cas = cas;
+            this.expiresAt = expiresAt;
+            this.scheduled = scheduled;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt > 0 && expiresAt <= now;
+        }
+
+        private SessionDocument toDocument(String id) {
+            return SessionDocument.create(id, 0, content, cas);
+        }
+    }
+}
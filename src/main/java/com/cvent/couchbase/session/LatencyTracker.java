@@ -0,0 +1,71 @@
+package com.cvent.couchbase.session;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples of an operation so that a percentile of them can be used as a threshold, ie.
+ * for deciding when a read has taken long enough that it's worth hedging it.
+ *
+ * The percentile is recomputed only every so many samples since sorting the window on every request would cost more
+ * than the precision is worth.
+ */
+final class LatencyTracker {
+
+    /**
+     * Number of samples needed before a percentile is reported
+     */
+    private static final int MIN_SAMPLES = 100;
+
+    private final long[] samples;
+    private final int recomputeEvery;
+
+    private int count = 0;
+    private int next = 0;
+    private int sinceComputed = 0;
+
+    private double computedFor = -1;
+    private long computed = -1;
+
+    /**
+     * @param window The number of most recent samples to keep
+     */
+    LatencyTracker(int window) {
+        this.samples = new long[window];
+        this.recomputeEvery = Math.max(1, window / 8);
+    }
+
+    /**
+     * Record a sample
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        sinceComputed++;
+    }
+
+    /**
+     * @param percentile The percentile, ie. 99 for the 99th
+     * @return The latency in nanoseconds at the percentile or -1 if there are not enough samples yet
+     */
+    synchronized long percentile(double percentile) {
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+
+        if (computed < 0 || computedFor != percentile || sinceComputed >= recomputeEvery) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * count) - 1;
+            computed = sorted[Math.max(0, Math.min(count - 1, index))];
+            computedFor = percentile;
+            sinceComputed = 0;
+        }
+
+        return computed;
+    }
+}
@@ -0,0 +1,25 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.document.AbstractDocument;
+
+/**
+ * A couchbase document holding the bytes of an encoded session as they are, whatever their format. It can only be
+ * used with a bucket opened with the RawSessionDocumentTranscoder.
+ */
+public final class RawSessionDocument extends AbstractDocument<byte[]> {
+
+    private RawSessionDocument(String id, int expiry, byte[] content, long cas) {
+        super(id, expiry, content, cas);
+    }
+
+    /**
+     * @param id The document id
+     * @param expiry The expiry of the document
+     * @param content The encoded session
+     * @param cas The CAS of the document
+     * @return A new document
+     */
+    public static RawSessionDocument create(String id, int expiry, byte[] content, long cas) {
+        return new RawSessionDocument(id, expiry, content, cas);
+    }
+}
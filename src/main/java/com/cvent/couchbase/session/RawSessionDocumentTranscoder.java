@@ -0,0 +1,101 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.core.lang.Tuple;
+import com.couchbase.client.core.lang.Tuple2;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.MutationToken;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.ByteBufInputStream;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.java.transcoder.AbstractTranscoder;
+import com.couchbase.client.java.transcoder.TranscoderUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Transcodes RawSessionDocuments straight between the bytes of the encoded session and the network buffers of the
+ * couchbase client. Unlike RawJsonDocument no String is decoded or encoded along the way. The transcoder wraps the
+ * bytes of a document it writes without copying them, and copies a document it reads once out of the network buffer,
+ * which the client releases once it's decoded. That copy is kept on purpose: the near cache, the journal and the
+ * session itself hold on to the bytes long after the buffer is gone. Serializing a session copies it once more out of
+ * the SessionOutputBuffer it was written into.
+ *
+ * Documents of any format are read, whatever their flags, so that JSON and binary sessions can be read in one round
+ * trip. Binary documents written by the legacy transcoder (ie. by a CouchbaseSessionStore without rawDocuments) that
+ * it compressed are inflated, so switching a store to rawDocuments needs no migration. JSON documents are written with
+ * the JSON flags so that couchbase still applies sub-document operations to them.
+ *
+ * Register it when opening the bucket and create the CouchbaseSessionStore with rawDocuments:
+ * <pre>
+ * Bucket bucket = cluster.openBucket(name, Collections.singletonList(new RawSessionDocumentTranscoder()));
+ * SessionStore store = new CouchbaseSessionStore(bucket, true);
+ * </pre>
+ */
+public final class RawSessionDocumentTranscoder extends AbstractTranscoder<RawSessionDocument, byte[]> {
+
+    /**
+     * Legacy flag of a document the legacy transcoder wrote as a serialized java object
+     */
+    private static final int LEGACY_SERIALIZED = 1;
+
+    /**
+     * Legacy flag of a document the legacy transcoder gzipped, which it does to anything over 16 KB
+     */
+    private static final int LEGACY_COMPRESSED = 2;
+
+    @Override
+    protected RawSessionDocument doDecode(String id, ByteBuf content, long cas, int expiry, int flags,
+            ResponseStatus status) throws Exception {
+        if ((flags & LEGACY_SERIALIZED) != 0) {
+            //Session documents are never written as java objects
+            throw new IllegalStateException("Document " + id + " is a serialized java object, not a session");
+        }
+        if ((flags & LEGACY_COMPRESSED) != 0) {
+            return newDocument(id, expiry, gunzip(content), cas);
+        }
+
+        byte[] bytes = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), bytes);
+        return newDocument(id, expiry, bytes, cas);
+    }
+
+    private static byte[] gunzip(ByteBuf content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.readableBytes() * 4);
+        try (InputStream in = new GZIPInputStream(new ByteBufInputStream(content))) {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    protected Tuple2<ByteBuf, Integer> doEncode(RawSessionDocument document) throws Exception {
+        byte[] content = document.content();
+        int flags = SessionCodec.formatOf(content) == SessionCodec.JSON
+                ? TranscoderUtils.JSON_COMPAT_FLAGS
+                : TranscoderUtils.BINARY_COMPAT_FLAGS;
+        //The encoded session is never changed once written, so the buffer can share its bytes
+        return Tuple.create(Unpooled.wrappedBuffer(content), flags);
+    }
+
+    @Override
+    public RawSessionDocument newDocument(String id, int expiry, byte[] content, long cas) {
+        return RawSessionDocument.create(id, expiry, content, cas);
+    }
+
+    @Override
+    public RawSessionDocument newDocument(String id, int expiry, byte[] content, long cas,
+            MutationToken mutationToken) {
+        return RawSessionDocument.create(id, expiry, content, cas);
+    }
+
+    @Override
+    public Class<RawSessionDocument> documentType() {
+        return RawSessionDocument.class;
+    }
+}
@@ -0,0 +1,42 @@
+package com.cvent.couchbase.session;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import java.io.IOException;
+
+/**
+ * Reads and writes session attributes of one type with the jackson streaming api, without databind. Implementations
+ * are generated for types annotated with @GenerateSessionCodec, and found by CouchbaseSessionManager with a
+ * ServiceLoader, but can also be written by hand and added with addAttributeCodec.
+ *
+ * The generator and parser are those of the session document, whatever its format, and have the ObjectMapper of the
+ * session codec as their codec for any value the implementation leaves to databind.
+ *
+ * @param <T> The attribute type
+ */
+public interface SessionAttributeCodec<T> {
+
+    /**
+     * @return The attribute type, values of exactly this class are written by the codec
+     */
+    Class<T> getType();
+
+    /**
+     * @return The names of the session attributes that are decoded by the codec
+     */
+    String[] getAttributes();
+
+    /**
+     * @param value
+     * @param generator Positioned where the value is to be written
+     * @throws IOException
+     */
+    void write(T value, JsonGenerator generator) throws IOException;
+
+    /**
+     * @param parser Positioned at the first token of the value, and left at its last token
+     * @return The value
+     * @throws IOException
+     */
+    T read(JsonParser parser) throws IOException;
+}
@@ -0,0 +1,103 @@
+package com.cvent.couchbase.session;
+
+import com.fasterxml.jackson.databind.JavaType;
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * The types that session attributes are decoded into, registered by attribute name or by a pattern of names. An
+ * attribute without a type is decoded into the plain maps, lists and values jackson produces for any JSON.
+ *
+ * A name is looked up by exact match first and then against the patterns in the order they were registered. The
+ * outcome for a name matched against the patterns is remembered, up to MAX_RESOLVED names, so that the patterns are
+ * not matched again on every read.
+ *
+ * Attribute types can also have a SessionAttributeCodec, which then reads and writes the values of the type instead
+ * of jackson databind.
+ */
+final class SessionAttributeTypes {
+
+    private static final int MAX_RESOLVED = 4096;
+
+    private final ConcurrentMap<String, JavaType> names = new ConcurrentHashMap<>();
+
+    private final List<Map.Entry<Pattern, JavaType>> patterns = new CopyOnWriteArrayList<>();
+
+    private final ConcurrentMap<String, Optional<JavaType>> resolved = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Class<?>, SessionAttributeCodec<?>> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * @param name The name of the attribute
+     * @param type
+     */
+    void add(String name, JavaType type) {
+        names.put(name, type);
+    }
+
+    /**
+     * @param pattern A pattern that the whole name of an attribute must match
+     * @param type
+     */
+    void add(Pattern pattern, JavaType type) {
+        patterns.add(new AbstractMap.SimpleImmutableEntry<>(pattern, type));
+        resolved.clear();
+    }
+
+    /**
+     * @param codec The codec of the values of its type
+     */
+    void add(SessionAttributeCodec<?> codec) {
+        codecs.put(codec.getType(), codec);
+    }
+
+    /**
+     * @param type
+     * @return The codec of exactly the given type or null if it has none
+     */
+    SessionAttributeCodec<?> codecOf(Class<?> type) {
+        return codecs.isEmpty() ? null : codecs.get(type);
+    }
+
+    /**
+     * @return Whether no type has been registered at all
+     */
+    boolean isEmpty() {
+        return names.isEmpty() && patterns.isEmpty();
+    }
+
+    /**
+     * @param name The name of an attribute
+     * @return The type of the attribute or null if it has none
+     */
+    JavaType typeOf(String name) {
+        JavaType type = names.get(name);
+        if (type != null || patterns.isEmpty()) {
+            return type;
+        }
+
+        Optional<JavaType> match = resolved.get(name);
+        if (match == null) {
+            match = Optional.ofNullable(match(name));
+            if (resolved.size() < MAX_RESOLVED) {
+                resolved.put(name, match);
+            }
+        }
+        return match.orElse(null);
+    }
+
+    private JavaType match(String name) {
+        for (Map.Entry<Pattern, JavaType> pattern : patterns) {
+            if (pattern.getKey().matcher(name).matches()) {
+                return pattern.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,263 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Binds a plain java bean to the attributes of a session, each field of the bean holding the attribute of the same
+ * name. A bean is bound for a request by reading its fields from the session, and the fields it changed are written
+ * back as attributes when the request completes, so attributes the request never changed are never written.
+ *
+ * A field counts as changed when it holds another value than it was bound with, or the same value with another
+ * hashCode, which catches values changed in place as long as their hashCode reflects their content (ie. collections).
+ * A value with an identity hashCode that is changed in place has to be assigned a new instance to be written.
+ *
+ * The bean needs a no-arg constructor. Static and transient fields are not bound.
+ *
+ * @param <T> The type of the bean
+ */
+final class SessionBeanBinder<T> {
+
+    private final Class<T> type;
+
+    private final Constructor<T> constructor;
+
+    private final List<Property> properties;
+
+    private final Set<String> names;
+
+    private final ObjectMapper mapper;
+
+    /**
+     * @param type The type of the bean
+     * @param mapper The mapper converting attributes that were not decoded into the type of their field
+     */
+    SessionBeanBinder(Class<T> type, ObjectMapper mapper) {
+        this.type = type;
+        this.mapper = mapper;
+        try {
+            this.constructor = type.getDeclaredConstructor();
+            this.constructor.setAccessible(true);
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalArgumentException("Session bean " + type.getName() + " has no no-arg constructor", ex);
+        }
+
+        List<Property> fields = new ArrayList<>();
+        Set<String> fieldNames = new LinkedHashSet<>();
+        for (Field field : fields(type)) {
+            field.setAccessible(true);
+            fields.add(new Property(field, mapper.getTypeFactory().constructType(field.getGenericType())));
+            fieldNames.add(field.getName());
+        }
+        this.properties = Collections.unmodifiableList(fields);
+        this.names = Collections.unmodifiableSet(fieldNames);
+    }
+
+    /**
+     * @param type The type of a bean
+     * @return The fields bound to attributes, a field hiding one of a superclass taking its place
+     */
+    static List<Field> fields(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()
+                        && names.add(field.getName())) {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Get the value of type
+     *
+     * @return the value of type
+     */
+    Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * @return The names of the attributes the bean is bound to
+     */
+    Set<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Call the consumer with the name and type of every attribute the bean is bound to
+     *
+     * @param types Takes the name and type of every attribute
+     */
+    void forEachType(BiConsumer<String, JavaType> types) {
+        for (Property property : properties) {
+            types.accept(property.field.getName(), property.type);
+        }
+    }
+
+    /**
+     * @param session
+     * @return A new bean holding the attributes of the session
+     */
+    Binding bind(HttpSession session) {
+        T bean;
+        try {
+            bean = constructor.newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new RuntimeException("Failed to create session bean " + type.getName(), ex);
+        }
+
+        Object[] values = new Object[properties.size()];
+        int[] hashes = new int[properties.size()];
+        for (int i = 0; i < values.length; i++) {
+            Property property = properties.get(i);
+            Object value = session.getAttribute(property.field.getName());
+            if (value != null) {
+                value = property.convert(value, mapper);
+                property.set(bean, value);
+            }
+            //Read back so that a field the bean initialized itself is seen as unchanged
+            values[i] = property.get(bean);
+            hashes[i] = Objects.hashCode(values[i]);
+        }
+        return new Binding(bean, values, hashes);
+    }
+
+    /**
+     * A field of the bean
+     */
+    private static final class Property {
+
+        private final Field field;
+
+        private final JavaType type;
+
+        /**
+         * The type of the field, boxed if it's a primitive
+         */
+        private final Class<?> boxed;
+
+        private Property(Field field, JavaType type) {
+            this.field = field;
+            this.type = type;
+            this.boxed = MethodType.methodType(field.getType()).wrap().returnType();
+        }
+
+        /**
+         * @param value
+         * @param mapper
+         * @return The value, converted if it was decoded as a plain value rather than the type of the field
+         */
+        private Object convert(Object value, ObjectMapper mapper) {
+            return boxed.isInstance(value) ? value : mapper.convertValue(value, type);
+        }
+
+        private Object get(Object bean) {
+            try {
+                return field.get(bean);
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        private void set(Object bean, Object value) {
+            try {
+                field.set(bean, value);
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    /**
+     * A bean bound to a session for a request
+     */
+    final class Binding {
+
+        private final T bean;
+
+        /**
+         * The value of every field as it was bound
+         */
+        private final Object[] values;
+
+        private final int[] hashes;
+
+        private Binding(T bean, Object[] values, int[] hashes) {
+            this.bean = bean;
+            this.values = values;
+            this.hashes = hashes;
+        }
+
+        /**
+         * Get the value of bean
+         *
+         * @return the value of bean
+         */
+        T getBean() {
+            return bean;
+        }
+
+        /**
+         * @return The names of the fields changed since the bean was bound
+         */
+        Set<String> getChanged() {
+            Set<String> changed = new LinkedHashSet<>();
+            for (int i = 0; i < values.length; i++) {
+                if (isChanged(i, properties.get(i).get(bean))) {
+                    changed.add(properties.get(i).field.getName());
+                }
+            }
+            return changed;
+        }
+
+        /**
+         * Write the fields changed since the bean was bound to the session, which must be writable. A field still
+         * holding the instance it was bound with is written as well when it was changed in place.
+         *
+         * @param session
+         */
+        void flush(CouchbaseHttpSession session) {
+            for (int i = 0; i < values.length; i++) {
+                Property property = properties.get(i);
+                Object value = property.get(bean);
+                if (!isChanged(i, value)) {
+                    continue;
+                }
+
+                if (value == null) {
+                    session.removeAttribute(property.field.getName());
+                } else {
+                    session.setBeanAttribute(property.field.getName(), value);
+                }
+                values[i] = value;
+                hashes[i] = Objects.hashCode(value);
+            }
+        }
+
+        private boolean isChanged(int i, Object value) {
+            if (value != values[i]) {
+                return !Objects.equals(value, values[i]);
+            }
+            return Objects.hashCode(value) != hashes[i];
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.cvent.couchbase.session;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encodes session documents for storage with a jackson ObjectMapper, either as plain JSON or in a binary format of any
+ * jackson data format (ie. Smile).
+ *
+ * A binary document starts with the format byte of its codec, followed by the encoded session, so that documents of
+ * different formats can live side by side and each is decoded by the codec that wrote it. A JSON document has no
+ * header at all, its first byte is always the '{' of the session object, which keeps every document written before
+ * there were codecs readable and lets couchbase treat JSON documents as JSON.
+ */
+public final class SessionCodec {
+
+    /**
+     * Format byte of plain JSON documents, which is simply the first byte of their content
+     */
+    public static final byte JSON = '{';
+
+    /**
+     * Format byte of Smile documents
+     */
+    public static final byte SMILE = 1;
+
+    /**
+     * Format byte of documents compressed by a SessionCompression, which hold a document of any other format
+     */
+    public static final byte DEFLATE = 2;
+
+    private final byte format;
+
+    private final ObjectMapper mapper;
+
+    /**
+     * Reads single attribute values as the plain maps, lists and values they were before they were stored
+     */
+    private final ObjectReader valueReader;
+
+    private final ObjectWriter valueWriter;
+
+    /**
+     * Readers of the attribute types registered with the session manager, built once per type
+     */
+    private final ConcurrentMap<JavaType, ObjectReader> typedReaders = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new codec
+     *
+     * @param format The format byte written ahead of every document, must be unique among the codecs in use
+     * @param mapper The ObjectMapper for the data format, whose configuration (ie. modules) must suit the session
+     * attributes
+     */
+    public SessionCodec(byte format, ObjectMapper mapper) {
+        if (format == DEFLATE) {
+            throw new IllegalArgumentException("Format " + DEFLATE + " is reserved for compressed documents");
+        }
+        this.format = format;
+        this.mapper = mapper;
+        this.valueReader = mapper.reader(Object.class);
+        this.valueWriter = mapper.writer();
+    }
+
+    /**
+     * @param mapper The ObjectMapper to be used for serialization/deserialization of session objects to/from JSON
+     * @return A codec storing sessions as plain JSON
+     */
+    public static SessionCodec json(ObjectMapper mapper) {
+        return new SessionCodec(JSON, mapper);
+    }
+
+    /**
+     * @return A codec storing sessions as Smile, the binary form of JSON, with a default ObjectMapper
+     */
+    public static SessionCodec smile() {
+        return new SessionCodec(SMILE, new ObjectMapper(new SmileFactory()));
+    }
+
+    /**
+     * Get the value of format
+     *
+     * @return the value of format
+     */
+    public byte getFormat() {
+        return format;
+    }
+
+    /**
+     * Get the value of mapper
+     *
+     * @return the value of mapper
+     */
+    public ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * @return Whether or not this codec stores plain JSON, which couchbase can apply sub-document operations to
+     */
+    public boolean isJson() {
+        return format == JSON;
+    }
+
+    /**
+     * @param content An encoded document
+     * @return The format byte of the document
+     */
+    public static byte formatOf(byte[] content) {
+        if (content.length == 0) {
+            throw new IllegalArgumentException("Empty session document");
+        }
+        return content[0];
+    }
+
+    /**
+     * @param content A document of this format
+     * @return A parser of the content of the document, after its format byte
+     * @throws IOException
+     */
+    JsonParser createParser(byte[] content) throws IOException {
+        if (isJson()) {
+            return mapper.getFactory().createParser(content);
+        }
+        if (formatOf(content) != format) {
+            throw new IOException("Expected a document of format " + format + " but got " + content[0]);
+        }
+        return mapper.getFactory().createParser(content, 1, content.length - 1);
+    }
+
+    /**
+     * @param out
+     * @return A generator of a document of this format, which has written the format byte already
+     * @throws IOException
+     */
+    JsonGenerator createGenerator(OutputStream out) throws IOException {
+        if (!isJson()) {
+            out.write(format);
+        }
+        return mapper.getFactory().createGenerator(out);
+    }
+
+    /**
+     * @param type The type of an attribute or null for an attribute without one
+     * @return The reader of values of the type
+     */
+    ObjectReader getValueReader(JavaType type) {
+        if (type == null) {
+            return valueReader;
+        }
+        return typedReaders.computeIfAbsent(type, mapper::reader);
+    }
+
+    /**
+     * Get the value of valueWriter
+     *
+     * @return the value of valueWriter
+     */
+    ObjectWriter getValueWriter() {
+        return valueWriter;
+    }
+
+    /**
+     * @param value
+     * @return The value encoded as a document of this format
+     * @throws JsonProcessingException
+     */
+    public byte[] encode(Object value) throws JsonProcessingException {
+        byte[] encoded = mapper.writeValueAsBytes(value);
+        if (isJson()) {
+            return encoded;
+        }
+
+        byte[] content = new byte[encoded.length + 1];
+        content[0] = format;
+        System.arraycopy(encoded, 0, content, 1, encoded.length);
+        return content;
+    }
+
+    /**
+     * @param <T>
+     * @param content A document of this format
+     * @param type
+     * @return The decoded value
+     * @throws IOException
+     */
+    public <T> T decode(byte[] content, Class<T> type) throws IOException {
+        if (isJson()) {
+            return mapper.readValue(content, type);
+        }
+        if (formatOf(content) != format) {
+            throw new IOException("Expected a document of format " + format + " but got " + content[0]);
+        }
+        return mapper.readValue(content, 1, content.length - 1, type);
+    }
+}
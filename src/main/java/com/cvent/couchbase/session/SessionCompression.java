@@ -0,0 +1,373 @@
+package com.cvent.couchbase.session;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.statistic.CounterStatistic;
+import org.eclipse.jetty.util.statistic.SampleStatistic;
+
+/**
+ * Optional compression of large session documents for CouchbaseSessionManager. A document encoded by the SessionCodec
+ * that is at least the threshold in size is deflated before it's stored, and inflated again as it's read.
+ *
+ * A compressed document starts with the DEFLATE format byte and the size of the document it holds, followed by the
+ * zlib stream of that document. Documents below the threshold, or that don't get any smaller, are stored as they are.
+ *
+ * A preset dictionary of content common to most sessions (attribute names, the session metadata, recurring values)
+ * makes deflate much more effective on documents of a few KB, see trainDictionary. The zlib stream records which
+ * dictionary it needs, so a document compressed with another dictionary is refused rather than decoded wrongly. Keep
+ * the old dictionary in use until the documents compressed with it have expired.
+ */
+@ManagedObject("Session compression")
+public final class SessionCompression {
+
+    /**
+     * Size of the header of a compressed document, its format byte and the size of the document it holds
+     */
+    private static final int HEADER_SIZE = 1 + 4;
+
+    /**
+     * Couchbase doesn't store larger documents, so no compressed document can hold one
+     */
+    private static final int MAX_DOCUMENT_SIZE = 20 * 1024 * 1024;
+
+    /**
+     * Deflate never compresses better than this, a document declaring a larger ratio is corrupt
+     */
+    private static final int MAX_RATIO = 1032;
+
+    /**
+     * Length of the segments of the samples that trainDictionary picks from
+     */
+    private static final int SEGMENT_LENGTH = 16;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final int threshold;
+    private final int level;
+    private final byte[] dictionary;
+    private final int dictionaryId;
+
+    private final ThreadLocal<Deflater> deflaters;
+
+    private final CounterStatistic compressed = new CounterStatistic();
+    private final CounterStatistic skipped = new CounterStatistic();
+    private final CounterStatistic bytesIn = new CounterStatistic();
+    private final CounterStatistic bytesOut = new CounterStatistic();
+    private final SampleStatistic compressTime = new SampleStatistic();
+    private final SampleStatistic decompressTime = new SampleStatistic();
+
+    /**
+     * Create a new compression without a dictionary, favouring speed
+     *
+     * @param threshold The size in bytes from which documents are compressed
+     */
+    public SessionCompression(int threshold) {
+        this(threshold, Deflater.BEST_SPEED, null);
+    }
+
+    /**
+     * Create a new compression
+     *
+     * @param threshold The size in bytes from which documents are compressed
+     * @param level The deflate level, from 1 (fastest) to 9 (smallest)
+     * @param dictionary A preset dictionary (ie. from trainDictionary) or null for none
+     */
+    public SessionCompression(int threshold, int level, byte[] dictionary) {
+        if (threshold <= HEADER_SIZE) {
+            throw new IllegalArgumentException("threshold must be > " + HEADER_SIZE + " but was " + threshold);
+        }
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be in [1, 9] but was " + level);
+        }
+        this.threshold = threshold;
+        this.level = level;
+        this.dictionary = dictionary == null || dictionary.length == 0 ? null : dictionary;
+        this.dictionaryId = this.dictionary == null ? 0 : adler(this.dictionary);
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    /**
+     * Build a preset dictionary from a sample of real session documents. The dictionary is made of the segments of
+     * the samples that occur in the most of them, with the most common ones last since deflate encodes the closest
+     * matches most cheaply.
+     *
+     * @param samples Encoded session documents
+     * @param size The maximum size of the dictionary in bytes, deflate uses at most 32 KB
+     * @return The dictionary
+     */
+    public static byte[] trainDictionary(Collection<byte[]> samples, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be > 0 but was " + size);
+        }
+
+        //Count in how many samples every segment occurs, so a segment repeated within one document doesn't dominate
+        Map<ByteBuffer, Integer> occurrences = new HashMap<>();
+        for (byte[] sample : samples) {
+            Set<ByteBuffer> seen = new HashSet<>();
+            for (int offset = 0; offset + SEGMENT_LENGTH <= sample.length; offset++) {
+                ByteBuffer segment = ByteBuffer.wrap(sample, offset, SEGMENT_LENGTH).slice();
+                if (seen.add(segment)) {
+                    occurrences.merge(segment, 1, Integer::sum);
+                }
+            }
+        }
+
+        List<Map.Entry<ByteBuffer, Integer>> ranked = new ArrayList<>(occurrences.entrySet());
+        ranked.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+
+        //The overlapping segments of a common run of content all rank alike, so a segment that overlaps one already
+        //picked by half its length or more is left out
+        List<ByteBuffer> picked = new ArrayList<>();
+        Set<ByteBuffer> covered = new HashSet<>();
+        int total = 0;
+        for (Map.Entry<ByteBuffer, Integer> entry : ranked) {
+            if (entry.getValue() < 2 || total + SEGMENT_LENGTH > size) {
+                break;
+            }
+            ByteBuffer segment = entry.getKey();
+            List<ByteBuffer> halves = halves(segment);
+            if (!Collections.disjoint(halves, covered)) {
+                continue;
+            }
+            covered.addAll(halves);
+            picked.add(segment);
+            total += SEGMENT_LENGTH;
+        }
+
+        byte[] dictionary = new byte[total];
+        int offset = total;
+        for (ByteBuffer segment : picked) {
+            offset -= SEGMENT_LENGTH;
+            segment.duplicate().get(dictionary, offset, SEGMENT_LENGTH);
+        }
+        return dictionary;
+    }
+
+    /**
+     * @param segment
+     * @return Every run of half the segment length within the segment
+     */
+    private static List<ByteBuffer> halves(ByteBuffer segment) {
+        int half = SEGMENT_LENGTH / 2;
+        List<ByteBuffer> halves = new ArrayList<>(half + 1);
+        for (int offset = 0; offset + half <= SEGMENT_LENGTH; offset++) {
+            ByteBuffer run = segment.duplicate();
+            run.position(offset).limit(offset + half);
+            halves.add(run.slice());
+        }
+        return halves;
+    }
+
+    /**
+     * Get the value of threshold
+     *
+     * @return the value of threshold
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Get the value of level
+     *
+     * @return the value of level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param content An encoded session document
+     * @return The compressed document, or the document itself if it's below the threshold or doesn't get smaller
+     */
+    byte[] compress(byte[] content) {
+        if (content.length < threshold) {
+            return content;
+        }
+
+        long start = cpuTime();
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(content);
+        deflater.finish();
+
+        //Not worth it unless it saves something over the header
+        byte[] buffer = new byte[content.length];
+        int length = HEADER_SIZE;
+        while (!deflater.finished() && length < buffer.length) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        compressTime.set(TimeUnit.NANOSECONDS.toMicros(cpuTime() - start));
+
+        if (!deflater.finished()) {
+            skipped.increment();
+            return content;
+        }
+
+        ByteBuffer.wrap(buffer).put(SessionCodec.DEFLATE).putInt(content.length);
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+
+        compressed.increment();
+        bytesIn.add(content.length);
+        bytesOut.add(length);
+        return result;
+    }
+
+    /**
+     * @param content A compressed session document
+     * @return The document it holds
+     * @throws IOException if it's corrupt or was compressed with another dictionary
+     */
+    byte[] decompress(byte[] content) throws IOException {
+        long start = cpuTime();
+        try {
+            return inflate(content, dictionary, dictionaryId);
+        } finally {
+            decompressTime.set(TimeUnit.NANOSECONDS.toMicros(cpuTime() - start));
+        }
+    }
+
+    /**
+     * Inflate a compressed document when there is no compression configured, ie. after it was turned off
+     *
+     * @param content A compressed session document
+     * @return The document it holds
+     * @throws IOException if it's corrupt or was compressed with a dictionary
+     */
+    static byte[] decompressWithoutDictionary(byte[] content) throws IOException {
+        return inflate(content, null, 0);
+    }
+
+    private static byte[] inflate(byte[] content, byte[] dictionary, int dictionaryId) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(content);
+        if (content.length < HEADER_SIZE || header.get() != SessionCodec.DEFLATE) {
+            throw new IOException("Not a compressed session document");
+        }
+        //Checked before it's allocated, a corrupt header must not be able to exhaust the heap
+        int size = header.getInt();
+        if (size < 0 || size > MAX_DOCUMENT_SIZE || size > (long) (content.length - HEADER_SIZE) * MAX_RATIO) {
+            throw new IOException("Compressed session document declares an impossible size " + size);
+        }
+        byte[] result = new byte[size];
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(content, HEADER_SIZE, content.length - HEADER_SIZE);
+            int length = 0;
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(result, length, result.length - length);
+                length += inflated;
+                if (inflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null || inflater.getAdler() != dictionaryId) {
+                            throw new IOException("Session document was compressed with an unknown dictionary "
+                                    + Integer.toHexString(inflater.getAdler()));
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (length == result.length && inflater.inflate(new byte[1]) > 0) {
+                        throw new IOException("Compressed session document holds more than its declared size "
+                                + size);
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Truncated compressed session document");
+                    }
+                }
+            }
+            if (length != result.length) {
+                throw new IOException("Compressed session document holds " + length + " bytes but declares " + size);
+            }
+            return result;
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt compressed session document", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int adler(byte[] bytes) {
+        Adler32 adler = new Adler32();
+        adler.update(bytes);
+        return (int) adler.getValue();
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * @return The number of documents stored compressed
+     */
+    @ManagedAttribute("number of session documents compressed")
+    public long getCompressed() {
+        return compressed.getTotal();
+    }
+
+    /**
+     * @return The number of documents above the threshold stored as they are because they didn't get smaller
+     */
+    @ManagedAttribute("number of session documents that didn't compress")
+    public long getSkipped() {
+        return skipped.getTotal();
+    }
+
+    /**
+     * @return The size of the documents that were compressed divided by their compressed size
+     */
+    @ManagedAttribute("size of the compressed documents before compression divided by after")
+    public double getRatio() {
+        long out = bytesOut.getTotal();
+        return out == 0 ? 0 : (double) bytesIn.getTotal() / out;
+    }
+
+    /**
+     * @return The mean CPU time in usec to compress a document
+     */
+    @ManagedAttribute("mean CPU time in usec to compress a session document")
+    public double getCompressTimeMean() {
+        return compressTime.getMean();
+    }
+
+    /**
+     * @return The total CPU time in msec spent compressing documents
+     */
+    @ManagedAttribute("total CPU time in msec spent compressing session documents")
+    public long getCompressTimeTotal() {
+        return TimeUnit.MICROSECONDS.toMillis(compressTime.getTotal());
+    }
+
+    /**
+     * @return The mean CPU time in usec to decompress a document
+     */
+    @ManagedAttribute("mean CPU time in usec to decompress a session document")
+    public double getDecompressTimeMean() {
+        return decompressTime.getMean();
+    }
+
+    /**
+     * @return The total CPU time in msec spent decompressing documents
+     */
+    @ManagedAttribute("total CPU time in msec spent decompressing session documents")
+    public long getDecompressTimeTotal() {
+        return TimeUnit.MICROSECONDS.toMillis(decompressTime.getTotal());
+    }
+}
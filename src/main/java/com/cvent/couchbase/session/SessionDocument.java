@@ -0,0 +1,73 @@
+package com.cvent.couchbase.session;
+
+/**
+ * A session document as held by a SessionStore. The content is the session as encoded by a SessionCodec, which is
+ * either plain JSON or starts with the format byte of a binary codec. The content is never copied so it must not be
+ * changed once the document is created.
+ */
+public final class SessionDocument {
+
+    private final String id;
+
+    private final int expiry;
+
+    private final byte[] content;
+
+    private final long cas;
+
+    private SessionDocument(String id, int expiry, byte[] content, long cas) {
+        this.id = id;
+        this.expiry = expiry;
+        this.content = content;
+        this.cas = cas;
+    }
+
+    /**
+     * @param id The document id
+     * @param expiry The expiry of the document
+     * @param content The encoded session
+     * @return A new document without a CAS
+     */
+    public static SessionDocument create(String id, int expiry, byte[] content) {
+        return new SessionDocument(id, expiry, content, 0);
+    }
+
+    /**
+     * @param id The document id
+     * @param expiry The expiry of the document
+     * @param content The encoded session
+     * @param cas The CAS of the document
+     * @return A new document
+     */
+    public static SessionDocument create(String id, int expiry, byte[] content, long cas) {
+        return new SessionDocument(id, expiry, content, cas);
+    }
+
+    /**
+     * @return The document id
+     */
+    public String id() {
+        return id;
+    }
+
+    /**
+     * @return The expiry of the document
+     */
+    public int expiry() {
+        return expiry;
+    }
+
+    /**
+     * @return The encoded session
+     */
+    public byte[] content() {
+        return content;
+    }
+
+    /**
+     * @return The CAS of the document
+     */
+    public long cas() {
+        return cas;
+    }
+}
@@ -0,0 +1,56 @@
+package com.cvent.couchbase.session;
+
+import java.util.Map;
+
+/**
+ * The result of a sub-document operation of a SessionStore
+ */
+public final class SessionFragment {
+
+    private final String id;
+
+    private final long cas;
+
+    private final Map<String, Object> values;
+
+    /**
+     * @param id The document id
+     * @param cas The CAS of the document
+     * @param values The values by path, for the paths that exist
+     */
+    public SessionFragment(String id, long cas, Map<String, Object> values) {
+        this.id = id;
+        this.cas = cas;
+        this.values = values;
+    }
+
+    /**
+     * @return The document id
+     */
+    public String id() {
+        return id;
+    }
+
+    /**
+     * @return The CAS of the document
+     */
+    public long cas() {
+        return cas;
+    }
+
+    /**
+     * @param path
+     * @return Whether or not the path exists
+     */
+    public boolean exists(String path) {
+        return values.containsKey(path);
+    }
+
+    /**
+     * @param path
+     * @return The value of the path, or null if it doesn't exist
+     */
+    public Object content(String path) {
+        return values.get(path);
+    }
+}
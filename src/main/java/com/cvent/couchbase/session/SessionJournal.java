@@ -0,0 +1,793 @@
+package com.cvent.couchbase.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.statistic.CounterStatistic;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An optional local write-ahead journal for CouchbaseSessionManager. A session write that fails (ie. during a
+ * failover) is appended to the journal instead of being lost, and the journal replays it once couchbase takes writes
+ * again. Until then this node serves the journaled copy of the session.
+ *
+ * The journal is a directory of fixed size segment files that are memory-mapped and only ever appended to. Each record
+ * is checksummed so a torn write at the end of a segment is ignored when the journal is reopened after a crash. Only
+ * the latest write of each session is kept live: when the journal is down to its last free segment the live records
+ * are compacted into fresh segments and the old ones deleted, and a write that doesn't fit until then is dropped.
+ * Segments are otherwise only deleted oldest first, so an acknowledgement is never lost while the write it covers is
+ * still on disk.
+ *
+ * Appending never waits for the disk. The replay thread keeps the next segment allocated, compacts and forces the
+ * segments to disk, so that a request journaling a write only ever copies it into a mapped segment. A record survives
+ * the process crashing as soon as it's appended, and is forced to disk on every replay interval and when the journal
+ * is stopped, so a crash of the machine loses at most the records of the last interval. Looking up the journaled
+ * write of a session takes no lock.
+ *
+ * Records are replayed in the order they were last written, each one only if the session hasn't changed in couchbase
+ * since it was read (checked with its version and applied with the CAS of that check), so a replay never overwrites a
+ * newer write made by another node.
+ */
+@ManagedObject("Session write-ahead journal")
+public final class SessionJournal {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SessionJournal.class);
+
+    /**
+     * Marks the start of every record, a segment is zero filled after its last record
+     */
+    private static final int MAGIC = 0x534A524E;
+
+    private static final byte WRITE = 1;
+    private static final byte ACK = 2;
+
+    /**
+     * magic, length, crc
+     */
+    private static final int FRAME_SIZE = 12;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    /**
+     * Applies a journaled write to couchbase
+     */
+    interface Replayer {
+
+        /**
+         * @param id The cluster id of the session
+         * @param expectedVersion The version the stored session must still have, or -1 if the session must not exist
+         * @param expiresAt Time in msec since the epoch that the session expires, 0 for never
+         * @param content The serialized session
+         * @return true if it was written, false if it was dropped because the session changed since
+         * @throws RuntimeException if couchbase still can't take the write, which ends the replay for now
+         */
+        boolean replay(String id, long expectedVersion, long expiresAt, byte[] content);
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private volatile long replayInterval = 1000;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+    private long nextSegment = 0;
+    private long nextSequence = 0;
+
+    /**
+     * The segment to roll to next, allocated ahead by the replay thread
+     */
+    private Segment spare;
+
+    /**
+     * The live record of every session with a journaled write. Only changed while holding the lock, so that it's
+     * consistent with the segments, but read without it.
+     */
+    private final ConcurrentHashMap<String, Record> pending = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService replayer;
+
+    private final CounterStatistic appended = new CounterStatistic();
+    private final CounterStatistic replayed = new CounterStatistic();
+    private final CounterStatistic conflicts = new CounterStatistic();
+    private final CounterStatistic dropped = new CounterStatistic();
+    private final CounterStatistic compactions = new CounterStatistic();
+
+    /**
+     * Open a journal, recovering any records left by a previous run
+     *
+     * @param directory The directory holding the segment files, created if needed
+     * @param segmentSize The size in bytes of each segment file
+     * @param maxSegments The maximum number of segment files, which bounds the disk used to segmentSize * maxSegments
+     */
+    public SessionJournal(File directory, int segmentSize, int maxSegments) {
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException("segmentSize must be >= 4096 but was " + segmentSize);
+        }
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("maxSegments must be >= 2 but was " + maxSegments);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Can't create journal directory " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        try {
+            recover();
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to open session journal " + directory, ex);
+        }
+    }
+
+    /**
+     * Get the value of replayInterval
+     *
+     * @return the value of replayInterval
+     */
+    public long getReplayInterval() {
+        return replayInterval;
+    }
+
+    /**
+     * Set the value of replayInterval, which takes effect when the journal is next started
+     *
+     * @param replayInterval new value of replayInterval in msec
+     */
+    public void setReplayInterval(long replayInterval) {
+        if (replayInterval <= 0) {
+            throw new IllegalArgumentException("replayInterval must be > 0 but was " + replayInterval);
+        }
+        this.replayInterval = replayInterval;
+    }
+
+    /**
+     * Start replaying the journal periodically
+     *
+     * @param writer
+     */
+    synchronized void start(Replayer writer) {
+        if (replayer != null) {
+            return;
+        }
+
+        replayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-journal-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replayer.scheduleWithFixedDelay(() -> {
+            maintain();
+            replay(writer);
+        }, 0, replayInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Allocate the next segment, compact the journal once it's down to its last free segment and force the segments
+     * appended to since the last time to disk. Run by the replay thread, so that appending never has to.
+     */
+    void maintain() {
+        try {
+            allocate();
+            compact();
+            sync();
+        } catch (RuntimeException ex) {
+            LOG.warn("Failed to maintain session journal " + directory, ex);
+        }
+    }
+
+    /**
+     * Have the replay thread maintain the journal now rather than at the next interval, must hold the lock
+     */
+    private void maintainSoon() {
+        if (replayer != null) {
+            replayer.execute(this::maintain);
+        }
+    }
+
+    /**
+     * Stop replaying and make sure everything appended is on disk, the journal can still be appended to
+     */
+    void stop() {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = replayer;
+            replayer = null;
+        }
+
+        if (stopping != null) {
+            stopping.shutdown();
+            try {
+                stopping.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    /**
+     * Journal a write of a session that could not be written to couchbase, superseding any earlier journaled write of
+     * the same session
+     *
+     * @param id The cluster id of the session
+     * @param expectedVersion The version the stored session had when it was read, or -1 if it was never stored
+     * @param expiresAt Time in msec since the epoch that the session expires, 0 for never
+     * @param content The serialized session
+     * @return false if the journal is full
+     */
+    synchronized boolean append(String id, long expectedVersion, long expiresAt, byte[] content) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 8 + 8 + 4 + idBytes.length + 4 + content.length);
+        body.put(WRITE)
+                .putLong(nextSequence)
+                .putLong(expectedVersion)
+                .putLong(expiresAt)
+                .putInt(idBytes.length)
+                .put(idBytes)
+                .putInt(content.length)
+                .put(content);
+
+        Record record = write(body.array(), id, nextSequence);
+        if (record == null) {
+            dropped.increment();
+            LOG.error("Session journal is full, dropping the write of session {}", id);
+            return false;
+        }
+
+        nextSequence++;
+        supersede(pending.put(id, record));
+        appended.increment();
+        return true;
+    }
+
+    /**
+     * @param id The cluster id of the session
+     * @return The journaled copy of the session if it has a write that hasn't been replayed yet, otherwise null
+     */
+    byte[] pending(String id) {
+        Record record = pending.get(id);
+        //A record that is superseded or moved meanwhile is still intact, its segment stays mapped while it's read
+        return record == null ? null : read(record).content;
+    }
+
+    /**
+     * @param id The cluster id of the session
+     * @return Whether the session has a write that hasn't been replayed yet
+     */
+    boolean isPending(String id) {
+        return pending.containsKey(id);
+    }
+
+    /**
+     * Forget the journaled write of a session that has since been written to couchbase, ie. by a request that was
+     * served the journaled copy
+     *
+     * @param id The cluster id of the session
+     */
+    void discard(String id) {
+        //Checked without the lock since nearly every session written has nothing journaled
+        Record record = pending.get(id);
+        if (record != null) {
+            acknowledge(record);
+        }
+    }
+
+    /**
+     * Force the segments appended to since the last time to disk, without holding up appends meanwhile
+     */
+    private void sync() {
+        List<Segment> dirty = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment);
+                }
+            }
+        }
+
+        for (Segment segment : dirty) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Replay the journaled writes in order, until one fails because couchbase still can't take it
+     *
+     * @param writer
+     */
+    void replay(Replayer writer) {
+        List<Record> records = new ArrayList<>(pending.values());
+        records.sort(Comparator.comparingLong(record -> record.sequence));
+
+        for (Record record : records) {
+            if (!replay(record, writer)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if couchbase can't take the write yet
+     */
+    private boolean replay(Record record, Replayer writer) {
+        Entry entry;
+        synchronized (this) {
+            Record current = pending.get(record.id);
+            if (current == null || current.sequence != record.sequence) {
+                //Superseded or already replayed
+                return true;
+            }
+            entry = read(current);
+        }
+
+        boolean written;
+        try {
+            written = writer.replay(record.id, entry.expectedVersion, entry.expiresAt, entry.content);
+        } catch (RuntimeException ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to replay journaled write of session " + record.id, ex);
+            }
+            return false;
+        }
+
+        if (written) {
+            replayed.increment();
+        } else {
+            conflicts.increment();
+            LOG.warn("Dropped journaled write of session {} because it changed since", record.id);
+        }
+
+        acknowledge(record);
+        return true;
+    }
+
+    private synchronized void acknowledge(Record record) {
+        //The record may have been moved by a compaction since, which keeps its sequence
+        Record current = pending.get(record.id);
+        if (current == null || current.sequence != record.sequence) {
+            return;
+        }
+
+        //Recorded so a restart doesn't replay it again
+        ByteBuffer body = ByteBuffer.allocate(1 + 8).put(ACK).putLong(record.sequence);
+        if (write(body.array(), null, record.sequence) == null) {
+            //Without room for the ack it would only be replayed again after a restart, which the version check
+            //turns into a conflict
+            LOG.warn("Session journal is full, could not record the replay of session {}", record.id);
+        }
+
+        pending.remove(record.id);
+        supersede(current);
+    }
+
+    /**
+     * Forget a record that is no longer live, deleting the segments nothing is live in any more
+     */
+    private void supersede(Record record) {
+        if (record == null) {
+            return;
+        }
+
+        record.segment.live--;
+        deleteUnused();
+    }
+
+    /**
+     * Delete the oldest segments while nothing in them is live. A later segment with nothing live can still hold the
+     * acknowledgements of writes in an earlier one, so it has to wait for the earlier ones to go first.
+     */
+    private void deleteUnused() {
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.get(0);
+            if (oldest.live > 0 || oldest == active) {
+                return;
+            }
+            delete(oldest);
+        }
+    }
+
+    /**
+     * Append a record body to the active segment, rolling to the next segment as needed
+     *
+     * @param id The cluster id of the session of a write, null for an acknowledgement
+     * @param sequence The sequence of the write
+     * @return The location of the record or null if the journal is full
+     */
+    private Record write(byte[] body, String id, long sequence) {
+        int size = FRAME_SIZE + body.length;
+        if (size > segmentSize) {
+            return null;
+        }
+
+        if (active == null || active.buffer.remaining() < size) {
+            if (segments.size() >= maxSegments) {
+                //Full until the replay thread compacts it
+                maintainSoon();
+                return null;
+            }
+            roll();
+        }
+
+        return new Record(id, sequence, active, frame(active, body));
+    }
+
+    /**
+     * @return The offset of the record in the segment
+     */
+    private int frame(Segment segment, byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        int offset = segment.buffer.position();
+        segment.buffer.putInt(MAGIC).putInt(body.length).putInt((int) crc.getValue()).put(body);
+        segment.dirty = true;
+
+        if (body[0] == WRITE) {
+            segment.live++;
+        }
+        return offset;
+    }
+
+    /**
+     * Start appending to the next segment, the one rolled from is forced to disk with the next sync. Must hold the
+     * lock.
+     */
+    private void roll() {
+        Segment next = spare;
+        spare = null;
+        if (next == null) {
+            //The replay thread hasn't caught up
+            next = open(nextSegment++);
+        }
+
+        active = next;
+        segments.add(active);
+        maintainSoon();
+    }
+
+    /**
+     * Allocate the segment to roll to next, unless there is one or there is no room for it
+     */
+    private void allocate() {
+        long number;
+        synchronized (this) {
+            if (spare != null || segments.size() >= maxSegments) {
+                return;
+            }
+            number = nextSegment++;
+        }
+
+        Segment allocated = open(number);
+        synchronized (this) {
+            if (spare == null && nextSegment == number + 1) {
+                spare = allocated;
+                return;
+            }
+        }
+
+        //A later segment was opened meanwhile, which has to stay the last one
+        delete(allocated.file);
+    }
+
+    /**
+     * Once the journal is down to its last free segment, copy the live records into fresh segments and delete all the
+     * old ones, if that frees any segment
+     */
+    private void compact() {
+        List<Segment> old;
+        List<Segment> copies;
+        synchronized (this) {
+            if (segments.size() < maxSegments - 1) {
+                return;
+            }
+
+            long live = 0;
+            for (Record record : pending.values()) {
+                live += FRAME_SIZE + record.length();
+            }
+            if (live > (long) segmentSize * (segments.size() - 1)) {
+                return;
+            }
+
+            old = new ArrayList<>(segments);
+            segments.clear();
+            active = null;
+            roll();
+
+            for (Record record : new ArrayList<>(pending.values())) {
+                byte[] body = record.body();
+                if (active.buffer.remaining() < FRAME_SIZE + body.length) {
+                    roll();
+                }
+                pending.put(record.id, new Record(record.id, record.sequence, active, frame(active, body)));
+            }
+            copies = new ArrayList<>(segments);
+        }
+
+        //The copies have to be on disk before the originals go, appends carry on meanwhile
+        for (Segment segment : copies) {
+            segment.buffer.force();
+        }
+        for (Segment segment : old) {
+            delete(segment.file);
+        }
+        compactions.increment();
+    }
+
+    private Segment open(long number) {
+        File file = new File(directory, SEGMENT_PREFIX + String.format("%016d", number) + SEGMENT_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean created = raf.length() == 0;
+            if (created) {
+                raf.setLength(segmentSize);
+            }
+            //The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            return new Segment(file, buffer);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to open session journal segment " + file, ex);
+        }
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment);
+        delete(segment.file);
+    }
+
+    private void delete(File file) {
+        if (!file.delete()) {
+            LOG.warn("Failed to delete session journal segment {}", file);
+        }
+    }
+
+    /**
+     * Rebuild the live records from the segments left by a previous run
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+                && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            throw new IOException("Can't list journal directory " + directory);
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+            String number = file.getName().substring(SEGMENT_PREFIX.length(),
+                    file.getName().length() - SEGMENT_SUFFIX.length());
+            Segment segment = open(Long.parseLong(number));
+            segments.add(segment);
+            active = segment;
+            nextSegment = Long.parseLong(number) + 1;
+            scan(segment);
+        }
+
+        //Segments left with nothing live are not needed any more
+        deleteUnused();
+
+        if (!pending.isEmpty()) {
+            LOG.info("Recovered {} journaled session writes from {}", pending.size(), directory);
+        }
+    }
+
+    /**
+     * Read the records of a segment, up to the first one that is missing or torn
+     */
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        while (buffer.remaining() >= FRAME_SIZE) {
+            int offset = buffer.position();
+            int length = buffer.getInt(offset + 4);
+            if (buffer.getInt(offset) != MAGIC || length <= 0 || length > buffer.remaining() - FRAME_SIZE) {
+                break;
+            }
+
+            byte[] body = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + FRAME_SIZE);
+            view.get(body);
+
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+            if ((int) crc.getValue() != buffer.getInt(offset + 8)) {
+                LOG.warn("Ignoring torn record at {} of session journal segment {}", offset, segment.file);
+                break;
+            }
+            buffer.position(offset + FRAME_SIZE + length);
+
+            ByteBuffer fields = ByteBuffer.wrap(body);
+            byte type = fields.get();
+            long sequence = fields.getLong();
+            nextSequence = Math.max(nextSequence, sequence + 1);
+
+            if (type == WRITE) {
+                String id = read(segment, offset).id;
+                segment.live++;
+                supersede(pending.put(id, new Record(id, sequence, segment, offset)));
+            } else if (type == ACK) {
+                for (Record record : pending.values()) {
+                    if (record.sequence == sequence) {
+                        pending.remove(record.id);
+                        supersede(record);
+                        break;
+                    }
+                }
+            }
+        }
+        //Anything after the last good record is overwritten by the next append
+    }
+
+    private Entry read(Record record) {
+        return read(record.segment, record.offset);
+    }
+
+    private Entry read(Segment segment, int offset) {
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position(offset + FRAME_SIZE + 1 + 8);
+
+        Entry entry = new Entry();
+        entry.expectedVersion = view.getLong();
+        entry.expiresAt = view.getLong();
+        byte[] id = new byte[view.getInt()];
+        view.get(id);
+        entry.id = new String(id, StandardCharsets.UTF_8);
+        entry.content = new byte[view.getInt()];
+        view.get(entry.content);
+        return entry;
+    }
+
+    /**
+     * @return The number of session writes journaled
+     */
+    @ManagedAttribute("number of session writes journaled")
+    public long getAppended() {
+        return appended.getTotal();
+    }
+
+    /**
+     * @return The number of journaled session writes replayed to couchbase
+     */
+    @ManagedAttribute("number of journaled session writes replayed")
+    public long getReplayed() {
+        return replayed.getTotal();
+    }
+
+    /**
+     * @return The number of journaled session writes dropped because the session changed since
+     */
+    @ManagedAttribute("number of journaled session writes dropped because the session changed since")
+    public long getConflicts() {
+        return conflicts.getTotal();
+    }
+
+    /**
+     * @return The number of session writes dropped because the journal was full
+     */
+    @ManagedAttribute("number of session writes dropped because the journal was full")
+    public long getDropped() {
+        return dropped.getTotal();
+    }
+
+    /**
+     * @return The number of times the journal was compacted
+     */
+    @ManagedAttribute("number of times the journal was compacted")
+    public long getCompactions() {
+        return compactions.getTotal();
+    }
+
+    /**
+     * @return The number of sessions with a journaled write that hasn't been replayed yet
+     */
+    @ManagedAttribute("number of sessions with a journaled write waiting to be replayed")
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return The disk space in bytes used by the segment files
+     */
+    @ManagedAttribute("disk space in bytes used by the journal")
+    public synchronized long getDiskUsage() {
+        return (long) (spare != null ? segments.size() + 1 : segments.size()) * segmentSize;
+    }
+
+    /**
+     * A segment file
+     */
+    private static final class Segment {
+
+        private final File file;
+
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Number of live records in the segment
+         */
+        private int live;
+
+        /**
+         * Whether records were appended since the segment was last forced to disk
+         */
+        private boolean dirty;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Where the live record of a session is, a compaction moves it to a new Record
+     */
+    private static final class Record {
+
+        private final String id;
+
+        private final long sequence;
+
+        private final Segment segment;
+
+        private final int offset;
+
+        private Record(String id, long sequence, Segment segment, int offset) {
+            this.id = id;
+            this.sequence = sequence;
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        private int length() {
+            return segment.buffer.getInt(offset + 4);
+        }
+
+        private byte[] body() {
+            byte[] body = new byte[length()];
+            ByteBuffer view = segment.buffer.duplicate();
+            view.position(offset + FRAME_SIZE);
+            view.get(body);
+            return body;
+        }
+    }
+
+    /**
+     * The fields of a journaled write
+     */
+    private static final class Entry {
+
+        private String id;
+
+        private long expectedVersion;
+
+        private long expiresAt;
+
+        private byte[] content;
+    }
+}
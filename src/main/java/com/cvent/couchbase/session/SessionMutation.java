@@ -0,0 +1,108 @@
+package com.cvent.couchbase.session;
+
+/**
+ * A single mutation of a path of a document for SessionStore.mutateIn()
+ */
+public final class SessionMutation {
+
+    /**
+     * The kind of mutation
+     */
+    public enum Type {
+        UPSERT, UPSERT_FRAGMENT, REMOVE, COUNTER
+    }
+
+    private final Type type;
+
+    private final String path;
+
+    private final Object value;
+
+    private final boolean createParents;
+
+    private SessionMutation(Type type, String path, Object value, boolean createParents) {
+        this.type = type;
+        this.path = path;
+        this.value = value;
+        this.createParents = createParents;
+    }
+
+    /**
+     * @param path
+     * @param value A plain value, map or list
+     * @param createParents Whether or not to create missing parents of the path
+     * @return A mutation setting the value of the path
+     */
+    public static SessionMutation upsert(String path, Object value, boolean createParents) {
+        return new SessionMutation(Type.UPSERT, path, value, createParents);
+    }
+
+    /**
+     * @param path
+     * @param fragment The value already encoded as JSON, which is stored as it is
+     * @param createParents Whether or not to create missing parents of the path
+     * @return A mutation setting the value of the path
+     */
+    public static SessionMutation upsertFragment(String path, byte[] fragment, boolean createParents) {
+        return new SessionMutation(Type.UPSERT_FRAGMENT, path, fragment, createParents);
+    }
+
+    /**
+     * @param path
+     * @return A mutation removing the path, which has to exist
+     */
+    public static SessionMutation remove(String path) {
+        return new SessionMutation(Type.REMOVE, path, null, false);
+    }
+
+    /**
+     * @param path
+     * @param delta
+     * @param createParents Whether or not to create missing parents of the path
+     * @return A mutation adding delta to the number at the path (starting from 0)
+     */
+    public static SessionMutation counter(String path, long delta, boolean createParents) {
+        return new SessionMutation(Type.COUNTER, path, delta, createParents);
+    }
+
+    /**
+     * Get the value of type
+     *
+     * @return the value of type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Get the value of path
+     *
+     * @return the value of path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get the value of value
+     *
+     * @return the value of value, the JSON of a fragment or the delta of a counter
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Get the value of createParents
+     *
+     * @return the value of createParents
+     */
+    public boolean isCreateParents() {
+        return createParents;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + path;
+    }
+}
@@ -0,0 +1,422 @@
+package com.cvent.couchbase.session;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.statistic.CounterStatistic;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An optional in-process (L1) cache of session documents for CouchbaseSessionManager, keyed by cluster id.
+ *
+ * Entries hold the serialized document plus the CAS it was read or written with, never the deserialized session, so
+ * every request still gets its own session instance. The cache is bounded by the total size of the serialized
+ * documents and evicts the least recently used entries first. An entry is only served without a round trip to
+ * couchbase for read-only sessions and only for the staleness window after it was last read or written, so the
+ * window should be much smaller than the maxInactiveInterval of the sessions. With touch elision serving an entry still
+ * resets the expiry of the document once touchFraction of maxInactiveInterval has passed, by a single one of the
+ * requests served and without the request waiting for it. Otherwise serving an entry never resets the expiry, which
+ * falls behind by at most the staleness window.
+ *
+ * A cache of at least 2MB is split by session id into up to 16 segments, each with a lock of its own and an equal
+ * share of the maximum size, so that requests for different sessions seldom wait on each other. Eviction is least
+ * recently used within a segment, and a session larger than the share of a segment is not cached at all.
+ *
+ * The local node keeps the cache coherent through write-through on update and invalidation on remove, but writes
+ * made by other nodes are only seen once the staleness window has passed.
+ *
+ * A version-checked cache has no staleness window. Instead every access first reads only the small version stamp of
+ * the document (its version counter and lastSaved time) and the cached copy is served only if the stamp is unchanged.
+ * This keeps reads strictly fresh across nodes while only moving the full document over the wire when it changed, so
+ * a version-checked cache may also serve sessions in write mode.
+ */
+@ManagedObject("Session near cache")
+public final class SessionNearCache {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SessionNearCache.class);
+
+    private final long stalenessMillis;
+    private final boolean versionChecked;
+
+    /**
+     * The most segments a cache is split into
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * The least share of the maximum size that a segment gets, so a small cache has fewer segments
+     */
+    private static final long MIN_SEGMENT_WEIGHT = 1 << 20;
+
+    private final Segment[] segments;
+
+    private final CounterStatistic hits = new CounterStatistic();
+    private final CounterStatistic misses = new CounterStatistic();
+    private final CounterStatistic evictions = new CounterStatistic();
+    private final CounterStatistic staleServed = new CounterStatistic();
+
+    /**
+     * Create a new near cache
+     *
+     * @param maxWeight The maximum total size in bytes of the serialized sessions held by the cache
+     * @param staleness How long an entry may be served without checking couchbase
+     * @param unit The unit of staleness
+     */
+    public SessionNearCache(long maxWeight, long staleness, TimeUnit unit) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight must be > 0 but was " + maxWeight);
+        }
+        this.stalenessMillis = unit.toMillis(staleness);
+        this.versionChecked = false;
+        this.segments = segments(maxWeight);
+    }
+
+    /**
+     * Create a new version-checked near cache
+     *
+     * @param maxWeight The maximum total size in bytes of the serialized sessions held by the cache
+     */
+    public SessionNearCache(long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight must be > 0 but was " + maxWeight);
+        }
+        this.stalenessMillis = 0;
+        this.versionChecked = true;
+        this.segments = segments(maxWeight);
+    }
+
+    private Segment[] segments(long maxWeight) {
+        int count = 1;
+        while (count < MAX_SEGMENTS && maxWeight / (count * 2) >= MIN_SEGMENT_WEIGHT) {
+            count *= 2;
+        }
+
+        Segment[] created = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            created[i] = new Segment(maxWeight / count);
+        }
+        return created;
+    }
+
+    private Segment segmentOf(String id) {
+        int hash = id.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * Get the value of versionChecked
+     *
+     * @return the value of versionChecked
+     */
+    public boolean isVersionChecked() {
+        return versionChecked;
+    }
+
+    /**
+     * Get the value of staleness
+     *
+     * @return the value of staleness in msec, 0 for a version-checked cache
+     */
+    long getStaleness() {
+        return stalenessMillis;
+    }
+
+    /**
+     * Get an entry that is still inside the staleness window
+     *
+     * @param id The cluster id of the session
+     * @return The entry or null if there isn't one or it is too old to be served
+     */
+    Entry get(String id) {
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            Entry entry = segment.entries.get(id);
+            if (entry == null || System.currentTimeMillis() - entry.validated > stalenessMillis) {
+                misses.increment();
+                return null;
+            }
+
+            hits.increment();
+            entry.served.incrementAndGet();
+            return entry;
+        }
+    }
+
+    /**
+     * Get the entry whose version stamp should be checked against couchbase by a version-checked cache
+     *
+     * @param id The cluster id of the session
+     * @return The entry or null (counted as a miss) if there isn't one
+     */
+    Entry candidate(String id) {
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            Entry entry = segment.entries.get(id);
+            if (entry == null) {
+                misses.increment();
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Check an entry of a version-checked cache against the version stamp just read from couchbase
+     *
+     * @param entry The entry returned by candidate()
+     * @param version The version of the document in couchbase
+     * @param lastSaved The lastSaved time of the document in couchbase
+     * @return true (counted as a hit) if the entry is current and may be served
+     */
+    boolean validate(Entry entry, long version, long lastSaved) {
+        if (entry.version != version || entry.lastSaved != lastSaved) {
+            misses.increment();
+            return false;
+        }
+
+        hits.increment();
+        entry.served.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Record a document that was just read from couchbase. If it replaces an entry that was served with a different
+     * version stamp then those reads were served stale data.
+     *
+     * @param id The cluster id of the session
+     * @param content The serialized session
+     * @param cas The CAS of the document
+     * @param version The version of the document
+     * @param lastSaved The lastSaved time of the document
+     * @param touched Time in msec since the epoch that the expiry of the document was last reset, as far as is known
+     */
+    void refresh(String id, byte[] content, long cas, long version, long lastSaved, long touched) {
+        Entry entry = new Entry(content, cas, version, lastSaved, touched);
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            Entry previous = segment.entries.get(id);
+            if (!versionChecked && previous != null && previous.served.get() > 0
+                    && (previous.version != version || previous.lastSaved != lastSaved)) {
+                staleServed.add(previous.served.get());
+            }
+            segment.put(id, entry);
+        }
+    }
+
+    /**
+     * Record a document that was just written to couchbase by this node
+     *
+     * @param id The cluster id of the session
+     * @param content The serialized session
+     * @param cas The CAS of the document after the write
+     * @param version The version of the document after the write
+     * @param lastSaved The lastSaved time of the document after the write
+     */
+    void update(String id, byte[] content, long cas, long version, long lastSaved) {
+        //A write always resets the expiry
+        Entry entry = new Entry(content, cas, version, lastSaved, System.currentTimeMillis());
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            segment.put(id, entry);
+        }
+    }
+
+    /**
+     * Drop the entry for a session that was removed or renamed
+     *
+     * @param id The cluster id of the session
+     */
+    void invalidate(String id) {
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            segment.remove(id);
+        }
+    }
+
+    /**
+     * @return The number of reads served from the cache
+     */
+    @ManagedAttribute("number of reads served from the cache")
+    public long getHits() {
+        return hits.getTotal();
+    }
+
+    /**
+     * @return The number of reads that had to go to couchbase
+     */
+    @ManagedAttribute("number of reads that had to go to couchbase")
+    public long getMisses() {
+        return misses.getTotal();
+    }
+
+    /**
+     * @return The number of entries evicted to stay under the maximum weight
+     */
+    @ManagedAttribute("number of entries evicted to stay under the maximum weight")
+    public long getEvictions() {
+        return evictions.getTotal();
+    }
+
+    /**
+     * @return The number of reads served from an entry that had changed in couchbase by the time it was next read.
+     * Always 0 for a version-checked cache.
+     */
+    @ManagedAttribute("number of reads served from an entry that had since changed in couchbase")
+    public long getStaleServed() {
+        return staleServed.getTotal();
+    }
+
+    /**
+     * @return The total size in bytes of the cached sessions
+     */
+    @ManagedAttribute("total size in bytes of the cached sessions")
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * @return The number of cached sessions
+     */
+    @ManagedAttribute("number of cached sessions")
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * A share of the cache with a lock of its own, which is held while using it
+     */
+    private final class Segment {
+
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        private final long maxWeight;
+
+        private long weight = 0;
+
+        private Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        private void remove(String id) {
+            Entry entry = entries.remove(id);
+            if (entry != null) {
+                weight -= entry.weight;
+            }
+        }
+
+        private void put(String id, Entry entry) {
+            remove(id);
+
+            if (entry.weight > maxWeight) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Session {} is too large to cache ({} bytes)", id, entry.weight);
+                }
+                return;
+            }
+
+            entries.put(id, entry);
+            weight += entry.weight;
+
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (weight > maxWeight && eldest.hasNext()) {
+                weight -= eldest.next().getValue().weight;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * A cached session document
+     */
+    static final class Entry {
+
+        private final byte[] content;
+
+        private final long cas;
+
+        private final long weight;
+
+        private final long version;
+
+        private final long lastSaved;
+
+        /**
+         * Time in msec since the epoch that the entry was read from or written to couchbase
+         */
+        private final long validated = System.currentTimeMillis();
+
+        /**
+         * Number of times the entry was served from the cache
+         */
+        private final AtomicLong served = new AtomicLong();
+
+        /**
+         * Time in msec since the epoch that the expiry of the document was last reset, by the read or write that
+         * cached it or by serving the entry since
+         */
+        private final AtomicLong touched;
+
+        private Entry(byte[] content, long cas, long version, long lastSaved, long touched) {
+            this.content = content;
+            this.cas = cas;
+            this.version = version;
+            this.lastSaved = lastSaved;
+            this.weight = content.length;
+            this.touched = new AtomicLong(touched);
+        }
+
+        /**
+         * Get the value of content
+         *
+         * @return the value of content
+         */
+        byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * Get the value of cas
+         *
+         * @return the value of cas
+         */
+        long getCas() {
+            return cas;
+        }
+
+        /**
+         * Get the value of touched
+         *
+         * @return the value of touched
+         */
+        long getTouched() {
+            return touched.get();
+        }
+
+        /**
+         * Claim the next touch of the document, so that only one of the requests served from the entry issues it
+         *
+         * @param seen The value of touched that made the touch due
+         * @param now The time of the touch
+         * @return false if another request claimed it first
+         */
+        boolean claimTouch(long seen, long now) {
+            return touched.compareAndSet(seen, now);
+        }
+    }
+}
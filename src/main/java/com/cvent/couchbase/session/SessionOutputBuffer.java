@@ -0,0 +1,98 @@
+package com.cvent.couchbase.session;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A per-thread buffer that session documents are serialized into, so that serializing a session doesn't grow a new
+ * buffer (copying it every time it doubles) only to copy it once more to trim it. What was written is still copied
+ * once, into an array of its own that the caller keeps, since the buffer is reused by the next serialization.
+ *
+ * The buffer learns the size of the sessions written by its thread: it grows to fit the largest one and, after a
+ * window of writes that all needed less than a quarter of it, shrinks back to fit the largest of those. A buffer grown
+ * past MAX_RETAINED for an exceptionally large session is dropped after use instead of being kept.
+ */
+final class SessionOutputBuffer extends OutputStream {
+
+    private static final int INITIAL_SIZE = 1024;
+
+    private static final int MAX_RETAINED = 1024 * 1024;
+
+    /**
+     * Number of writes after which the buffer may shrink
+     */
+    private static final int WINDOW = 256;
+
+    private static final ThreadLocal<SessionOutputBuffer> BUFFERS = ThreadLocal.withInitial(SessionOutputBuffer::new);
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int count;
+
+    /**
+     * Largest document written in the current window
+     */
+    private int peak;
+    private int writes;
+
+    private SessionOutputBuffer() {
+    }
+
+    /**
+     * @return The empty buffer of the calling thread, which must not be acquired again before toByteArray()
+     */
+    static SessionOutputBuffer acquire() {
+        SessionOutputBuffer out = BUFFERS.get();
+        out.count = 0;
+        return out;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(count + length);
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length << 1));
+        }
+    }
+
+    /**
+     * @return A copy of what was written, after which the buffer is free to be acquired again
+     */
+    byte[] toByteArray() {
+        byte[] written = Arrays.copyOf(buffer, count);
+        learn(count);
+        count = 0;
+        return written;
+    }
+
+    private void learn(int size) {
+        if (buffer.length > MAX_RETAINED) {
+            buffer = new byte[INITIAL_SIZE];
+            peak = 0;
+            writes = 0;
+            return;
+        }
+
+        peak = Math.max(peak, size);
+        if (++writes < WINDOW) {
+            return;
+        }
+
+        int fit = Math.max(INITIAL_SIZE, Integer.highestOneBit(Math.max(1, peak - 1)) << 1);
+        if (fit * 4 <= buffer.length) {
+            buffer = new byte[fit];
+        }
+        peak = 0;
+        writes = 0;
+    }
+}
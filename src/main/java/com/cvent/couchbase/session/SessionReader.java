@@ -0,0 +1,532 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.java.ReplicaMode;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.subdoc.DocumentNotJsonException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.eclipse.jetty.util.statistic.CounterStatistic;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+/**
+ * The read pipeline of CouchbaseSessionManager: reads of the session document from couchbase or a version-checked
+ * near cache, sharing the reads of concurrent requests and hedging slow reads to the replicas, and the resets of the
+ * expiry (touches) that go with them. The settings are read from the manager as each read is made.
+ */
+final class SessionReader {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SessionReader.class);
+
+    private static final String LAST_TOUCHED = SessionSerializer.LAST_TOUCHED;
+
+    private static final String VERSION = SessionSerializer.VERSION;
+
+    private static final String LAST_SAVED = SessionSerializer.LAST_SAVED;
+
+    private final CouchbaseSessionManager manager;
+    private final SessionStore store;
+
+    private final CounterStatistic touchesIssued = new CounterStatistic();
+    private final CounterStatistic touchesSkipped = new CounterStatistic();
+
+    private final ConcurrentMap<String, CompletableFuture<StoredSession>> inFlightReads = new ConcurrentHashMap<>();
+    private final CounterStatistic readsCoalesced = new CounterStatistic();
+
+    private final LatencyTracker masterLatency = new LatencyTracker(1024);
+    private final CounterStatistic hedgedReads = new CounterStatistic();
+    private final CounterStatistic hedgeWins = new CounterStatistic();
+
+    SessionReader(CouchbaseSessionManager manager, SessionStore store) {
+        this.manager = manager;
+        this.store = store;
+    }
+
+    long getTouchesIssued() {
+        return touchesIssued.getTotal();
+    }
+
+    long getTouchesSkipped() {
+        return touchesSkipped.getTotal();
+    }
+
+    long getReadsCoalesced() {
+        return readsCoalesced.getTotal();
+    }
+
+    long getHedgedReads() {
+        return hedgedReads.getTotal();
+    }
+
+    long getHedgeWins() {
+        return hedgeWins.getTotal();
+    }
+
+    /**
+     * Read the stored session, sharing a single read between all the threads that ask for the same session at the
+     * same time.
+     *
+     * @param id
+     * @param key
+     * @return The stored session or null if it does not exist
+     */
+    StoredSession readShared(String id, String key) {
+        CompletableFuture<StoredSession> read = new CompletableFuture<>();
+        CompletableFuture<StoredSession> inFlight = inFlightReads.putIfAbsent(id, read);
+
+        if (inFlight != null) {
+            readsCoalesced.increment();
+            try {
+                return inFlight.join();
+            } catch (CompletionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw ex;
+            }
+        }
+
+        try {
+            StoredSession stored = readStored(id, key);
+            read.complete(stored);
+            return stored;
+        } catch (Throwable ex) {
+            read.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlightReads.remove(id, read);
+        }
+    }
+
+    /**
+     * Read the stored session from a version-checked near cache or from couchbase, resetting its expiry when due and
+     * keeping the near cache up to date.
+     *
+     * @param id
+     * @param key
+     * @return The stored session or null if it does not exist
+     */
+    StoredSession readStored(String id, String key) {
+        return CouchbaseSessionManager.await(readStoredAsync(id, key));
+    }
+
+    /**
+     * Read the stored session without blocking. The document is deserialized on the thread that completes the read.
+     *
+     * @param id
+     * @param key
+     * @return The stored session, or nothing if it does not exist
+     */
+    Observable<StoredSession> readStoredAsync(String id, String key) {
+        return Observable.defer(() -> {
+            SessionNearCache cache = manager.getNearCache();
+            boolean touchElided = manager.isTouchElided();
+
+            Observable<StoredSession> full = readDocumentAsync(key, touchElided)
+                    .flatMap(doc -> {
+                        //Only decompressed once, the attributes are read as the session is restored
+                        byte[] document = manager.inflate(key, doc.content());
+                        SessionSerializer.Stamp stamp = manager.decode(key, document, null);
+                        return touchIfDueAsync(key, stamp.getLastTouched(), doc.cas(), !touchElided)
+                                .map(cas -> {
+                                    if (cache != null) {
+                                        //A touch changes the CAS
+                                        long touched = !touchElided || cas != doc.cas()
+                                                ? System.currentTimeMillis()
+                                                : stamp.getLastTouched();
+                                        cache.refresh(id, doc.content(), cas, stamp.getVersion(), stamp.getLastSaved(),
+                                                touched);
+                                    }
+                                    return new StoredSession(doc.content(), document, cas);
+                                });
+                    })
+                    .switchIfEmpty(Observable.defer(() -> {
+                        if (cache != null) {
+                            cache.invalidate(id);
+                        }
+                        return Observable.<StoredSession>empty();
+                    }));
+
+            if (cache != null && cache.isVersionChecked() && manager.getCodec().isJson()) {
+                return readIfCurrent(id, key, cache).switchIfEmpty(full);
+            }
+            return full;
+        });
+    }
+
+    /**
+     * Serve the session from a version-checked near cache if the version stamp of the document in couchbase still
+     * matches the cached copy. Only the stamp is read, the full document is left for the caller to read otherwise.
+     *
+     * @param id
+     * @param key
+     * @param cache
+     * @return The cached session, or nothing if the full document must be read
+     */
+    private Observable<StoredSession> readIfCurrent(String id, String key, SessionNearCache cache) {
+        SessionNearCache.Entry entry = cache.candidate(id);
+        if (entry == null) {
+            return Observable.empty();
+        }
+
+        return store.lookupIn(key, Arrays.asList(VERSION, LAST_SAVED, LAST_TOUCHED))
+                .onErrorResumeNext(ex -> {
+                    if (!(ex instanceof CouchbaseException)) {
+                        return Observable.error(ex);
+                    }
+
+                    //Leave it to the full read, which also deals with a missing document and falls back to a replica
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Failed to read version of session " + key, ex);
+                    }
+                    return Observable.empty();
+                })
+                .filter(stamp -> cache.validate(entry, stampField(stamp, VERSION), stampField(stamp, LAST_SAVED)))
+                .flatMap(stamp -> touchIfDueAsync(key, stampField(stamp, LAST_TOUCHED), stamp.cas(), false))
+                .map(cas -> new StoredSession(entry.getContent(), entry.getContent(), cas));
+    }
+
+    static long stampField(SessionFragment stamp, String path) {
+        //Documents written before the field existed simply don't have it
+        return stamp.exists(path) ? ((Number) stamp.content(path)).longValue() : 0;
+    }
+
+    /**
+     * Read the session document without blocking
+     *
+     * @param key
+     * @param touchElided Whether the read leaves resetting the expiry to touchIfDue
+     * @return The session document, or nothing if it does not exist
+     */
+    Observable<SessionDocument> readDocumentAsync(String key, boolean touchElided) {
+        if (manager.getHedgePercentile() > 0) {
+            return readHedged(key, touchElided);
+        }
+
+        return Observable.defer(() -> {
+            return readMaster(key, touchElided).onErrorResumeNext(ex -> {
+                if (!(ex instanceof CouchbaseException)) {
+                    return Observable.error(ex);
+                }
+
+                LOG.warn("Read failed to master, attempting read from replica for {}", key);
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Read failed to master, attempting read from replica for " + key, ex);
+                }
+
+                //We should only read from a replica if there was a failure reading from the primary master.  This
+                //typically should only occur when there's a network issue or during an auto-failover (outage).
+                //The replica may simply not have the document yet so don't treat the session as gone.
+                return store.getFromReplica(key, ReplicaMode.FIRST)
+                        .take(1)
+                        .switchIfEmpty(Observable.<SessionDocument>error(ex));
+            });
+        });
+    }
+
+    /**
+     * Read the session document from the master and, if it hasn't answered within the hedge delay, from all the
+     * replicas in parallel. The first document to arrive wins and the reads still outstanding are cancelled. A read
+     * that fails on the master falls back to the replicas straight away.
+     *
+     * @param key
+     * @param touchElided Whether the read leaves resetting the expiry to touchIfDue
+     * @return The session document, or nothing if the master says it does not exist
+     */
+    private Observable<SessionDocument> readHedged(String key, boolean touchElided) {
+        return Observable.defer(() -> {
+            long start = System.nanoTime();
+            AtomicBoolean sampled = new AtomicBoolean();
+
+            Observable<SessionDocument> primary = readMaster(key, touchElided)
+                    .doOnCompleted(() -> sampleMaster(sampled, start))
+                    //A failure is not a latency of the master
+                    .doOnError(ex -> sampled.set(true))
+                    //Cancelled because the hedge answered first
+                    .doOnUnsubscribe(() -> sampleMaster(sampled, start))
+                    .onErrorResumeNext(ex -> {
+                        LOG.warn("Read failed to master, attempting read from replica for {}", key);
+
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Read failed to master, attempting read from replica for " + key, ex);
+                        }
+
+                        return readReplicas(key)
+                                .switchIfEmpty(Observable.<SessionDocument>error(ex));
+                    });
+
+            //A hedge that fails or finds nothing never completes so it can't beat the answer of the master
+            Observable<SessionDocument> hedge = Observable.timer(hedgeDelay(), TimeUnit.NANOSECONDS)
+                    .flatMap(tick -> {
+                        hedgedReads.increment();
+                        return readReplicas(key);
+                    })
+                    .doOnNext(doc -> {
+                        hedgeWins.increment();
+                        if (!touchElided) {
+                            //The touch of the master read may have been cancelled with it
+                            touchInBackground(key, touchIfDueAsync(key, 0, doc.cas(), false));
+                        }
+                    })
+                    .onErrorResumeNext(Observable.<SessionDocument>empty())
+                    .concatWith(Observable.<SessionDocument>never());
+
+            return Observable.amb(primary, hedge).take(1);
+        });
+    }
+
+    /**
+     * Read the session document from the master, resetting its expiry unless touch elision leaves that to touchIfDue
+     *
+     * @param key
+     * @param touchElided
+     * @return The session document, or nothing if it does not exist
+     */
+    private Observable<SessionDocument> readMaster(String key, boolean touchElided) {
+        if (touchElided) {
+            return store.get(key);
+        }
+        //Only counted once the master answered, a read that is cancelled or fails may not have reset anything
+        return store.getAndTouch(key, manager.getMaxInactiveInterval()).doOnNext(doc -> touchesIssued.increment());
+    }
+
+    /**
+     * Record the latency of a hedged read of the master, only once. A read cancelled because the hedge answered first
+     * is recorded with the time it had taken so far, a lower bound of its latency, so that the slow reads that lose to
+     * the hedge still count towards the percentile instead of leaving it biased low.
+     *
+     * @param sampled Whether the read was already recorded
+     * @param start System.nanoTime() that the read started
+     */
+    private void sampleMaster(AtomicBoolean sampled, long start) {
+        if (sampled.compareAndSet(false, true)) {
+            masterLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private Observable<SessionDocument> readReplicas(String key) {
+        return store.getFromReplica(key, ReplicaMode.ALL)
+                .filter(doc -> doc != null)
+                .take(1);
+    }
+
+    /**
+     * @return How long in nanoseconds to wait for the master before hedging a read
+     */
+    private long hedgeDelay() {
+        long percentile = masterLatency.percentile(manager.getHedgePercentile());
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(manager.getHedgeMinDelay()), percentile);
+    }
+
+    /**
+     * Reset the expiry of a session served from the window near cache if due, without waiting for it, since serving
+     * it from the cache skipped the touch of the read. With touch elision it's due once touchFraction of
+     * maxInactiveInterval has passed. Otherwise it's never due: the read or write that cached the entry reset the
+     * expiry and the entry is only served for the staleness window after that, so the expiry falls behind by at most
+     * the window.
+     *
+     * @param id The cluster id of the session
+     * @param cache
+     * @param entry The entry the session was served from
+     */
+    void touchCached(String id, SessionNearCache cache, SessionNearCache.Entry entry) {
+        long now = System.currentTimeMillis();
+        long touched = entry.getTouched();
+        long interval = manager.isTouchElided()
+                ? (long) (manager.getTouchFraction() * manager.getMaxInactiveInterval() * 1000L)
+                : cache.getStaleness();
+        //Claimed before the touch is issued so that the other requests served from the entry don't repeat it
+        if (manager.getMaxInactiveInterval() <= 0 || now - touched <= interval || !entry.claimTouch(touched, now)) {
+            touchesSkipped.increment();
+            return;
+        }
+
+        String key = manager.getKey(id);
+        touchInBackground(key, touchAsync(key, now, entry.getCas()));
+    }
+
+    /**
+     * Reset the expiry of the document if enough of maxInactiveInterval has passed since it was last touched (always,
+     * unless touch elision is enabled). The touch also records the new lastTouched time in the document.
+     *
+     * @param key
+     * @param lastTouched The lastTouched time of the document as read
+     * @param cas The cas of the document as read
+     * @param touched Whether or not the read already reset the expiry
+     * @return The cas of the document after any touch
+     */
+    long touchIfDue(String key, long lastTouched, long cas, boolean touched) {
+        return CouchbaseSessionManager.await(touchIfDueAsync(key, lastTouched, cas, touched));
+    }
+
+    /**
+     * Reset the expiry of the document if due, without blocking
+     *
+     * @param key
+     * @param lastTouched The lastTouched time of the document as read
+     * @param cas The cas of the document as read
+     * @param touched Whether or not the read already reset the expiry
+     * @return The cas of the document after any touch
+     */
+    private Observable<Long> touchIfDueAsync(String key, long lastTouched, long cas, boolean touched) {
+        if (touched) {
+            return Observable.just(cas);
+        }
+
+        long now = System.currentTimeMillis();
+        if (!isTouchDue(lastTouched, now)) {
+            touchesSkipped.increment();
+            return Observable.just(cas);
+        }
+
+        return touchAsync(key, now, cas);
+    }
+
+    /**
+     * Reset the expiry of the document without blocking, recording the new lastTouched time in the document
+     *
+     * @param key
+     * @param now The new lastTouched time
+     * @param cas The cas of the document as read
+     * @return The cas of the document after the touch
+     */
+    private Observable<Long> touchAsync(String key, long now, long cas) {
+        //A mutation always sets the expiry so this is the touch as well as the record of it
+        return store.mutateIn(key, manager.getMaxInactiveInterval(),
+                Collections.singletonList(SessionMutation.upsert(LAST_TOUCHED, now, false)))
+                .map(result -> {
+                    touchesIssued.increment();
+                    return result.cas();
+                })
+                .onErrorResumeNext(ex -> {
+                    if (ex instanceof DocumentDoesNotExistException) {
+                        //Removed or expired since, there is nothing left to touch
+                        return Observable.just(cas);
+                    }
+                    if (ex instanceof DocumentNotJsonException) {
+                        //Still in a binary format, which can only be touched by reading it again
+                        touchesIssued.increment();
+                        return store.getAndTouch(key, manager.getMaxInactiveInterval())
+                                .map(SessionDocument::cas)
+                                .defaultIfEmpty(cas);
+                    }
+                    if (!(ex instanceof CouchbaseException)) {
+                        return Observable.error(ex);
+                    }
+
+                    //The session is still usable, the next read will try again
+                    LOG.warn("Failed to touch session {}", key);
+
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Failed to touch session " + key, ex);
+                    }
+                    return Observable.just(cas);
+                });
+    }
+
+    /**
+     * @param lastTouched Time in msec since the epoch that the expiry of the document was last reset
+     * @param now
+     * @return Whether enough of maxInactiveInterval has passed for the expiry to be reset again (always, unless touch
+     * elision is enabled)
+     */
+    private boolean isTouchDue(long lastTouched, long now) {
+        int maxInactiveInterval = manager.getMaxInactiveInterval();
+        return maxInactiveInterval > 0 && now - lastTouched >= manager.getTouchFraction() * maxInactiveInterval * 1000L;
+    }
+
+    /**
+     * Reset the expiry of a session that a request used without ever reading it (a lazy handle that was never loaded)
+     * if due, without waiting for it. With touch elision only the lastTouched stamp of the document is read to tell.
+     *
+     * @param id The cluster id of the session
+     */
+    void touchUnread(String id) {
+        if (manager.getMaxInactiveInterval() <= 0) {
+            return;
+        }
+
+        String key = manager.getKey(id);
+        Observable<Long> touch;
+        if (manager.isTouchElided()) {
+            touch = store.lookupIn(key, Collections.singletonList(LAST_TOUCHED))
+                    .map(stamp -> stampField(stamp, LAST_TOUCHED))
+                    .onErrorResumeNext(ex -> {
+                        if (ex instanceof DocumentNotJsonException) {
+                            //Not rewritten since the codec was changed back to JSON, so the stamp is unknown
+                            return Observable.just(0L);
+                        }
+                        return Observable.error(ex);
+                    })
+                    .flatMap(lastTouched -> touchIfDueAsync(key, lastTouched, 0, false));
+        } else {
+            touch = touchIfDueAsync(key, 0, 0, false);
+        }
+
+        touchInBackground(key, touch);
+    }
+
+    /**
+     * Issue a touch that nothing waits for
+     *
+     * @param key
+     * @param touch
+     */
+    private void touchInBackground(String key, Observable<Long> touch) {
+        touch.subscribe(cas -> { }, ex -> {
+            if (ex instanceof DocumentDoesNotExistException) {
+                //ie. the cookie of a session that is gone, the next read will find it missing
+                return;
+            }
+            LOG.warn("Failed to touch session {}", key);
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to touch session " + key, ex);
+            }
+        });
+    }
+
+    /**
+     * A session document as read from couchbase (or the near cache), which may be shared by coalesced reads
+     */
+    static final class StoredSession {
+
+        private final byte[] content;
+
+        /**
+         * The document decompressed, if it has been already
+         */
+        private final byte[] document;
+
+        private final long cas;
+
+        StoredSession(byte[] content, byte[] document, long cas) {
+            this.content = content;
+            this.document = document;
+            this.cas = cas;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public byte[] getDocument() {
+            return document;
+        }
+
+        public long getCas() {
+            return cas;
+        }
+    }
+}
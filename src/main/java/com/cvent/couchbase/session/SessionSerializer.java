@@ -0,0 +1,403 @@
+package com.cvent.couchbase.session;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Reads and writes session documents with the jackson streaming api, going straight between the document and the
+ * session rather than through an intermediate object and a map of its attributes.
+ *
+ * The session metadata is written ahead of the attributes so that readStamp can stop as soon as it has read it, but
+ * the fields may come in any order (ie. in documents written before) and unknown fields are skipped so that documents
+ * written by a newer version can still be read during a rolling deploy.
+ *
+ * Object and array attributes of a JSON document can be read lazily, as a RawValue that is only the span of the
+ * attribute within the document. The span is decoded when the attribute is first used, and written back as it is when
+ * it never was.
+ */
+final class SessionSerializer {
+
+    static final String ATTRIBUTES = "attributes";
+    static final String CREATION_TIME = "creationTime";
+    static final String SESSION_ID = "sessionId";
+    static final String LAST_SAVED = "lastSaved";
+    static final String MAX_INACTIVE_INTERVAL = "maxInactiveInterval";
+    static final String LAST_TOUCHED = "lastTouched";
+    static final String VERSION = "version";
+
+    private SessionSerializer() {
+    }
+
+    /**
+     * Write a session document
+     *
+     * @param codec The codec of the document
+     * @param types The registered attribute types whose codecs write their values, or null to write every value with
+     * databind
+     * @param stamp The session metadata
+     * @param sessionId
+     * @param attributes
+     * @return The document
+     * @throws IOException
+     */
+    static byte[] write(SessionCodec codec, SessionAttributeTypes types, Stamp stamp, String sessionId,
+            Map<String, Object> attributes) throws IOException {
+        SessionOutputBuffer out = SessionOutputBuffer.acquire();
+        ObjectWriter values = codec.getValueWriter();
+
+        try (JsonGenerator generator = codec.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeNumberField(CREATION_TIME, stamp.getCreationTime());
+            generator.writeStringField(SESSION_ID, sessionId);
+            generator.writeNumberField(LAST_SAVED, stamp.getLastSaved());
+            generator.writeNumberField(MAX_INACTIVE_INTERVAL, stamp.getMaxInactiveInterval());
+            generator.writeNumberField(LAST_TOUCHED, stamp.getLastTouched());
+            generator.writeNumberField(VERSION, stamp.getVersion());
+
+            generator.writeObjectFieldStart(ATTRIBUTES);
+            for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                generator.writeFieldName(attribute.getKey());
+                Object value = attribute.getValue();
+                if (value instanceof RawValue) {
+                    ((RawValue) value).writeTo(generator, codec);
+                } else {
+                    writeValue(types, values, generator, value);
+                }
+            }
+            generator.writeEndObject();
+
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a single attribute the way write() writes it into a JSON document, ie. for a sub-document mutation
+     *
+     * @param codec A JSON codec
+     * @param types The registered attribute types whose codecs write their values, or null to write every value with
+     * databind
+     * @param value
+     * @return The attribute as a JSON fragment
+     * @throws IOException
+     */
+    static byte[] writeFragment(SessionCodec codec, SessionAttributeTypes types, Object value) throws IOException {
+        //Not the per-thread buffer, whose size is learnt from whole documents
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (JsonGenerator generator = codec.createGenerator(out)) {
+            if (value instanceof RawValue) {
+                ((RawValue) value).writeTo(generator, codec);
+            } else {
+                writeValue(types, codec.getValueWriter(), generator, value);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param name
+     * @return The sub-document path of an attribute, escaped so that any attribute name is a single path component
+     */
+    static String attributePath(String name) {
+        return ATTRIBUTES + ".`" + name.replace("`", "``") + "`";
+    }
+
+    /**
+     * Read a single attribute that a sub-document lookup gave as a plain value, the way read() reads it from a JSON
+     * document
+     *
+     * @param codec A JSON codec
+     * @param types The registered attribute types
+     * @param type The type to decode the attribute into, or null for a plain value
+     * @param value The plain value
+     * @return The attribute
+     * @throws IOException
+     */
+    static Object readFragment(SessionCodec codec, SessionAttributeTypes types, JavaType type, Object value)
+            throws IOException {
+        if (type == null) {
+            return value;
+        }
+
+        ObjectMapper mapper = codec.getMapper();
+        try (JsonParser parser = mapper.treeAsTokens(mapper.valueToTree(value))) {
+            parser.nextToken();
+            return readValue(codec, types, type, parser);
+        }
+    }
+
+    /**
+     * Read a session document, handing every attribute to the given consumer as it's read
+     *
+     * @param codec The codec of the document
+     * @param content The document
+     * @param attributes Takes the name and value of every attribute
+     * @return The session metadata
+     * @throws IOException
+     */
+    static Stamp read(SessionCodec codec, byte[] content, BiConsumer<String, Object> attributes) throws IOException {
+        return read(codec, content, attributes, null, false, false);
+    }
+
+    /**
+     * Read a session document, handing every attribute to the given consumer as it's read
+     *
+     * @param codec The codec of the document
+     * @param content The document
+     * @param attributes Takes the name and value of every attribute
+     * @param types The types to decode attributes into, or null to decode them all as plain values
+     * @param lazy Whether to hand over object and array attributes of a JSON document as a RawValue rather than
+     * decoding them
+     * @return The session metadata
+     * @throws IOException
+     */
+    static Stamp read(SessionCodec codec, byte[] content, BiConsumer<String, Object> attributes,
+            SessionAttributeTypes types, boolean lazy) throws IOException {
+        return read(codec, content, attributes, types, lazy, false);
+    }
+
+    /**
+     * Read only the metadata of a session document, skipping the attributes
+     *
+     * @param codec The codec of the document
+     * @param content The document
+     * @return The session metadata
+     * @throws IOException
+     */
+    static Stamp readStamp(SessionCodec codec, byte[] content) throws IOException {
+        return read(codec, content, null, null, false, true);
+    }
+
+    private static Stamp read(SessionCodec codec, byte[] content, BiConsumer<String, Object> attributes,
+            SessionAttributeTypes types, boolean lazy, boolean stampOnly) throws IOException {
+        //Spans of a binary document can't be decoded on their own, ie. Smile refers back to names seen before them
+        boolean spans = lazy && codec.isJson();
+        boolean typed = types != null && !types.isEmpty();
+        Stamp stamp = new Stamp();
+        int metadata = 0;
+
+        try (JsonParser parser = codec.createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Session document is not an object");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+
+                switch (field) {
+                    case ATTRIBUTES:
+                        if (stampOnly || token != JsonToken.START_OBJECT) {
+                            parser.skipChildren();
+                            break;
+                        }
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String name = parser.getCurrentName();
+                            JsonToken start = parser.nextToken();
+                            JavaType type = typed ? types.typeOf(name) : null;
+                            Object value = spans && (start == JsonToken.START_OBJECT || start == JsonToken.START_ARRAY)
+                                    ? RawValue.span(codec, types, content, parser, type)
+                                    : readValue(codec, types, type, parser);
+                            if (value != null) {
+                                attributes.accept(name, value);
+                            }
+                        }
+                        break;
+                    case CREATION_TIME:
+                        stamp.creationTime = parser.getValueAsLong();
+                        break;
+                    case LAST_SAVED:
+                        stamp.lastSaved = parser.getValueAsLong();
+                        metadata++;
+                        break;
+                    case MAX_INACTIVE_INTERVAL:
+                        stamp.maxInactiveInterval = parser.getValueAsInt();
+                        break;
+                    case LAST_TOUCHED:
+                        stamp.lastTouched = parser.getValueAsLong();
+                        metadata++;
+                        break;
+                    case VERSION:
+                        stamp.version = parser.getValueAsLong();
+                        metadata++;
+                        break;
+                    default:
+                        //ie. sessionId, which is the key of the document anyway
+                        parser.skipChildren();
+                        break;
+                }
+
+                if (stampOnly && metadata == 3) {
+                    break;
+                }
+            }
+        }
+        return stamp;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(SessionAttributeTypes types, ObjectWriter values, JsonGenerator generator,
+            Object value) throws IOException {
+        SessionAttributeCodec<Object> attributeCodec = value != null && types != null
+                ? (SessionAttributeCodec<Object>) types.codecOf(value.getClass())
+                : null;
+        if (attributeCodec != null) {
+            attributeCodec.write(value, generator);
+        } else {
+            values.writeValue(generator, value);
+        }
+    }
+
+    private static Object readValue(SessionCodec codec, SessionAttributeTypes types, JavaType type, JsonParser parser)
+            throws IOException {
+        SessionAttributeCodec<?> attributeCodec = type != null ? types.codecOf(type.getRawClass()) : null;
+        if (attributeCodec != null) {
+            return attributeCodec.read(parser);
+        }
+        return codec.getValueReader(type).readValue(parser);
+    }
+
+    /**
+     * An attribute that has not been decoded yet, held as its span within the JSON document it was read from. The
+     * span keeps the whole document from being collected until the attribute is decoded or dropped.
+     */
+    static final class RawValue {
+
+        private final SessionCodec codec;
+
+        private final SessionAttributeTypes types;
+
+        /**
+         * The type to decode the attribute into, or null for a plain value
+         */
+        private final JavaType type;
+
+        private final byte[] content;
+
+        private final int offset;
+
+        private final int length;
+
+        private RawValue(SessionCodec codec, SessionAttributeTypes types, JavaType type, byte[] content, int offset,
+                int length) {
+            this.codec = codec;
+            this.types = types;
+            this.type = type;
+            this.content = content;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @param codec
+         * @param types
+         * @param content
+         * @param parser Positioned at the start of an object or array value
+         * @param type
+         * @return The span of the value, or the decoded value if the parser doesn't know where it is
+         * @throws IOException
+         */
+        private static Object span(SessionCodec codec, SessionAttributeTypes types, byte[] content, JsonParser parser,
+                JavaType type) throws IOException {
+            long start = parser.getTokenLocation().getByteOffset();
+            if (start < 0) {
+                return readValue(codec, types, type, parser);
+            }
+            parser.skipChildren();
+            //The parser has consumed the closing bracket of the value, which ends the span
+            long end = parser.getCurrentLocation().getByteOffset();
+            return new RawValue(codec, types, type, content, (int) start, (int) (end - start));
+        }
+
+        /**
+         * @return The decoded attribute
+         * @throws IOException
+         */
+        Object decode() throws IOException {
+            try (JsonParser parser = codec.getMapper().getFactory().createParser(content, offset, length)) {
+                parser.nextToken();
+                return readValue(codec, types, type, parser);
+            }
+        }
+
+        /**
+         * Write the attribute as it was read, re-encoding it if the document is written in another format
+         *
+         * @param generator
+         * @param target The codec of the document being written
+         * @throws IOException
+         */
+        private void writeTo(JsonGenerator generator, SessionCodec target) throws IOException {
+            if (target.isJson()) {
+                generator.writeRawValue(new String(content, offset, length, StandardCharsets.UTF_8));
+                return;
+            }
+            try (JsonParser parser = codec.getMapper().getFactory().createParser(content, offset, length)) {
+                parser.nextToken();
+                generator.copyCurrentStructure(parser);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "RawValue length=" + length;
+        }
+    }
+
+    /**
+     * The metadata of a session document
+     */
+    static final class Stamp {
+
+        private long creationTime;
+
+        private long lastSaved;
+
+        private int maxInactiveInterval;
+
+        private long lastTouched;
+
+        private long version;
+
+        Stamp() {
+        }
+
+        Stamp(long creationTime, long lastSaved, int maxInactiveInterval, long lastTouched, long version) {
+            this.creationTime = creationTime;
+            this.lastSaved = lastSaved;
+            this.maxInactiveInterval = maxInactiveInterval;
+            this.lastTouched = lastTouched;
+            this.version = version;
+        }
+
+        long getCreationTime() {
+            return creationTime;
+        }
+
+        long getLastSaved() {
+            return lastSaved;
+        }
+
+        int getMaxInactiveInterval() {
+            return maxInactiveInterval;
+        }
+
+        long getLastTouched() {
+            return lastTouched;
+        }
+
+        long getVersion() {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.ReplicaMode;
+import java.util.Collection;
+import java.util.List;
+import rx.Observable;
+
+/**
+ * The storage operations that CouchbaseSessionManager needs, so that it can run against something other than a
+ * couchbase bucket (ie. InMemorySessionStore for running without a cluster, benchmarking or comparing engines).
+ *
+ * It is modelled on the couchbase AsyncBucket: every operation returns an Observable that emits a single result, a
+ * read of a document that doesn't exist completes without emitting anything, and failures are signalled with the same
+ * couchbase exceptions (DocumentDoesNotExistException, DocumentAlreadyExistsException, CASMismatchException,
+ * SubDocumentException). Implementations are responsible for applying their own timeouts.
+ *
+ * Expiry is in seconds with the couchbase semantics: 0 means the document never expires and values over 30 days are
+ * an absolute unix time.
+ *
+ * Documents hold the session as encoded by a SessionCodec. The sub-document operations only apply to documents whose
+ * content is JSON and signal a DocumentNotJsonException for any other.
+ */
+public interface SessionStore {
+
+    /**
+     * @param id The document id
+     * @return The document, or nothing if it doesn't exist
+     */
+    Observable<SessionDocument> get(String id);
+
+    /**
+     * Read a document and reset its expiry
+     *
+     * @param id The document id
+     * @param expiry The new expiry of the document
+     * @return The document, or nothing if it doesn't exist
+     */
+    Observable<SessionDocument> getAndTouch(String id, int expiry);
+
+    /**
+     * Read a document from replicas, only used when the master can't answer
+     *
+     * @param id The document id
+     * @param mode Which replicas to read from
+     * @return The documents found, one for each replica that has it
+     */
+    Observable<SessionDocument> getFromReplica(String id, ReplicaMode mode);
+
+    /**
+     * @param document The document to create
+     * @return The document with its new CAS
+     * @throws com.couchbase.client.java.error.DocumentAlreadyExistsException (signalled) if it already exists
+     */
+    Observable<SessionDocument> insert(SessionDocument document);
+
+    /**
+     * @param document The document to create or replace, its CAS is ignored
+     * @return The document with its new CAS
+     */
+    Observable<SessionDocument> upsert(SessionDocument document);
+
+    /**
+     * @param document The document to replace, only if it still has the same CAS unless the CAS is 0
+     * @return The document with its new CAS
+     * @throws com.couchbase.client.java.error.CASMismatchException (signalled) if the CAS has changed
+     * @throws com.couchbase.client.java.error.DocumentDoesNotExistException (signalled) if it doesn't exist
+     */
+    Observable<SessionDocument> replace(SessionDocument document);
+
+    /**
+     * @param id The document id
+     * @return The removed document
+     * @throws com.couchbase.client.java.error.DocumentDoesNotExistException (signalled) if it doesn't exist
+     */
+    Observable<SessionDocument> remove(String id);
+
+    /**
+     * Read only some paths of a document
+     *
+     * @param id The document id
+     * @param paths The paths to read, at most 16
+     * @return The values of the paths that exist, as plain maps, lists and values
+     * @throws com.couchbase.client.java.error.DocumentDoesNotExistException (signalled) if it doesn't exist
+     */
+    Observable<SessionFragment> lookupIn(String id, Collection<String> paths);
+
+    /**
+     * Apply some mutations to paths of a document, all or nothing, and set its expiry
+     *
+     * @param id The document id
+     * @param expiry The new expiry of the document
+     * @param mutations The mutations, at most 16
+     * @return The new CAS and the resulting values of any counters
+     * @throws com.couchbase.client.java.error.DocumentDoesNotExistException (signalled) if it doesn't exist
+     * @throws com.couchbase.client.java.error.subdoc.SubDocumentException (signalled) if a mutation can't be applied
+     */
+    Observable<SessionFragment> mutateIn(String id, int expiry, List<SessionMutation> mutations);
+}
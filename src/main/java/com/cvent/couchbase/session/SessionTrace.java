@@ -0,0 +1,474 @@
+package com.cvent.couchbase.session;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.statistic.CounterStatistic;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An optional trace of the session operations of CouchbaseSessionManager, written to a compact binary file so that
+ * the traffic of a node can be replayed or analysed offline (ie. to size a near cache or tune the touch policy).
+ *
+ * Each entry holds the operation, when it happened, a hash of the session id, the size of the session document and
+ * the number of attributes the operation changed. The ids are hashed with a random key that is never written, so the
+ * entries of a trace can be told apart but not tied to a session id. Reads are traced whether or not they were served
+ * from the near cache, and writes as couchbase sees them, so record with write-behind off to see every write.
+ *
+ * Recording only encodes the entry into a buffer, a background thread writes the full buffers to the file. An entry
+ * that arrives while every buffer is waiting to be written is dropped rather than slowing the request down.
+ *
+ * The file is a header (magic, version, start time in msec since the epoch) followed by entries of an operation
+ * byte, the time since the previous entry in microseconds, the 8 byte id hash, the size and the number of changed
+ * attributes, the numbers as unsigned variable length integers.
+ */
+@ManagedObject("Session access trace")
+public final class SessionTrace {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SessionTrace.class);
+
+    private static final int MAGIC = 0x53545243;
+    private static final byte VERSION = 1;
+
+    /**
+     * operation, time, id, size, changed
+     */
+    private static final int MAX_ENTRY_SIZE = 1 + 10 + 8 + 10 + 5;
+
+    private static final int BUFFERS = 4;
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /**
+     * The operations traced
+     */
+    public enum Operation {
+        /**
+         * A new session was written
+         */
+        CREATE,
+        /**
+         * A session was read
+         */
+        READ,
+        /**
+         * A session was read but did not exist
+         */
+        MISS,
+        /**
+         * A changed session was written
+         */
+        WRITE,
+        /**
+         * A session was removed
+         */
+        REMOVE
+    }
+
+    private final File file;
+    private final int bufferSize;
+
+    /**
+     * Keys the hash of the session ids, never written so the hashes can't be tied to ids
+     */
+    private final long key = new SecureRandom().nextLong();
+
+    private FileChannel channel;
+    private Thread writer;
+    private volatile boolean running;
+
+    private ByteBuffer current;
+    private final ArrayBlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFERS);
+    private final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFERS);
+
+    private long started;
+    private long lastMicros;
+
+    private final CounterStatistic recorded = new CounterStatistic();
+    private final CounterStatistic dropped = new CounterStatistic();
+    private final CounterStatistic written = new CounterStatistic();
+
+    /**
+     * Create a new trace
+     *
+     * @param file The file to write, replaced when the trace is started
+     * @param bufferSize The size in bytes of each of the buffers entries are recorded into
+     */
+    public SessionTrace(File file, int bufferSize) {
+        if (bufferSize < 4096) {
+            throw new IllegalArgumentException("bufferSize must be >= 4096 but was " + bufferSize);
+        }
+        this.file = file;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Create a new trace with 64KB buffers
+     *
+     * @param file The file to write, replaced when the trace is started
+     */
+    public SessionTrace(File file) {
+        this(file, 64 * 1024);
+    }
+
+    /**
+     * Start recording, replacing the file
+     */
+    synchronized void start() {
+        if (writer != null) {
+            return;
+        }
+
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(4 + 1 + 8);
+            header.putInt(MAGIC).put(VERSION).putLong(System.currentTimeMillis()).flip();
+            writeFully(header);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to open session trace " + file, ex);
+        }
+
+        full.clear();
+        free.clear();
+        for (int i = 1; i < BUFFERS; i++) {
+            free.add(ByteBuffer.allocate(bufferSize));
+        }
+        current = ByteBuffer.allocate(bufferSize);
+        started = System.nanoTime();
+        lastMicros = 0;
+        running = true;
+
+        writer = new Thread(this::write, "session-trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop recording, writing out everything recorded and closing the file
+     */
+    void stop() {
+        Thread stopping;
+        synchronized (this) {
+            if (writer == null) {
+                return;
+            }
+            running = false;
+            if (current != null && current.position() > 0) {
+                current.flip();
+                full.add(current);
+            }
+            current = null;
+            stopping = writer;
+            writer = null;
+        }
+
+        try {
+            stopping.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            LOG.warn("Failed to close session trace " + file, ex);
+        }
+    }
+
+    /**
+     * Record a session operation, if the trace is running
+     *
+     * @param operation
+     * @param id The cluster id of the session
+     * @param size The size in bytes of the session document, 0 if unknown
+     * @param changed The number of attributes changed by the operation
+     */
+    void record(Operation operation, String id, long size, int changed) {
+        long hash = hash(id);
+
+        synchronized (this) {
+            if (current == null) {
+                return;
+            }
+            if (current.remaining() < MAX_ENTRY_SIZE) {
+                ByteBuffer next = free.poll();
+                if (next == null) {
+                    dropped.increment();
+                    return;
+                }
+                current.flip();
+                full.add(current);
+                current = next;
+            }
+
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started);
+            current.put((byte) operation.ordinal());
+            putVarLong(current, Math.max(0, micros - lastMicros));
+            current.putLong(hash);
+            putVarLong(current, Math.max(0, size));
+            putVarLong(current, Math.max(0, changed));
+            lastMicros = Math.max(lastMicros, micros);
+        }
+
+        recorded.increment();
+    }
+
+    /**
+     * The writer thread, writing the full buffers and every second whatever was recorded since
+     */
+    private void write() {
+        while (true) {
+            ByteBuffer buffer;
+            try {
+                buffer = full.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            if (buffer == null) {
+                if (!running) {
+                    return;
+                }
+                synchronized (this) {
+                    ByteBuffer next = current != null && current.position() > 0 ? free.poll() : null;
+                    if (next != null) {
+                        current.flip();
+                        full.add(current);
+                        current = next;
+                    }
+                }
+                continue;
+            }
+
+            try {
+                written.add(buffer.remaining());
+                writeFully(buffer);
+            } catch (IOException ex) {
+                LOG.error("Failed to write session trace " + file + ", stopping it", ex);
+                synchronized (this) {
+                    running = false;
+                    current = null;
+                }
+                return;
+            }
+
+            buffer.clear();
+            free.add(buffer);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * A keyed 64 bit hash of a session id, FNV-1a mixed with the finalizer of murmur3
+     */
+    private long hash(String id) {
+        long h = 0xcbf29ce484222325L ^ key;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * @return The number of entries recorded
+     */
+    @ManagedAttribute("number of entries recorded")
+    public long getRecorded() {
+        return recorded.getTotal();
+    }
+
+    /**
+     * @return The number of entries dropped because the writer was behind
+     */
+    @ManagedAttribute("number of entries dropped because the writer was behind")
+    public long getDropped() {
+        return dropped.getTotal();
+    }
+
+    /**
+     * @return The number of bytes of entries written to the file
+     */
+    @ManagedAttribute("number of bytes of entries written")
+    public long getWritten() {
+        return written.getTotal();
+    }
+
+    /**
+     * Open a trace file for reading
+     *
+     * @param file
+     * @return A reader of the entries of the trace
+     * @throws IOException if the file can't be read or is not a session trace
+     */
+    public static Reader open(File file) throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * An entry of a trace
+     */
+    public static final class Entry {
+
+        private final Operation operation;
+        private final long time;
+        private final long id;
+        private final long size;
+        private final int changed;
+
+        private Entry(Operation operation, long time, long id, long size, int changed) {
+            this.operation = operation;
+            this.time = time;
+            this.id = id;
+            this.size = size;
+            this.changed = changed;
+        }
+
+        /**
+         * @return The operation
+         */
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return The time of the operation in microseconds since the trace started
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return The hash of the session id
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return The size in bytes of the session document, 0 if unknown
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The number of attributes changed by the operation
+         */
+        public int getChanged() {
+            return changed;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " id=" + Long.toHexString(id) + ",time=" + time + ",size=" + size + ",changed="
+                    + changed;
+        }
+    }
+
+    /**
+     * Reads the entries of a trace in the order they were recorded. A trace cut short (ie. by a crash) ends at its
+     * last complete entry.
+     */
+    public static final class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final long startTime;
+        private long time;
+
+        private Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(file + " is not a session trace");
+                }
+                byte version = in.readByte();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported session trace version " + version + " of " + file);
+                }
+                startTime = in.readLong();
+            } catch (IOException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * @return Time in msec since the epoch that the trace started
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return The next entry, or null at the end of the trace
+         * @throws IOException
+         */
+        public Entry next() throws IOException {
+            int operation = in.read();
+            if (operation < 0) {
+                return null;
+            }
+            try {
+                if (operation >= OPERATIONS.length) {
+                    throw new IOException("Corrupt session trace, unknown operation " + operation);
+                }
+                time += readVarLong();
+                long id = in.readLong();
+                long size = readVarLong();
+                int changed = (int) readVarLong();
+                return new Entry(OPERATIONS[operation], time, id, size, changed);
+            } catch (EOFException ex) {
+                return null;
+            }
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt session trace, variable length integer too long");
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+
+/**
+ * Where CouchbaseSessionManager records its session operations, to the SessionTrace set on it if there is one. The
+ * trace is started and stopped with the manager.
+ */
+final class SessionTraceHooks {
+
+    private volatile SessionTrace trace;
+
+    /**
+     * Get the value of trace
+     *
+     * @return the value of trace
+     */
+    SessionTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Set the value of trace, stopping the trace it replaces
+     *
+     * @param trace new value of trace or null to record nothing
+     * @param running Whether the manager is running, in which case the trace starts recording straight away
+     */
+    void setTrace(SessionTrace trace, boolean running) {
+        SessionTrace previous = this.trace;
+        this.trace = trace;
+
+        if (previous != null && previous != trace) {
+            previous.stop();
+        }
+        if (trace != null && running) {
+            trace.start();
+        }
+    }
+
+    void start() {
+        SessionTrace recording = trace;
+        if (recording != null) {
+            recording.start();
+        }
+    }
+
+    void stop() {
+        SessionTrace recording = trace;
+        if (recording != null) {
+            recording.stop();
+        }
+    }
+
+    /**
+     * Record a session operation with the trace, if there is one
+     *
+     * @param operation
+     * @param id The cluster id of the session
+     * @param size The size of the session document
+     * @param changed The number of attributes changed
+     */
+    void record(SessionTrace.Operation operation, String id, long size, int changed) {
+        SessionTrace recording = trace;
+        if (recording != null) {
+            recording.record(operation, id, size, changed);
+        }
+    }
+
+    /**
+     * Record the read of a session that was just loaded with the trace
+     *
+     * @param session
+     */
+    void read(CouchbaseHttpSession session) {
+        if (session.isMissing()) {
+            record(SessionTrace.Operation.MISS, session.getClusterId(), 0, 0);
+        } else {
+            record(SessionTrace.Operation.READ, session.getClusterId(), session.getStoredSize(), 0);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.statistic.CounterStatistic;
+import org.eclipse.jetty.util.statistic.SampleStatistic;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An optional write-behind queue for CouchbaseSessionManager. Sessions changed by a request are handed to the queue
+ * when the request completes and written to couchbase by a small pool of worker threads, so the response never waits
+ * for the write.
+ *
+ * Writes are coalesced per session: while a write of a session is still queued, a newer change of the same session
+ * replaces it and only the newest state is written (with the attributes changed by either). Writes of the same session
+ * are never issued concurrently or out of order. When the queue is full the request thread writes its session itself,
+ * which slows the producers down to the rate couchbase is taking writes. That write still goes through the queue, so
+ * a change of the same session submitted meanwhile is queued behind it, and a change of a session whose write is in
+ * flight is always queued behind that write even when the queue is full.
+ *
+ * This node always sees its own writes since a session with a write still pending is read from the queue rather than
+ * couchbase, without waiting for the write, but other nodes only see a change once it has been written. Everything
+ * pending is flushed when the manager stops.
+ */
+@ManagedObject("Session write-behind queue")
+public final class SessionWriteBehind {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SessionWriteBehind.class);
+
+    /**
+     * Writes a session for the queue
+     */
+    interface Writer {
+
+        /**
+         * @param session
+         * @param insert Whether the session has never been written before
+         * @param changed The names of the attributes changed since it was last written
+         */
+        void write(CouchbaseHttpSession session, boolean insert, Set<String> changed);
+    }
+
+    private final int capacity;
+    private final int threads;
+
+    /**
+     * Writes waiting for a worker, by cluster id
+     */
+    private final Map<String, Pending> queued = new HashMap<>();
+
+    /**
+     * Cluster ids in the order their writes should be taken, only ids that are queued and not being written. A set so
+     * that flushing a single session doesn't have to search the queue.
+     */
+    private final LinkedHashSet<String> order = new LinkedHashSet<>();
+
+    /**
+     * Writes being issued, by cluster id
+     */
+    private final Map<String, Pending> writing = new HashMap<>();
+
+    private Writer writer;
+    private List<Thread> workers;
+
+    private final CounterStatistic coalesced = new CounterStatistic();
+    private final CounterStatistic overflowed = new CounterStatistic();
+    private final CounterStatistic failed = new CounterStatistic();
+    private final SampleStatistic flushLatency = new SampleStatistic();
+
+    /**
+     * Create a new write-behind queue
+     *
+     * @param capacity The maximum number of sessions waiting to be written
+     * @param threads The number of worker threads writing the sessions
+     */
+    public SessionWriteBehind(int capacity, int threads) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0 but was " + capacity);
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be > 0 but was " + threads);
+        }
+        this.capacity = capacity;
+        this.threads = threads;
+    }
+
+    /**
+     * Start the workers
+     *
+     * @param writer
+     */
+    synchronized void start(Writer writer) {
+        if (workers != null) {
+            return;
+        }
+
+        this.writer = writer;
+        workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "session-write-behind-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Write everything still pending and stop the workers
+     */
+    void stop() {
+        List<Thread> stopping;
+        synchronized (this) {
+            //No more submissions, the workers keep going until nothing is left
+            stopping = workers;
+            workers = null;
+            notifyAll();
+        }
+
+        flush();
+
+        if (stopping != null) {
+            for (Thread worker : stopping) {
+                try {
+                    worker.join(TimeUnit.SECONDS.toMillis(5));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue the write of a session
+     *
+     * @param session
+     * @param insert Whether the session has never been written before
+     * @param changed The names of the attributes changed since it was last written
+     * @return false if the queue is not running and the caller must write the session itself
+     */
+    boolean submit(CouchbaseHttpSession session, boolean insert, Set<String> changed) {
+        String id = session.getClusterId();
+        Pending overflow;
+        synchronized (this) {
+            if (workers == null) {
+                return false;
+            }
+
+            Pending pending = queued.get(id);
+            if (pending != null) {
+                queued.put(id, pending.merge(session, insert, changed));
+                coalesced.increment();
+                return true;
+            }
+
+            if (writing.containsKey(id)) {
+                //Queued even past the capacity, it has to be written after the write in flight and not alongside it
+                queued.put(id, new Pending(session, insert, changed));
+                return true;
+            }
+
+            if (queued.size() < capacity) {
+                queued.put(id, new Pending(session, insert, changed));
+                order.add(id);
+                notifyAll();
+                return true;
+            }
+
+            overflowed.increment();
+            overflow = new Pending(session, insert, changed);
+            writing.put(id, overflow);
+        }
+
+        //Written by the calling thread, but marked as being written so a change submitted meanwhile waits for it
+        write(id, overflow);
+        return true;
+    }
+
+    /**
+     * Get the newest state of a session that has a write queued or being issued, which is newer than the stored
+     * session. Nothing may change the returned session.
+     *
+     * @param id The cluster id of the session
+     * @return The session or null if it has no write pending
+     */
+    synchronized CouchbaseHttpSession pending(String id) {
+        Pending pending = queued.get(id);
+        if (pending == null) {
+            pending = writing.get(id);
+        }
+        return pending == null ? null : pending.session;
+    }
+
+    /**
+     * Make sure any pending write of a session has been issued, ie. before it is read or removed. A queued write is
+     * issued by the calling thread.
+     *
+     * @param id The cluster id of the session
+     */
+    void flush(String id) {
+        Pending pending;
+        synchronized (this) {
+            while (writing.containsKey(id)) {
+                if (!await()) {
+                    return;
+                }
+            }
+
+            pending = queued.remove(id);
+            if (pending == null) {
+                return;
+            }
+            order.remove(id);
+            writing.put(id, pending);
+        }
+
+        write(id, pending);
+    }
+
+    /**
+     * Issue every pending write, helping the workers from the calling thread
+     */
+    void flush() {
+        while (true) {
+            String id;
+            Pending pending;
+            synchronized (this) {
+                id = poll();
+                if (id == null) {
+                    //Whatever is left is being written, or queued behind a write of the same session
+                    if (queued.isEmpty() && writing.isEmpty()) {
+                        return;
+                    }
+                    if (!await()) {
+                        return;
+                    }
+                    continue;
+                }
+                pending = queued.remove(id);
+                writing.put(id, pending);
+            }
+
+            write(id, pending);
+        }
+    }
+
+    private void work() {
+        while (true) {
+            String id;
+            Pending pending;
+            synchronized (this) {
+                while (order.isEmpty()) {
+                    if (workers == null || !await()) {
+                        return;
+                    }
+                }
+                id = poll();
+                pending = queued.remove(id);
+                writing.put(id, pending);
+            }
+
+            write(id, pending);
+        }
+    }
+
+    private void write(String id, Pending pending) {
+        try {
+            writer.write(pending.session, pending.insert, pending.changed);
+            flushLatency.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pending.submitted));
+        } catch (Exception ex) {
+            failed.increment();
+            LOG.error("Problem persisting changed session data id=" + id, ex);
+        } finally {
+            synchronized (this) {
+                writing.remove(id);
+                if (queued.containsKey(id)) {
+                    //A newer change arrived while this one was being written
+                    order.add(id);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Take the next cluster id to write, must hold the lock
+     *
+     * @return The id or null if none is waiting
+     */
+    private String poll() {
+        Iterator<String> next = order.iterator();
+        if (!next.hasNext()) {
+            return null;
+        }
+        String id = next.next();
+        next.remove();
+        return id;
+    }
+
+    /**
+     * Wait for the state of the queue to change, must hold the lock
+     *
+     * @return false if interrupted
+     */
+    private boolean await() {
+        try {
+            wait();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return The number of sessions waiting to be written
+     */
+    @ManagedAttribute("number of sessions waiting to be written")
+    public synchronized int getDepth() {
+        return queued.size();
+    }
+
+    /**
+     * @return The number of session writes replaced by a newer change before they were written
+     */
+    @ManagedAttribute("number of session writes coalesced into a newer one")
+    public long getCoalesced() {
+        return coalesced.getTotal();
+    }
+
+    /**
+     * @return The number of session writes done by the request thread because the queue was full
+     */
+    @ManagedAttribute("number of session writes done by the request because the queue was full")
+    public long getOverflowed() {
+        return overflowed.getTotal();
+    }
+
+    /**
+     * @return The number of queued session writes that failed
+     */
+    @ManagedAttribute("number of queued session writes that failed")
+    public long getFailed() {
+        return failed.getTotal();
+    }
+
+    /**
+     * @return The mean time in msec from queueing a session until it was written
+     */
+    @ManagedAttribute("mean time in msec from queueing a session until it was written")
+    public double getFlushLatencyMean() {
+        return flushLatency.getMean();
+    }
+
+    /**
+     * @return The maximum time in msec from queueing a session until it was written
+     */
+    @ManagedAttribute("maximum time in msec from queueing a session until it was written")
+    public long getFlushLatencyMax() {
+        return flushLatency.getMax();
+    }
+
+    /**
+     * A queued session write
+     */
+    private static final class Pending {
+
+        private final CouchbaseHttpSession session;
+
+        private final boolean insert;
+
+        private final Set<String> changed;
+
+        /**
+         * System.nanoTime() that the oldest of the coalesced changes was queued
+         */
+        private final long submitted;
+
+        private Pending(CouchbaseHttpSession session, boolean insert, Set<String> changed) {
+            this(session, insert, changed, System.nanoTime());
+        }
+
+        private Pending(CouchbaseHttpSession session, boolean insert, Set<String> changed, long submitted) {
+            this.session = session;
+            this.insert = insert;
+            this.changed = changed;
+            this.submitted = submitted;
+        }
+
+        /**
+         * @return The newer state of the session along with what the earlier write still had to write
+         */
+        private Pending merge(CouchbaseHttpSession newer, boolean newerInsert, Set<String> newerChanged) {
+            Set<String> union = new HashSet<>(changed);
+            union.addAll(newerChanged);
+            return new Pending(newer, insert || newerInsert, union, submitted);
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.subdoc.DocumentNotJsonException;
+import com.couchbase.client.java.error.subdoc.SubDocumentException;
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.util.statistic.CounterStatistic;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+/**
+ * The write pipeline of CouchbaseSessionManager: full and delta writes of a session, the writes handed over by the
+ * write-behind queue, and the journaling and replay of the writes that fail. The settings are read from the manager
+ * as each write is made.
+ */
+final class SessionWriter {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SessionWriter.class);
+
+    private static final String LAST_TOUCHED = SessionSerializer.LAST_TOUCHED;
+
+    private static final String VERSION = SessionSerializer.VERSION;
+
+    private static final String LAST_SAVED = SessionSerializer.LAST_SAVED;
+
+    /**
+     * Couchbase allows at most 16 operations in one sub-document mutation and a delta write needs 3 of them for the
+     * session metadata
+     */
+    private static final int MAX_DELTA_ATTRIBUTES = 13;
+
+    private final CouchbaseSessionManager manager;
+    private final SessionStore store;
+    private final SessionTraceHooks traces;
+
+    private final CounterStatistic deltaWritesIssued = new CounterStatistic();
+
+    SessionWriter(CouchbaseSessionManager manager, SessionStore store, SessionTraceHooks traces) {
+        this.manager = manager;
+        this.store = store;
+        this.traces = traces;
+    }
+
+    long getDeltaWritesIssued() {
+        return deltaWritesIssued.getTotal();
+    }
+
+    /**
+     * Write a new session to couchbase without blocking. The session is serialized before this returns.
+     *
+     * @param session
+     * @return The written document
+     */
+    Observable<SessionDocument> insertSessionAsync(CouchbaseHttpSession session) {
+        byte[] content;
+        try {
+            content = serialize(session);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed serialize session " + session, ex);
+        }
+
+        SessionDocument doc = SessionDocument.create(manager.getKey(session.getClusterId()),
+                manager.getMaxInactiveInterval(),
+                content);
+
+        return store.insert(doc).doOnNext(saved -> {
+            session.setCas(saved.cas());
+            session.setStored(content);
+            session.setPersisted(true);
+            manager.cacheUpdate(session, content, saved.cas());
+            discardJournaled(session.getClusterId());
+            traces.record(SessionTrace.Operation.CREATE, session.getClusterId(), content.length,
+                    session.getAttributes());
+        });
+    }
+
+    /**
+     * Update data on an existing persisted session without blocking
+     *
+     * @param session
+     * @param changed The names of the attributes changed since the session was last persisted
+     * @return An Observable emitting the session once it has been written
+     */
+    Observable<CouchbaseHttpSession> updateSessionAsync(CouchbaseHttpSession session, Set<String> changed) {
+        CouchbaseSessionManager.assertWritableSession(session, "updateSession");
+
+        //Only a JSON document can take a sub-document mutation
+        boolean json = manager.getCodec().isJson() && session.isStoredJson();
+        Observable<Boolean> delta = manager.isDeltaWrites() && json && !changed.isEmpty()
+                ? writeDelta(session, changed)
+                : Observable.just(false);
+
+        return delta.flatMap(written -> {
+            if (written) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Updated attributes {} of session {}", changed, session);
+                }
+                return Observable.just(session);
+            }
+            return writeFull(session);
+        }).doOnNext(written -> traces.record(SessionTrace.Operation.WRITE, session.getClusterId(),
+                session.getStoredSize(), changed.size()));
+    }
+
+    /**
+     * Write the whole session, reading the attributes of a projected session that were not read first
+     *
+     * @param session
+     * @return An Observable emitting the session once it has been written
+     */
+    private Observable<CouchbaseHttpSession> writeFull(CouchbaseHttpSession session) {
+        //Never write a session in full without the attributes that weren't read
+        Observable<CouchbaseHttpSession> complete = session.getProjection() != null
+                ? manager.completeProjectionAsync(session)
+                : Observable.just(session);
+
+        return complete.flatMap(ignored -> {
+            session.setLastSaved(System.currentTimeMillis());
+
+            byte[] content;
+            try {
+                content = serialize(session);
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed serialize session " + session, ex);
+            }
+
+            SessionDocument doc = SessionDocument.create(manager.getKey(session.getClusterId()),
+                    manager.getMaxInactiveInterval(),
+                    content,
+                    session.getCas());
+
+            return store.upsert(doc).map(saved -> {
+                session.setCas(saved.cas());
+                session.setStored(content);
+                manager.cacheUpdate(session, content, saved.cas());
+                discardJournaled(session.getClusterId());
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Updated session " + session);
+                }
+                return session;
+            });
+        });
+    }
+
+    /**
+     * Write only the attributes that changed, along with the session metadata, in a single sub-document mutation.
+     * The mutation is built before this returns.
+     *
+     * @param session
+     * @param changed The names of the attributes that were set or removed
+     * @return true if the changes were written, false if the whole session must be written instead because the
+     * changes are too many or as large as the document, or could not be applied to the stored document
+     */
+    private Observable<Boolean> writeDelta(CouchbaseHttpSession session, Set<String> changed) {
+        if (changed.size() > MAX_DELTA_ATTRIBUTES) {
+            return Observable.just(false);
+        }
+
+        String key = manager.getKey(session.getClusterId());
+        long now = System.currentTimeMillis();
+        long size = 0;
+
+        List<SessionMutation> mutations = new ArrayList<>(changed.size() + 3);
+        SessionCodec codec = manager.getCodec();
+
+        try {
+            for (String name : changed) {
+                String path = SessionSerializer.attributePath(name);
+                Object value = session.getStoredAttribute(name);
+
+                if (value == null) {
+                    mutations.add(SessionMutation.remove(path));
+                    size += path.length();
+                } else {
+                    //Encoded by the codecs of a full write so the value is stored exactly as a full write stores it
+                    byte[] fragment = SessionSerializer.writeFragment(codec, manager.getAttributeTypes(), value);
+                    mutations.add(SessionMutation.upsertFragment(path, fragment, true));
+                    size += path.length() + fragment.length;
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed serialize session attributes to JSON " + session, ex);
+        }
+
+        if (size >= session.getStoredSize()) {
+            return Observable.just(false);
+        }
+
+        mutations.add(SessionMutation.upsert(LAST_SAVED, now, false));
+        mutations.add(SessionMutation.upsert(LAST_TOUCHED, now, false));
+        mutations.add(SessionMutation.counter(VERSION, 1, true));
+
+        //A mutation always sets the expiry so it has to be given even though it doesn't change
+        return store.mutateIn(key, manager.getMaxInactiveInterval(), mutations)
+                .map(result -> {
+                    session.setLastSaved(now);
+                    session.setCas(result.cas());
+                    session.setVersion(((Number) result.content(VERSION)).longValue());
+
+                    //The cached copy no longer matches the document and the whole document isn't at hand to replace it
+                    manager.cacheInvalidate(session.getClusterId());
+                    discardJournaled(session.getClusterId());
+                    deltaWritesIssued.increment();
+                    return true;
+                })
+                .onErrorResumeNext(ex -> {
+                    if (!(ex instanceof DocumentDoesNotExistException || ex instanceof SubDocumentException)) {
+                        return Observable.error(ex);
+                    }
+
+                    //ie. the document expired or an attribute removed here was never stored
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Could not apply changed attributes to session " + key + ", writing it in full", ex);
+                    }
+                    return Observable.just(false);
+                });
+    }
+
+    byte[] serialize(CouchbaseHttpSession session) throws IOException {
+        Map<String, Object> attributes = session.getStoredAttributes();
+        //Every write of the document bumps its version
+        session.setVersion(session.getVersion() + 1);
+        //Every write resets the expiry of the document
+        SessionSerializer.Stamp stamp = new SessionSerializer.Stamp(session.getCreationTime(),
+                session.getLastSaved(),
+                session.getMaxInactiveInterval(),
+                System.currentTimeMillis(),
+                session.getVersion());
+
+        byte[] content = SessionSerializer.write(manager.getCodec(), manager.getAttributeTypes(), stamp,
+                session.getClusterId(), attributes);
+        SessionCompression target = manager.getCompression();
+        return target != null ? target.compress(content) : content;
+    }
+
+    /**
+     * Write a session taken from the write-behind queue
+     *
+     * @param session
+     * @param insert
+     * @param changed
+     */
+    void writeQueued(CouchbaseHttpSession session, boolean insert, Set<String> changed) {
+        followQueued(session);
+        long version = insert ? -1 : session.getVersion();
+        try {
+            if (insert) {
+                CouchbaseSessionManager.await(insertSessionAsync(session));
+            } else {
+                CouchbaseSessionManager.await(updateSessionAsync(session, changed));
+            }
+        } catch (RuntimeException ex) {
+            if (!journalFailed(session, version, ex)) {
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Journal a session whose write failed, if there is a journal
+     *
+     * @param session
+     * @param expectedVersion The version of the stored session when it was read, or -1 if it was never stored
+     * @param failure Why the write failed
+     * @return true if the session was journaled
+     */
+    boolean journalFailed(CouchbaseHttpSession session, long expectedVersion, Throwable failure) {
+        SessionJournal target = manager.getJournal();
+        if (target == null) {
+            return false;
+        }
+
+        byte[] content;
+        try {
+            content = serialize(session);
+        } catch (IOException | RuntimeException ex) {
+            //ie. the attributes of a projected session that weren't read can't be read either
+            failure.addSuppressed(ex);
+            return false;
+        }
+
+        long expiresAt = manager.getMaxInactiveInterval() > 0
+                ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(manager.getMaxInactiveInterval())
+                : 0;
+        if (!target.append(session.getClusterId(), expectedVersion, expiresAt, content)) {
+            return false;
+        }
+
+        LOG.warn("Failed to persist session {}, journaled it to be replayed", session.getClusterId());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Failed to persist session " + session.getClusterId(), failure);
+        }
+
+        //The cached copy is older than the journaled one
+        manager.cacheInvalidate(session.getClusterId());
+        return true;
+    }
+
+    /**
+     * Replay a journaled session write, only if the stored session still has the version it had when it was read
+     *
+     * @param id
+     * @param expectedVersion The version the stored session must have, or -1 if it must not exist
+     * @param expiresAt Time in msec since the epoch that the session expires, 0 for never
+     * @param content
+     * @return true if the write was applied, false if the session changed, expired or was removed since
+     */
+    boolean replayJournaled(String id, long expectedVersion, long expiresAt, byte[] content) {
+        String key = manager.getKey(id);
+        long now = System.currentTimeMillis();
+        if (expiresAt > 0 && expiresAt <= now) {
+            return false;
+        }
+
+        int expiry = expiresAt > 0 ? (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(expiresAt - now)) : 0;
+        manager.cacheInvalidate(id);
+
+        if (expectedVersion < 0) {
+            try {
+                CouchbaseSessionManager.await(store.insert(SessionDocument.create(key, expiry, content)));
+                return true;
+            } catch (DocumentAlreadyExistsException ex) {
+                return false;
+            }
+        }
+
+        try {
+            SessionFragment stamp = readVersion(key);
+            if (stamp == null || SessionReader.stampField(stamp, VERSION) != expectedVersion) {
+                return false;
+            }
+
+            CouchbaseSessionManager.await(store.replace(SessionDocument.create(key, expiry, content, stamp.cas())));
+            return true;
+        } catch (DocumentDoesNotExistException | CASMismatchException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the version of a stored session, with a sub-document lookup of a JSON document or by reading the whole
+     * document of any other format
+     *
+     * @param key
+     * @return The version and CAS of the stored session, or null if it does not exist
+     */
+    private SessionFragment readVersion(String key) {
+        if (manager.getCodec().isJson()) {
+            try {
+                return CouchbaseSessionManager.await(store.lookupIn(key, Collections.singletonList(VERSION)));
+            } catch (DocumentNotJsonException ex) {
+                //Not rewritten since the manager.getCodec() was changed back to JSON
+            }
+        }
+
+        SessionDocument doc = CouchbaseSessionManager.await(store.get(key));
+        if (doc == null) {
+            return null;
+        }
+        return new SessionFragment(key, doc.cas(),
+                Collections.<String, Object>singletonMap(VERSION,
+                        manager.decode(key, doc.content(), null).getVersion()));
+    }
+
+    /**
+     * Continue the version of a session restored from the write-behind queue from the write it was restored from,
+     * which has been issued by the time this one is written
+     *
+     * @param session
+     */
+    void followQueued(CouchbaseHttpSession session) {
+        CouchbaseHttpSession queued = session.takeQueued();
+        if (queued == null) {
+            return;
+        }
+
+        session.setVersion(Math.max(session.getVersion(), queued.getVersion()));
+        SessionJournal target = manager.getJournal();
+        if (target != null && target.isPending(session.getClusterId())) {
+            //The write failed and was journaled, so the stored document doesn't have the changes this one builds on
+            session.setStoredSize(0);
+        }
+    }
+
+    /**
+     * Forget a journaled write of a session that was written to couchbase since, so the older journaled copy is
+     * neither served nor replayed over it
+     *
+     * @param id The cluster id of the session
+     */
+    void discardJournaled(String id) {
+        SessionJournal target = manager.getJournal();
+        if (target != null) {
+            target.discard(id);
+        }
+    }
+
+    /**
+     * Make sure a write of the session that is still in the write-behind queue has been issued
+     *
+     * @param id The cluster id of the session
+     */
+    void flushQueued(String id) {
+        SessionWriteBehind queue = manager.getWriteBehind();
+        if (queue != null) {
+            queue.flush(id);
+        }
+    }
+}
@@ -0,0 +1,622 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rx.Observable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CouchbaseSessionManagerTest {
+
+    private static final String KEY_PREFIX = "session::";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CountingSessionStore store;
+
+    private CouchbaseSessionManager manager;
+
+    @Before
+    public void startManager() throws Exception {
+        store = new CountingSessionStore();
+        manager = new CouchbaseSessionManager(KEY_PREFIX, store, new ObjectMapper(), 1800);
+        manager.start();
+    }
+
+    @After
+    public void stopManager() throws Exception {
+        manager.stop();
+    }
+
+    @Test
+    public void renewSessionIdMovesTheSessionToTheNewId() {
+        long now = System.currentTimeMillis();
+        CouchbaseHttpSession session = manager.new CouchbaseHttpSession("old", now, now,
+                manager.getMaxInactiveInterval());
+        session.setWrite(true);
+        session.setAttribute("user", "bob");
+        manager.addSession(session);
+
+        manager.renewSessionId("old", "old", "new", "new");
+
+        assertNull(store.get(KEY_PREFIX + "old").toBlocking().singleOrDefault(null));
+        assertNotNull(store.get(KEY_PREFIX + "new").toBlocking().singleOrDefault(null));
+
+        CouchbaseHttpSession renewed = (CouchbaseHttpSession) manager.getSession("new");
+        assertNotNull(renewed);
+        assertEquals("bob", renewed.getAttribute("user"));
+    }
+
+    @Test
+    public void removeSessionDeletesTheDocument() {
+        long now = System.currentTimeMillis();
+        CouchbaseHttpSession session = manager.new CouchbaseHttpSession("gone", now, now,
+                manager.getMaxInactiveInterval());
+        session.setWrite(true);
+        session.setAttribute("user", "bob");
+        manager.addSession(session);
+
+        assertTrue(manager.removeSession("gone"));
+
+        assertNull(store.get(KEY_PREFIX + "gone").toBlocking().singleOrDefault(null));
+        assertNull(manager.getSession("gone"));
+        assertFalse(manager.removeSession("gone"));
+    }
+
+    @Test
+    public void removeSessionDiscardsAJournaledWrite() throws IOException {
+        SessionJournal journal = journal();
+        journaledSession("gone");
+
+        assertTrue(manager.removeSession("gone"));
+
+        assertEquals(0, journal.getPending());
+        assertNull(manager.getSession("gone"));
+    }
+
+    @Test
+    public void renewSessionIdMovesAJournaledWrite() throws IOException {
+        SessionJournal journal = journal();
+        journaledSession("old");
+
+        manager.renewSessionId("old", "old", "new", "new");
+
+        assertEquals(0, journal.getPending());
+        assertNull(manager.getSession("old"));
+        assertEquals("alice", manager.getSession("new").getAttribute("user"));
+    }
+
+    @Test
+    public void readsTheSessionOfAnAsyncRequestOnce() {
+        manager.setLazyLoad(true);
+        storedSession("async");
+        store.reset();
+
+        //As AsyncSessionFilter does: the original dispatch suspends the request and returns while the read is pending
+        CouchbaseHttpSession session = (CouchbaseHttpSession) manager.getSession("async");
+        manager.access(session, false);
+        Observable<CouchbaseHttpSession> load = session.loadAsync();
+        manager.complete(session);
+        assertEquals(0, store.total());
+
+        //Then the async dispatch runs with the session loaded
+        load.toBlocking().single();
+        manager.access(session, false);
+        assertEquals("bob", session.getAttribute("user"));
+        manager.complete(session);
+        assertEquals(1, store.total());
+    }
+
+    @Test
+    public void deltaWritesEncodeValuesWithTheAttributeCodecs() {
+        manager.setDeltaWrites(true);
+        manager.addAttributeCodec(new PointCodec());
+        storedSession("delta");
+
+        CouchbaseHttpSession session = (CouchbaseHttpSession) manager.getSession("delta");
+        session.setWrite(true);
+        session.setAttribute("point", new Point(3, 4));
+        session.complete();
+        assertEquals(1, manager.getDeltaWrites());
+
+        String stored = new String(store.get(KEY_PREFIX + "delta").toBlocking().single().content(),
+                StandardCharsets.UTF_8);
+        //As the codec writes it, which a full write would too
+        assertTrue(stored, stored.contains("\"point\":[3,4]"));
+
+        Point point = (Point) manager.getSession("delta").getAttribute("point");
+        assertEquals(3, point.x);
+        assertEquals(4, point.y);
+    }
+
+    @Test
+    public void projectedReadsDecodeValuesWithTheAttributeCodecs() {
+        manager.setLazyLoad(true);
+        manager.addAttributeCodec(new PointCodec());
+        long now = System.currentTimeMillis();
+        CouchbaseHttpSession stored = manager.new CouchbaseHttpSession("projected", now, now,
+                manager.getMaxInactiveInterval());
+        stored.setWrite(true);
+        stored.setAttribute("point", new Point(3, 4));
+        stored.setAttribute("user", "bob");
+        manager.addSession(stored);
+        store.reset();
+
+        CouchbaseHttpSession session = (CouchbaseHttpSession) manager.getSession("projected");
+        session.project(new String[]{"point"}, new String[0]);
+        Point point = (Point) session.getAttribute("point");
+        assertEquals(3, point.x);
+        assertEquals(4, point.y);
+        assertEquals(1, store.count("lookupIn"));
+        assertEquals(0, store.count("get") + store.count("getAndTouch"));
+    }
+
+    @Test
+    public void refusesChangesToALazyHandleWhoseDocumentExpired() {
+        manager.setLazyLoad(true);
+        long now = System.currentTimeMillis();
+        CouchbaseHttpSession stored = manager.new CouchbaseHttpSession("expiring", now, now,
+                manager.getMaxInactiveInterval());
+        stored.setWrite(true);
+        stored.setAttribute("user", "bob");
+        manager.addSession(stored);
+
+        CouchbaseHttpSession session = (CouchbaseHttpSession) manager.getSession("expiring");
+        session.setWrite(true);
+        //Expires after jetty handed out the handle
+        store.getDelegate().remove(KEY_PREFIX + "expiring").toBlocking().single();
+
+        try {
+            session.setAttribute("user", "alice");
+            fail("Changed a session that no longer exists");
+        } catch (IllegalStateException expected) {
+            //The change isn't silently dropped
+        }
+        assertTrue(session.isMissing());
+        assertFalse(session.isValid());
+
+        store.reset();
+        session.complete();
+        assertEquals(0, store.total());
+    }
+
+    @Test
+    public void cachedReadsDoNotTouchWithinTheWindow() {
+        manager.setNearCache(new SessionNearCache(1 << 20, 60, TimeUnit.SECONDS));
+        storedSession("cached");
+        manager.getSession("cached");
+
+        store.reset();
+        long skipped = manager.getTouchesSkipped();
+        for (int i = 0; i < 20; i++) {
+            assertEquals("bob", manager.getSession("cached").getAttribute("user"));
+        }
+
+        //Served from the cache, whose window bounds how far the expiry falls behind
+        assertEquals(0, store.total());
+        assertEquals(skipped + 20, manager.getTouchesSkipped());
+    }
+
+    @Test
+    public void cachedReadsTouchOnceWhenDue() throws Exception {
+        manager.setNearCache(new SessionNearCache(1 << 20, 60, TimeUnit.SECONDS));
+        //Due after 900 msec
+        manager.setTouchFraction(0.0005);
+        storedSession("cached");
+        manager.getSession("cached");
+        Thread.sleep(1000);
+
+        store.reset();
+        ExecutorService readers = Executors.newFixedThreadPool(8);
+        List<Future<?>> reads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            reads.add(readers.submit(() -> {
+                for (int j = 0; j < 10; j++) {
+                    assertEquals("bob", manager.getSession("cached").getAttribute("user"));
+                }
+            }));
+        }
+        for (Future<?> read : reads) {
+            read.get();
+        }
+        readers.shutdown();
+
+        //Only one of the requests served meanwhile issues the touch
+        assertEquals(1, store.count("mutateIn"));
+        assertEquals(1, store.total());
+    }
+
+    @Test
+    public void servesASessionWithAQueuedWriteWithoutWaitingForIt() throws Exception {
+        SessionWriteBehind queue = new SessionWriteBehind(10, 1);
+        manager.setWriteBehind(queue);
+        storedSession("a");
+        storedSession("b");
+        long version = ((CouchbaseHttpSession) manager.getSession("a")).getVersion();
+
+        CountDownLatch gate = new CountDownLatch(1);
+        store.setWriteGate(gate);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        CouchbaseHttpSession second;
+        try {
+            //Holds up the only worker, so the change of a stays queued
+            change("b", "alice");
+            change("a", "alice");
+
+            store.reset();
+            second = (CouchbaseHttpSession) reader.submit(() -> manager.getSession("a")).get(1, TimeUnit.SECONDS);
+            assertEquals("alice", second.getAttribute("user"));
+            assertEquals(0, store.count("get") + store.count("getAndTouch"));
+        } finally {
+            gate.countDown();
+            reader.shutdown();
+        }
+
+        //Built on the change it was served, which is written first
+        queue.flush();
+        second.setWrite(true);
+        second.setAttribute("user", "carol");
+        second.complete();
+        queue.flush();
+
+        CouchbaseHttpSession stored = (CouchbaseHttpSession) manager.getSession("a");
+        assertEquals("carol", stored.getAttribute("user"));
+        assertEquals(version + 2, stored.getVersion());
+    }
+
+    private SessionJournal journal() throws IOException {
+        SessionJournal journal = new SessionJournal(folder.newFolder(), 4096, 4);
+        //Only replayed when a test asks for it
+        journal.setReplayInterval(60000);
+        manager.setJournal(journal);
+        return journal;
+    }
+
+    @Test
+    public void nearCacheSeesChangesOfOtherNodesOnceTheWindowPassed() throws Exception {
+        manager.setNearCache(new SessionNearCache(1 << 20, 200, TimeUnit.MILLISECONDS));
+        storedSession("cached");
+        manager.getSession("cached");
+
+        CouchbaseSessionManager other = otherNode();
+        try {
+            CouchbaseHttpSession session = (CouchbaseHttpSession) other.getSession("cached");
+            session.setWrite(true);
+            session.setAttribute("user", "alice");
+            session.complete();
+        } finally {
+            other.stop();
+        }
+
+        //Stale but within the window
+        store.reset();
+        assertEquals("bob", manager.getSession("cached").getAttribute("user"));
+        assertEquals(0, store.total());
+
+        Thread.sleep(300);
+        assertEquals("alice", manager.getSession("cached").getAttribute("user"));
+        assertEquals(1, store.total());
+    }
+
+    @Test
+    public void versionCheckedNearCacheOnlyReadsTheStampWhileUnchanged() throws Exception {
+        manager.setNearCache(new SessionNearCache(1 << 20));
+        //So that the stamp decides the touches too
+        manager.setTouchFraction(0.5);
+        storedSession("cached");
+        manager.getSession("cached");
+
+        store.reset();
+        assertEquals("bob", manager.getSession("cached").getAttribute("user"));
+        assertEquals(1, store.count("lookupIn"));
+        assertEquals(1, store.total());
+
+        CouchbaseSessionManager other = otherNode();
+        try {
+            CouchbaseHttpSession session = (CouchbaseHttpSession) other.getSession("cached");
+            session.setWrite(true);
+            session.setAttribute("user", "alice");
+            session.complete();
+        } finally {
+            other.stop();
+        }
+
+        //Never stale, the changed stamp makes it read the whole document
+        store.reset();
+        assertEquals("alice", manager.getSession("cached").getAttribute("user"));
+        assertEquals(1, store.count("lookupIn"));
+        assertEquals(1, store.count("get") + store.count("getAndTouch"));
+    }
+
+    @Test
+    public void concurrentReadsOfASessionShareOneRead() throws Exception {
+        manager.setCoalesceReads(true);
+        storedSession("shared");
+        store.reset();
+        store.setMasterDelay(500);
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<CouchbaseHttpSession>> reads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                reads.add(readers.submit(() -> {
+                    start.await();
+                    return (CouchbaseHttpSession) manager.getSession("shared");
+                }));
+            }
+            start.countDown();
+
+            List<CouchbaseHttpSession> sessions = new ArrayList<>();
+            for (Future<CouchbaseHttpSession> read : reads) {
+                CouchbaseHttpSession session = read.get(5, TimeUnit.SECONDS);
+                assertEquals("bob", session.getAttribute("user"));
+                //Each request still gets a session of its own
+                assertFalse(sessions.contains(session));
+                sessions.add(session);
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+
+        assertEquals(1, store.total());
+        assertEquals(3, manager.getReadsCoalesced());
+    }
+
+    @Test
+    public void slowReadsAreHedgedToTheReplicas() {
+        manager.setHedgePercentile(99);
+        manager.setHedgeMinDelay(10);
+        storedSession("hedged");
+        store.reset();
+        store.setMasterDelay(5000);
+
+        long start = System.currentTimeMillis();
+        assertEquals("bob", manager.getSession("hedged").getAttribute("user"));
+
+        //Answered by a replica long before the master
+        assertTrue(System.currentTimeMillis() - start < 2500);
+        assertEquals(1, manager.getHedgedReads());
+        assertEquals(1, manager.getHedgeWins());
+        assertEquals(1, store.count("getFromReplica"));
+    }
+
+    @Test
+    public void deferredSessionsAreOnlyInsertedOnceTheyHoldData() {
+        manager.setDeferredPersistence(true);
+        long now = System.currentTimeMillis();
+
+        CouchbaseHttpSession anonymous = manager.new CouchbaseHttpSession("anonymous", now, now,
+                manager.getMaxInactiveInterval());
+        manager.addSession(anonymous);
+        anonymous.complete();
+        assertEquals(0, store.total());
+
+        CouchbaseHttpSession login = manager.new CouchbaseHttpSession("login", now, now,
+                manager.getMaxInactiveInterval());
+        manager.addSession(login);
+        login.setWrite(true);
+        login.setAttribute("user", "bob");
+        assertEquals(0, store.total());
+        login.complete();
+
+        //A single insert holding the data
+        assertEquals(1, store.count("insert"));
+        assertEquals(1, store.total());
+        assertNull(manager.getSession("anonymous"));
+        assertEquals("bob", manager.getSession("login").getAttribute("user"));
+    }
+
+    @Test
+    public void deltaWritesOnlyWriteTheChangedAttributes() {
+        manager.setDeltaWrites(true);
+        long now = System.currentTimeMillis();
+        CouchbaseHttpSession stored = manager.new CouchbaseHttpSession("delta", now, now,
+                manager.getMaxInactiveInterval());
+        stored.setWrite(true);
+        stored.setAttribute("user", "bob");
+        stored.setAttribute("cart", "0123456789012345678901234567890123456789");
+        manager.addSession(stored);
+
+        CouchbaseHttpSession session = (CouchbaseHttpSession) manager.getSession("delta");
+        long version = session.getVersion();
+        store.reset();
+        session.setWrite(true);
+        session.setAttribute("user", "alice");
+        session.complete();
+
+        assertEquals(1, store.count("mutateIn"));
+        assertEquals(1, store.total());
+        CouchbaseHttpSession written = (CouchbaseHttpSession) manager.getSession("delta");
+        assertEquals("alice", written.getAttribute("user"));
+        assertEquals("0123456789012345678901234567890123456789", written.getAttribute("cart"));
+        assertEquals(version + 1, written.getVersion());
+
+        //Removed with a delta write as well
+        store.reset();
+        written.setWrite(true);
+        written.removeAttribute("cart");
+        written.complete();
+        assertEquals(1, store.count("mutateIn"));
+        assertNull(manager.getSession("delta").getAttribute("cart"));
+
+        //A change as large as the document is written in full
+        store.reset();
+        CouchbaseHttpSession grown = (CouchbaseHttpSession) manager.getSession("delta");
+        grown.setWrite(true);
+        grown.setAttribute("cart", new String(new char[4096]).replace('\0', 'x'));
+        grown.complete();
+        assertEquals(0, store.count("mutateIn"));
+        assertEquals(1, store.count("upsert"));
+    }
+
+    @Test
+    public void projectedSessionsReadUndeclaredAttributesOnDemand() {
+        manager.setLazyLoad(true);
+        long now = System.currentTimeMillis();
+        CouchbaseHttpSession stored = manager.new CouchbaseHttpSession("projected", now, now,
+                manager.getMaxInactiveInterval());
+        stored.setWrite(true);
+        stored.setAttribute("user", "bob");
+        stored.setAttribute("cart", "book");
+        manager.addSession(stored);
+        store.reset();
+
+        CouchbaseHttpSession session = (CouchbaseHttpSession) manager.getSession("projected");
+        session.project(new String[]{"user"}, new String[0]);
+        assertEquals("bob", session.getAttribute("user"));
+        assertEquals(1, manager.getProjectedReads());
+        assertEquals(1, store.count("lookupIn"));
+
+        //Not declared, so looked up when first used
+        assertEquals("book", session.getAttribute("cart"));
+        assertEquals(2, store.count("lookupIn"));
+        assertEquals(0, store.count("get") + store.count("getAndTouch"));
+
+        //A full write keeps the attributes that were never read
+        session.setWrite(true);
+        session.setAttribute("user", "alice");
+        session.complete();
+        CouchbaseHttpSession written = (CouchbaseHttpSession) manager.getSession("projected");
+        assertEquals("alice", written.getAttribute("user"));
+        assertEquals("book", written.getAttribute("cart"));
+    }
+
+    @Test
+    public void strictProjectionRefusesUndeclaredAttributes() {
+        manager.setLazyLoad(true);
+        manager.setStrictProjection(true);
+        storedSession("projected");
+
+        CouchbaseHttpSession session = (CouchbaseHttpSession) manager.getSession("projected");
+        session.project(new String[]{"cart"}, new String[0]);
+        assertNull(session.getAttribute("cart"));
+        try {
+            session.getAttribute("user");
+            fail("Read an attribute that was not declared");
+        } catch (IllegalStateException expected) {
+            //The missing declaration shows up in development
+        }
+    }
+
+    /**
+     * @return Another node using the same store
+     */
+    private CouchbaseSessionManager otherNode() throws Exception {
+        CouchbaseSessionManager other = new CouchbaseSessionManager(KEY_PREFIX, store, new ObjectMapper(), 1800);
+        other.start();
+        return other;
+    }
+
+    /**
+     * Create a session stored with a single attribute
+     */
+    private void storedSession(String id) {
+        long now = System.currentTimeMillis();
+        CouchbaseHttpSession session = manager.new CouchbaseHttpSession(id, now, now,
+                manager.getMaxInactiveInterval());
+        session.setWrite(true);
+        session.setAttribute("user", "bob");
+        manager.addSession(session);
+    }
+
+    /**
+     * Change the user of a session as a request would
+     */
+    private void change(String id, String user) {
+        CouchbaseHttpSession session = (CouchbaseHttpSession) manager.getSession(id);
+        session.setWrite(true);
+        session.setAttribute("user", user);
+        session.complete();
+    }
+
+    /**
+     * Create a session whose last change could only be journaled
+     */
+    private CouchbaseHttpSession journaledSession(String id) {
+        long now = System.currentTimeMillis();
+        CouchbaseHttpSession session = manager.new CouchbaseHttpSession(id, now, now,
+                manager.getMaxInactiveInterval());
+        session.setWrite(true);
+        session.setAttribute("user", "bob");
+        manager.addSession(session);
+
+        store.setFailingWrites(true);
+        session.setAttribute("user", "alice");
+        session.complete();
+        store.setFailingWrites(false);
+        assertEquals(1, manager.getJournal().getPending());
+        return session;
+    }
+
+    /**
+     * An attribute type written by a codec of its own
+     */
+    private static final class Point {
+
+        private final int x;
+
+        private final int y;
+
+        private Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * Writes a Point as an [x, y] array
+     */
+    private static final class PointCodec implements SessionAttributeCodec<Point> {
+
+        @Override
+        public Class<Point> getType() {
+            return Point.class;
+        }
+
+        @Override
+        public String[] getAttributes() {
+            return new String[]{"point"};
+        }
+
+        @Override
+        public void write(Point value, JsonGenerator generator) throws IOException {
+            generator.writeStartArray();
+            generator.writeNumber(value.x);
+            generator.writeNumber(value.y);
+            generator.writeEndArray();
+        }
+
+        @Override
+        public Point read(JsonParser parser) throws IOException {
+            parser.nextToken();
+            int x = parser.getIntValue();
+            parser.nextToken();
+            int y = parser.getIntValue();
+            parser.nextToken();
+            return new Point(x, y);
+        }
+    }
+}
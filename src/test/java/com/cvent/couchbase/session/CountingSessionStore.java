@@ -0,0 +1,150 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.ReplicaMode;
+import com.couchbase.client.java.error.TemporaryFailureException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import rx.Observable;
+
+/**
+ * An InMemorySessionStore that counts the operations issued to it and can be made to fail writes, as couchbase does
+ * during a failover
+ */
+class CountingSessionStore implements SessionStore {
+
+    private final InMemorySessionStore delegate = new InMemorySessionStore();
+
+    private final ConcurrentHashMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+    private volatile boolean failingWrites;
+
+    private volatile CountDownLatch writeGate;
+
+    private volatile long masterDelay;
+
+    InMemorySessionStore getDelegate() {
+        return delegate;
+    }
+
+    void setFailingWrites(boolean failingWrites) {
+        this.failingWrites = failingWrites;
+    }
+
+    /**
+     * Hold every write issued from now on until the gate opens
+     *
+     * @param writeGate
+     */
+    void setWriteGate(CountDownLatch writeGate) {
+        this.writeGate = writeGate;
+    }
+
+    /**
+     * Answer every read of the master issued from now on only after a delay, as a master that is slow during a
+     * rebalance. Replica reads are answered straight away.
+     *
+     * @param masterDelay in msec
+     */
+    void setMasterDelay(long masterDelay) {
+        this.masterDelay = masterDelay;
+    }
+
+    /**
+     * @param operation The name of the SessionStore method
+     * @return The number of times it was called
+     */
+    int count(String operation) {
+        AtomicInteger count = counts.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return The number of operations of any kind
+     */
+    int total() {
+        return counts.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    void reset() {
+        counts.clear();
+    }
+
+    private void issued(String operation) {
+        counts.computeIfAbsent(operation, name -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private Observable<SessionDocument> readMaster(String operation, Observable<SessionDocument> read) {
+        issued(operation);
+        long delay = masterDelay;
+        return delay == 0 ? read : Observable.timer(delay, TimeUnit.MILLISECONDS).flatMap(tick -> read);
+    }
+
+    private <T> Observable<T> write(String operation, Observable<T> write) {
+        issued(operation);
+        if (failingWrites) {
+            return Observable.error(new TemporaryFailureException());
+        }
+
+        CountDownLatch gate = writeGate;
+        return gate == null ? write : Observable.defer(() -> {
+            try {
+                gate.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return Observable.<T>error(ex);
+            }
+            return write;
+        });
+    }
+
+    @Override
+    public Observable<SessionDocument> get(String id) {
+        return readMaster("get", delegate.get(id));
+    }
+
+    @Override
+    public Observable<SessionDocument> getAndTouch(String id, int expiry) {
+        return readMaster("getAndTouch", delegate.getAndTouch(id, expiry));
+    }
+
+    @Override
+    public Observable<SessionDocument> getFromReplica(String id, ReplicaMode mode) {
+        issued("getFromReplica");
+        return delegate.getFromReplica(id, mode);
+    }
+
+    @Override
+    public Observable<SessionDocument> insert(SessionDocument document) {
+        return write("insert", delegate.insert(document));
+    }
+
+    @Override
+    public Observable<SessionDocument> upsert(SessionDocument document) {
+        return write("upsert", delegate.upsert(document));
+    }
+
+    @Override
+    public Observable<SessionDocument> replace(SessionDocument document) {
+        return write("replace", delegate.replace(document));
+    }
+
+    @Override
+    public Observable<SessionDocument> remove(String id) {
+        return write("remove", delegate.remove(id));
+    }
+
+    @Override
+    public Observable<SessionFragment> lookupIn(String id, Collection<String> paths) {
+        issued("lookupIn");
+        return delegate.lookupIn(id, paths);
+    }
+
+    @Override
+    public Observable<SessionFragment> mutateIn(String id, int expiry, List<SessionMutation> mutations) {
+        return write("mutateIn", delegate.mutateIn(id, expiry, mutations));
+    }
+}
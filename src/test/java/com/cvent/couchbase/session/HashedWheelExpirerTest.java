@@ -0,0 +1,144 @@
+package com.cvent.couchbase.session;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedWheelExpirerTest {
+
+    private static final long TICK_MILLIS = 10;
+
+    private HashedWheelExpirer expirer;
+
+    @After
+    public void stop() {
+        if (expirer != null) {
+            expirer.stop();
+        }
+    }
+
+    @Test
+    public void expiresAtDeadline() throws InterruptedException {
+        Map<String, Long> expired = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        expirer = new HashedWheelExpirer((key, deadline, now) -> {
+            expired.put(key, now - deadline);
+            latch.countDown();
+            return 0;
+        }, TICK_MILLIS, 8);
+        expirer.start();
+
+        long deadline = System.currentTimeMillis() + 50;
+        expirer.schedule("a", deadline);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() >= deadline);
+        assertTrue("expired before its deadline", expired.get("a") >= 0);
+    }
+
+    @Test
+    public void keepsKeysDueInALaterRotation() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        long[] expiredAt = new long[1];
+        expirer = new HashedWheelExpirer((key, deadline, now) -> {
+            expiredAt[0] = now;
+            latch.countDown();
+            return 0;
+        }, TICK_MILLIS, 4);
+        expirer.start();
+
+        //Several rotations of a 4 slot wheel away
+        long deadline = System.currentTimeMillis() + 20 * TICK_MILLIS;
+        expirer.schedule("a", deadline);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue("expired before its deadline", expiredAt[0] >= deadline);
+    }
+
+    @Test
+    public void expiresKeysDueLaterInTheCurrentTickByTheNextTick() throws InterruptedException {
+        int keys = 20;
+        Map<String, Long> lateness = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(keys);
+        //A rotation of 8 ticks of 50 msec is 400 msec
+        long tick = 50;
+        expirer = new HashedWheelExpirer((key, deadline, now) -> {
+            lateness.put(key, now - deadline);
+            latch.countDown();
+            return 0;
+        }, tick, 8);
+        expirer.start();
+
+        //Spread over two ticks, so some are due after the wheel visits their slot but before the tick ends
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < keys; i++) {
+            expirer.schedule("k" + i, now + (i + 1) * 5);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (Map.Entry<String, Long> key : lateness.entrySet()) {
+            assertTrue(key.getKey() + " was " + key.getValue() + " msec late", key.getValue() < 3 * tick);
+        }
+    }
+
+    @Test
+    public void reschedulesTouchedKeys() throws InterruptedException {
+        Map<String, Integer> calls = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        expirer = new HashedWheelExpirer((key, deadline, now) -> {
+            if (calls.merge(key, 1, Integer::sum) == 1) {
+                //Touched since it was scheduled
+                return now + 5 * TICK_MILLIS;
+            }
+            latch.countDown();
+            return 0;
+        }, TICK_MILLIS, 8);
+        expirer.start();
+
+        expirer.schedule("a", System.currentTimeMillis() + TICK_MILLIS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, (int) calls.get("a"));
+    }
+
+    @Test
+    public void ignoresKeysThatNeverExpire() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        expirer = new HashedWheelExpirer((key, deadline, now) -> {
+            latch.countDown();
+            return 0;
+        }, TICK_MILLIS, 8);
+        expirer.start();
+
+        expirer.schedule("a", 0);
+
+        assertFalse(latch.await(20 * TICK_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void keepsKeysScheduledWhileStopped() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        expirer = new HashedWheelExpirer((key, deadline, now) -> {
+            latch.countDown();
+            return 0;
+        }, TICK_MILLIS, 8);
+
+        expirer.schedule("a", System.currentTimeMillis() + TICK_MILLIS);
+        assertFalse(latch.await(5 * TICK_MILLIS, TimeUnit.MILLISECONDS));
+
+        expirer.start();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveTick() {
+        new HashedWheelExpirer((key, deadline, now) -> 0, 0, 8);
+    }
+}
@@ -0,0 +1,184 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.subdoc.DocumentNotJsonException;
+import com.couchbase.client.java.error.subdoc.PathNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class InMemorySessionStoreTest {
+
+    private InMemorySessionStore store;
+
+    @Before
+    public void startStore() throws Exception {
+        store = new InMemorySessionStore(10, TimeUnit.MILLISECONDS, 64);
+        store.start();
+    }
+
+    @After
+    public void stopStore() throws Exception {
+        store.stop();
+    }
+
+    @Test
+    public void replaceChecksTheCas() {
+        SessionDocument inserted = insert("a", "{\"v\":1}", 0);
+        SessionDocument replaced = store.replace(SessionDocument.create("a", 0, json("{\"v\":2}"),
+                inserted.cas())).toBlocking().single();
+        assertNotEquals(inserted.cas(), replaced.cas());
+
+        try {
+            //Written since it was read
+            store.replace(SessionDocument.create("a", 0, json("{\"v\":3}"), inserted.cas())).toBlocking().single();
+            fail("Replaced a document that changed since");
+        } catch (CASMismatchException expected) {
+            //The newer write is kept
+        }
+        assertEquals("{\"v\":2}", content(get("a")));
+
+        //A CAS of 0 always replaces
+        store.replace(SessionDocument.create("a", 0, json("{\"v\":4}"))).toBlocking().single();
+        assertEquals("{\"v\":4}", content(get("a")));
+    }
+
+    @Test(expected = DocumentAlreadyExistsException.class)
+    public void insertFailsIfTheDocumentExists() {
+        insert("a", "{}", 0);
+        insert("a", "{}", 0);
+    }
+
+    @Test(expected = DocumentDoesNotExistException.class)
+    public void replaceFailsIfTheDocumentDoesNotExist() {
+        store.replace(SessionDocument.create("a", 0, json("{}"))).toBlocking().single();
+    }
+
+    @Test
+    public void removeReturnsTheDocumentOnce() {
+        insert("a", "{\"v\":1}", 0);
+
+        assertEquals("{\"v\":1}", content(store.remove("a").toBlocking().single()));
+        assertNull(get("a"));
+        try {
+            store.remove("a").toBlocking().single();
+            fail("Removed a document twice");
+        } catch (DocumentDoesNotExistException expected) {
+            //Already gone
+        }
+    }
+
+    @Test
+    public void looksUpOnlyThePathsThatExist() {
+        SessionDocument doc = insert("a", "{\"attributes\":{\"user\":\"bob\",\"a.b\":{\"n\":1}},\"version\":3}", 0);
+
+        SessionFragment fragment = store.lookupIn("a",
+                Arrays.asList("version", "attributes.user", "attributes.`a.b`.n", "attributes.missing"))
+                .toBlocking().single();
+
+        assertEquals(doc.cas(), fragment.cas());
+        assertEquals(3, ((Number) fragment.content("version")).intValue());
+        assertEquals("bob", fragment.content("attributes.user"));
+        assertEquals(1, ((Number) fragment.content("attributes.`a.b`.n")).intValue());
+        assertFalse(fragment.exists("attributes.missing"));
+    }
+
+    @Test
+    public void mutatesAllOrNothing() {
+        SessionDocument doc = insert("a", "{\"attributes\":{\"user\":\"bob\"},\"version\":3}", 0);
+
+        SessionFragment result = store.mutateIn("a", 0, Arrays.asList(
+                SessionMutation.upsert("attributes.user", "alice", false),
+                SessionMutation.upsert("stamps.touched", 7, true),
+                SessionMutation.counter("version", 1, false))).toBlocking().single();
+        assertNotEquals(doc.cas(), result.cas());
+        assertEquals(4L, result.content("version"));
+
+        SessionDocument mutated = get("a");
+        try {
+            store.mutateIn("a", 0, Arrays.asList(
+                    SessionMutation.upsert("attributes.user", "carol", false),
+                    SessionMutation.remove("attributes.missing"))).toBlocking().single();
+            fail("Applied a mutation of a path that doesn't exist");
+        } catch (PathNotFoundException expected) {
+            //None of them were applied
+        }
+
+        SessionDocument current = get("a");
+        assertEquals(mutated.cas(), current.cas());
+        SessionFragment fragment = store.lookupIn("a", Arrays.asList("attributes.user", "stamps.touched", "version"))
+                .toBlocking().single();
+        assertEquals("alice", fragment.content("attributes.user"));
+        assertEquals(7, ((Number) fragment.content("stamps.touched")).intValue());
+        assertEquals(4, ((Number) fragment.content("version")).intValue());
+    }
+
+    @Test(expected = DocumentNotJsonException.class)
+    public void refusesSubDocumentOperationsOnABinaryDocument() {
+        store.insert(SessionDocument.create("a", 0, new byte[]{1, 2, 3})).toBlocking().single();
+        store.lookupIn("a", Collections.singletonList("version")).toBlocking().single();
+    }
+
+    @Test
+    public void expiresDocuments() throws InterruptedException {
+        insert("a", "{}", 1);
+        insert("b", "{}", 0);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.getExpired() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(1, store.getExpired());
+        assertNull(get("a"));
+        assertEquals("{}", content(get("b")));
+        assertEquals(1, store.getSize());
+    }
+
+    @Test
+    public void touchingPostponesTheExpiry() throws InterruptedException {
+        insert("a", "{\"v\":1}", 1);
+
+        //Every half second for twice its expiry
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(500);
+            assertEquals("{\"v\":1}", content(store.getAndTouch("a", 1).toBlocking().single()));
+        }
+        Thread.sleep(100);
+        assertEquals(0, store.getExpired());
+
+        //A mutation resets the expiry as well
+        store.mutateIn("a", 1, Collections.singletonList(SessionMutation.upsert("v", 2, false)))
+                .toBlocking().single();
+        Thread.sleep(1500);
+        assertNull(get("a"));
+    }
+
+    private SessionDocument insert(String id, String content, int expiry) {
+        return store.insert(SessionDocument.create(id, expiry, json(content))).toBlocking().single();
+    }
+
+    private SessionDocument get(String id) {
+        return store.get(id).toBlocking().singleOrDefault(null);
+    }
+
+    private static byte[] json(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String content(SessionDocument doc) {
+        return new String(doc.content(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,86 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionBeanBinderTest {
+
+    private CouchbaseSessionManager manager;
+
+    private CouchbaseHttpSession session;
+
+    @Before
+    public void createSession() {
+        manager = new CouchbaseSessionManager("session::", new InMemorySessionStore(), new ObjectMapper(), 1800);
+        long now = System.currentTimeMillis();
+        session = manager.new CouchbaseHttpSession("a", now, now, manager.getMaxInactiveInterval());
+        session.setWrite(true);
+    }
+
+    @Test
+    public void writesAFieldChangedInPlace() {
+        List<String> items = new ArrayList<>(Arrays.asList("a"));
+        session.addAttributes(Collections.<String, Object>singletonMap("items", items));
+
+        SessionBeanBinder<Cart>.Binding binding = manager.getBeanBinder(Cart.class).bind(session);
+        assertSame(items, binding.getBean().items);
+        binding.getBean().items.add("b");
+        binding.flush(session);
+
+        assertEquals(Collections.singleton("items"), session.getChangedAttributes());
+        assertEquals(Arrays.asList("a", "b"), session.getAttribute("items"));
+    }
+
+    @Test
+    public void writesOnlyChangedFields() {
+        session.addAttributes(Collections.<String, Object>singletonMap("items", new ArrayList<>(Arrays.asList("a"))));
+
+        SessionBeanBinder<Cart>.Binding binding = manager.getBeanBinder(Cart.class).bind(session);
+        binding.flush(session);
+        assertTrue(session.getChangedAttributes().isEmpty());
+
+        binding.getBean().owner = "me";
+        binding.flush(session);
+        assertEquals(Collections.singleton("owner"), session.getChangedAttributes());
+    }
+
+    @Test
+    public void refusesBeansDisagreeingOnTheTypeOfAnAttribute() {
+        manager.addSessionBean(Cart.class);
+        try {
+            manager.addSessionBean(Basket.class);
+            fail("Basket was bound although its items are not a list");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(Cart.class.getName()));
+            assertTrue(ex.getMessage(), ex.getMessage().contains(Basket.class.getName()));
+        }
+
+        //Nothing of the refused bean was registered
+        assertEquals(null, manager.getAttributeType("count"));
+    }
+
+    static final class Cart {
+
+        private List<String> items;
+
+        private String owner;
+    }
+
+    static final class Basket {
+
+        private int count;
+
+        private String items;
+    }
+}
@@ -0,0 +1,76 @@
+package com.cvent.couchbase.session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionCompressionTest {
+
+    private final SessionCompression compression = new SessionCompression(64);
+
+    @Test
+    public void roundTrips() throws IOException {
+        byte[] document = document();
+        byte[] compressed = compression.compress(document);
+
+        assertEquals(SessionCodec.DEFLATE, compressed[0]);
+        assertTrue(compressed.length < document.length);
+        assertArrayEquals(document, compression.decompress(compressed));
+        assertArrayEquals(document, SessionCompression.decompressWithoutDictionary(compressed));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesAHugeDeclaredSize() throws IOException {
+        compression.decompress(declaring(compression.compress(document()), Integer.MAX_VALUE));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesANegativeDeclaredSize() throws IOException {
+        compression.decompress(declaring(compression.compress(document()), -1));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesASizeDeflateCanNotReach() throws IOException {
+        byte[] compressed = compression.compress(document());
+        compression.decompress(declaring(compressed, compressed.length * 2000));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesADocumentLargerThanDeclared() throws IOException {
+        compression.decompress(declaring(compression.compress(document()), document().length - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesADocumentSmallerThanDeclared() throws IOException {
+        compression.decompress(declaring(compression.compress(document()), document().length + 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesATruncatedDocument() throws IOException {
+        byte[] compressed = compression.compress(document());
+        compression.decompress(Arrays.copyOf(compressed, compressed.length - 4));
+    }
+
+    private static byte[] document() {
+        StringBuilder json = new StringBuilder("{\"attributes\":{");
+        for (int i = 0; i < 50; i++) {
+            json.append("\"name").append(i).append("\":\"value").append(i).append("\",");
+        }
+        return json.append("\"last\":true}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return A copy of a compressed document with another declared size
+     */
+    private static byte[] declaring(byte[] compressed, int size) {
+        byte[] copy = compressed.clone();
+        ByteBuffer.wrap(copy).putInt(1, size);
+        return copy;
+    }
+}
@@ -0,0 +1,216 @@
+package com.cvent.couchbase.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionJournalTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    /**
+     * The size of a record of a session with a single character id, besides its content
+     */
+    private static final int RECORD_OVERHEAD = 12 + 1 + 8 + 8 + 8 + 4 + 1 + 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void servesTheLatestJournaledWrite() throws IOException {
+        SessionJournal journal = new SessionJournal(folder.newFolder(), SEGMENT_SIZE, 4);
+
+        assertTrue(journal.append("a", 1, 0, content("first", 10)));
+        assertTrue(journal.append("a", 1, 0, content("second", 10)));
+
+        assertArrayEquals(content("second", 10), journal.pending("a"));
+        assertNull(journal.pending("b"));
+        assertEquals(1, journal.getPending());
+        assertEquals(2, journal.getAppended());
+    }
+
+    @Test
+    public void replaysInOrderUntilAWriteFails() throws IOException {
+        SessionJournal journal = new SessionJournal(folder.newFolder(), SEGMENT_SIZE, 4);
+        journal.append("a", 1, 0, content("a", 10));
+        journal.append("b", -1, 0, content("b", 10));
+        journal.append("c", 3, 0, content("c", 10));
+
+        List<String> replayed = new ArrayList<>();
+        journal.replay((id, expectedVersion, expiresAt, content) -> {
+            replayed.add(id);
+            if (id.equals("b")) {
+                throw new RuntimeException("still down");
+            }
+            return true;
+        });
+        assertEquals(Arrays.asList("a", "b"), replayed);
+        assertNull(journal.pending("a"));
+        assertArrayEquals(content("b", 10), journal.pending("b"));
+
+        replayed.clear();
+        journal.replay((id, expectedVersion, expiresAt, content) -> {
+            replayed.add(id);
+            //b changed in couchbase since it was read
+            return !id.equals("b");
+        });
+        assertEquals(Arrays.asList("b", "c"), replayed);
+        assertEquals(0, journal.getPending());
+        assertEquals(2, journal.getReplayed());
+        assertEquals(1, journal.getConflicts());
+    }
+
+    @Test
+    public void recoversAcrossARestart() throws IOException {
+        File directory = folder.newFolder();
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_SIZE, 4);
+        journal.append("a", 1, 0, content("a", 10));
+        journal.append("b", 2, 0, content("b", 10));
+        journal.append("b", 2, 0, content("b2", 10));
+        journal.append("c", 3, 0, content("c", 10));
+        journal.discard("a");
+        journal.stop();
+
+        SessionJournal reopened = new SessionJournal(directory, SEGMENT_SIZE, 4);
+        assertNull(reopened.pending("a"));
+        assertArrayEquals(content("b2", 10), reopened.pending("b"));
+        assertArrayEquals(content("c", 10), reopened.pending("c"));
+        assertEquals(2, reopened.getPending());
+
+        List<Object> replayed = new ArrayList<>();
+        reopened.replay((id, expectedVersion, expiresAt, content) -> {
+            replayed.add(id);
+            replayed.add(expectedVersion);
+            return true;
+        });
+        //In the order they were last written
+        assertEquals(Arrays.<Object>asList("b", 2L, "c", 3L), replayed);
+    }
+
+    @Test
+    public void keepsAcknowledgementsWhileTheWritesTheyCoverAreOnDisk() throws IOException {
+        File directory = folder.newFolder();
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_SIZE, 8);
+
+        //Fill the first segment with a and b so everything after goes to later segments
+        int fill = (SEGMENT_SIZE - 10) / 2 - RECORD_OVERHEAD;
+        journal.append("a", 1, 0, content("a", fill));
+        journal.append("b", 1, 0, content("b", fill));
+        //The second segment holds c and then the acknowledgement of a
+        journal.append("c", 1, 0, content("c", fill));
+        journal.discard("a");
+        //Rolls to a third segment
+        journal.append("d", 1, 0, content("d", fill));
+        journal.append("e", 1, 0, content("e", fill));
+        //Nothing is live in the second segment any more, but b is still live in the first
+        journal.discard("c");
+        journal.stop();
+
+        SessionJournal reopened = new SessionJournal(directory, SEGMENT_SIZE, 8);
+        assertNull("an acknowledged write was recovered", reopened.pending("a"));
+        assertNull(reopened.pending("c"));
+        assertArrayEquals(content("b", fill), reopened.pending("b"));
+        assertEquals(3, reopened.getPending());
+    }
+
+    @Test
+    public void deletesSegmentsOnceNothingInThemIsLive() throws IOException {
+        File directory = folder.newFolder();
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_SIZE, 4);
+
+        int fill = SEGMENT_SIZE / 2;
+        for (int i = 0; i < 20; i++) {
+            assertTrue(journal.append("a", 1, 0, content("a" + i, fill)));
+        }
+        assertTrue(journal.getDiskUsage() <= 2L * SEGMENT_SIZE);
+        assertEquals(0, journal.getCompactions());
+
+        journal.discard("a");
+        journal.stop();
+        assertEquals(0, new SessionJournal(directory, SEGMENT_SIZE, 4).getPending());
+    }
+
+    @Test
+    public void compactsWhenFull() throws IOException {
+        File directory = folder.newFolder();
+        SessionJournal journal = new SessionJournal(directory, SEGMENT_SIZE, 3);
+
+        int fill = SEGMENT_SIZE / 3;
+        //Keeps the oldest segment from ever being deleted
+        journal.append("a", 1, 0, content("a", fill));
+        for (int i = 0; i < 20; i++) {
+            assertTrue(journal.append("b", 1, 0, content("b" + i, fill)));
+            //As the replay thread does
+            journal.maintain();
+        }
+
+        assertTrue(journal.getCompactions() > 0);
+        assertTrue(journal.getDiskUsage() <= 3L * SEGMENT_SIZE);
+        //The old segments were deleted
+        assertEquals(journal.getDiskUsage() / SEGMENT_SIZE, directory.listFiles().length);
+        assertArrayEquals(content("a", fill), journal.pending("a"));
+        assertArrayEquals(content("b19", fill), journal.pending("b"));
+        journal.stop();
+
+        SessionJournal reopened = new SessionJournal(directory, SEGMENT_SIZE, 3);
+        assertArrayEquals(content("a", fill), reopened.pending("a"));
+        assertArrayEquals(content("b19", fill), reopened.pending("b"));
+        assertEquals(2, reopened.getPending());
+    }
+
+    @Test
+    public void leavesCompactionToTheReplayThread() throws IOException {
+        SessionJournal journal = new SessionJournal(folder.newFolder(), SEGMENT_SIZE, 3);
+
+        int fill = SEGMENT_SIZE / 3;
+        journal.append("a", 1, 0, content("a", fill));
+        int appended = 1;
+        while (journal.append("b", 1, 0, content("b" + appended, fill))) {
+            appended++;
+        }
+
+        //Filled every segment without compacting on the appending thread
+        assertEquals(0, journal.getCompactions());
+        assertEquals(1, journal.getDropped());
+        assertEquals(3L * SEGMENT_SIZE, journal.getDiskUsage());
+        assertArrayEquals(content("b" + (appended - 1), fill), journal.pending("b"));
+
+        journal.maintain();
+        assertEquals(1, journal.getCompactions());
+        assertTrue(journal.append("b", 1, 0, content("b", fill)));
+        assertArrayEquals(content("a", fill), journal.pending("a"));
+        assertArrayEquals(content("b", fill), journal.pending("b"));
+        assertTrue(journal.isPending("b"));
+    }
+
+    @Test
+    public void dropsWritesThatDoNotFit() throws IOException {
+        SessionJournal journal = new SessionJournal(folder.newFolder(), SEGMENT_SIZE, 2);
+
+        assertFalse(journal.append("a", 1, 0, content("a", SEGMENT_SIZE)));
+        assertEquals(1, journal.getDropped());
+        assertNull(journal.pending("a"));
+    }
+
+    /**
+     * @return Content of the given size that starts with the given text
+     */
+    private static byte[] content(String text, int size) {
+        byte[] content = new byte[size];
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, content, 0, Math.min(bytes.length, size));
+        return content;
+    }
+}
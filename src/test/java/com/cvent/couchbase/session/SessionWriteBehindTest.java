@@ -0,0 +1,193 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionWriteBehindTest {
+
+    private CouchbaseSessionManager manager;
+
+    private SessionWriteBehind queue;
+
+    /**
+     * Every write in the order it was issued
+     */
+    private final List<Write> writes = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Cluster ids whose write is being issued, to catch overlapping writes of the same session
+     */
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean overlapped;
+
+    private final CountDownLatch writingA = new CountDownLatch(1);
+
+    private final CountDownLatch releaseA = new CountDownLatch(1);
+
+    @Before
+    public void createManager() {
+        manager = new CouchbaseSessionManager("session::", new InMemorySessionStore(), new ObjectMapper(), 1800);
+    }
+
+    @After
+    public void stopQueue() {
+        releaseA.countDown();
+        if (queue != null) {
+            queue.stop();
+        }
+    }
+
+    @Test
+    public void coalescesChangesQueuedBehindAWrite() throws InterruptedException {
+        queue = new SessionWriteBehind(10, 1);
+        queue.start(this::write);
+
+        CouchbaseHttpSession first = session("a");
+        assertTrue(queue.submit(first, true, names("x")));
+        assertTrue(writingA.await(5, TimeUnit.SECONDS));
+
+        CouchbaseHttpSession second = session("a");
+        CouchbaseHttpSession third = session("a");
+        assertTrue(queue.submit(second, false, names("y")));
+        assertTrue(queue.submit(third, false, names("z")));
+        assertEquals(1, queue.getDepth());
+        assertEquals(1, queue.getCoalesced());
+
+        releaseA.countDown();
+        queue.stop();
+
+        assertEquals(2, writes.size());
+        assertSame(first, writes.get(0).session);
+        assertTrue(writes.get(0).insert);
+        //Only the newest state is written, with the attributes changed by either
+        assertSame(third, writes.get(1).session);
+        assertFalse(writes.get(1).insert);
+        assertEquals(names("y", "z"), writes.get(1).changed);
+        assertFalse("writes of the same session overlapped", overlapped);
+    }
+
+    @Test
+    public void ordersWritesOfTheSameSessionWhenFull() throws InterruptedException {
+        queue = new SessionWriteBehind(1, 1);
+        queue.start(this::write);
+
+        CouchbaseHttpSession first = session("a");
+        assertTrue(queue.submit(first, false, names("x")));
+        assertTrue(writingA.await(5, TimeUnit.SECONDS));
+
+        //Fills the queue
+        assertTrue(queue.submit(session("b"), false, names("x")));
+
+        //Past the capacity but the write of a is in flight, so it must wait for it rather than overlap it
+        CouchbaseHttpSession second = session("a");
+        assertTrue(queue.submit(second, false, names("y")));
+        assertEquals(0, queue.getOverflowed());
+        assertEquals(2, queue.getDepth());
+        assertEquals(1, writes.size());
+
+        //Nothing in flight for c, so the caller writes it itself
+        CouchbaseHttpSession overflow = session("c");
+        assertTrue(queue.submit(overflow, false, names("x")));
+        assertEquals(1, queue.getOverflowed());
+        assertSame(overflow, writes.get(1).session);
+
+        releaseA.countDown();
+        queue.stop();
+
+        List<CouchbaseHttpSession> ofA = new ArrayList<>();
+        for (Write write : writes) {
+            if (write.session.getClusterId().equals("a")) {
+                ofA.add(write.session);
+            }
+        }
+        assertEquals(Arrays.asList(first, second), ofA);
+        assertEquals(4, writes.size());
+        assertFalse("writes of the same session overlapped", overlapped);
+    }
+
+    @Test
+    public void stopWritesEverythingPending() {
+        releaseA.countDown();
+        queue = new SessionWriteBehind(100, 2);
+        queue.start((session, insert, changed) -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            write(session, insert, changed);
+        });
+
+        for (int i = 0; i < 50; i++) {
+            assertTrue(queue.submit(session("s" + i), true, names("x")));
+        }
+        queue.stop();
+
+        assertEquals(50, writes.size());
+        assertEquals(0, queue.getDepth());
+        assertFalse("writes of the same session overlapped", overlapped);
+
+        //Stopped, the caller has to write
+        assertFalse(queue.submit(session("late"), true, names("x")));
+    }
+
+    private CouchbaseHttpSession session(String id) {
+        long now = System.currentTimeMillis();
+        return manager.new CouchbaseHttpSession(id, now, now, manager.getMaxInactiveInterval());
+    }
+
+    private static Set<String> names(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    private void write(CouchbaseHttpSession session, boolean insert, Set<String> changed) {
+        String id = session.getClusterId();
+        if (!inFlight.add(id)) {
+            overlapped = true;
+        }
+        try {
+            writes.add(new Write(session, insert, changed));
+            if (id.equals("a") && writingA.getCount() > 0) {
+                writingA.countDown();
+                releaseA.await(5, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.remove(id);
+        }
+    }
+
+    private static final class Write {
+
+        private final CouchbaseHttpSession session;
+
+        private final boolean insert;
+
+        private final Set<String> changed;
+
+        private Write(CouchbaseHttpSession session, boolean insert, Set<String> changed) {
+            this.session = session;
+            this.insert = insert;
+            this.changed = changed;
+        }
+    }
+}